@@ -37,6 +37,8 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 
+import de.drb.il4l.androidgw.events.GatewayEvents;
+
 /**
  * Der Inloc4Log BLE Gateway leitet BLE GATT Ranging Service Notifications
  * automatisch per MQTT an den Warehouse Location Server weiter.
@@ -50,17 +52,39 @@ import java.util.Map;
 public class BLE_GW_Application extends Application {
 
     static public HashMap<String,String> KnownBeacons;
+    // Bumped whenever KnownBeacons is saved, tag names derived from it are cached until then
+    static private volatile int knownBeaconsGeneration;
 
     public static final String CHANNEL_ID = "GATTServiceChannel";
     public static final int SEND_NOTIFY_DELAY = 3000;
+    // Minimum time between two UI updates of the same tag in ms
+    public static final int UI_UPDATE_INTERVAL = 100;
+    // Time between two refreshes of the status list in ms
+    public static final int UI_REFRESH_INTERVAL = 250;
 
     public static String serverUri = "tcp://192.168.222.237:1883";
     public static boolean showPOS = false;
     public static String MQTTtopic = "POS";
     public static boolean MQTTname = true;
+    public static boolean MQTTbatch = false;
+    public static int MQTTbatchWindow = 50;
+    public static int MQTTbatchSize = 64;
+    public static boolean MQTTcompact = false;
+    public static String MQTTqos = "";
+    public static String MQTToverflow = "drop-oldest";
+    public static int MQTTconflateRate = 0;
+    public static int MQTTtargetLatency = 0;
+    public static int MQTTspoolSize = 32;
+    public static int MQTTreplayRate = 200;
+    public static int MQTTmetricsInterval = 0;
+    public static int BLEmaxConnecting = 2;
+    public static int BLEconnectSpacing = 100;
+    public static boolean BLEscanFilter = false;
+    public static boolean BLEpresenceScan = false;
 
     public static String debugPos = "";
 
+    private final GatewayEvents mEvents = new GatewayEvents(UI_UPDATE_INTERVAL);
     private GatewayService mGatewayService;
     private ServiceConnection mGatewayServiceConnection = new ServiceConnection() {
         @Override
@@ -79,6 +103,10 @@ public class BLE_GW_Application extends Application {
         return mGatewayService;
     }
 
+    public GatewayEvents getEvents() {
+        return mEvents;
+    }
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -118,6 +146,21 @@ public class BLE_GW_Application extends Application {
 
         MQTTtopic = Preferences.getPrefs("mqttTopic", context, MQTTtopic);
         MQTTname = Boolean.parseBoolean(Preferences.getPrefs("mqttName", context, String.valueOf(MQTTname)));
+        MQTTbatch = Boolean.parseBoolean(Preferences.getPrefs("mqttBatch", context, String.valueOf(MQTTbatch)));
+        MQTTbatchWindow = Preferences.getIntPrefs("mqttBatchWindow", context, MQTTbatchWindow);
+        MQTTbatchSize = Preferences.getIntPrefs("mqttBatchSize", context, MQTTbatchSize);
+        MQTTcompact = Boolean.parseBoolean(Preferences.getPrefs("mqttCompact", context, String.valueOf(MQTTcompact)));
+        MQTTqos = Preferences.getPrefs("mqttQos", context, MQTTqos);
+        MQTToverflow = Preferences.getPrefs("mqttOverflow", context, MQTToverflow);
+        MQTTconflateRate = Preferences.getIntPrefs("mqttConflateRate", context, MQTTconflateRate);
+        MQTTtargetLatency = Preferences.getIntPrefs("mqttTargetLatency", context, MQTTtargetLatency);
+        MQTTspoolSize = Preferences.getIntPrefs("mqttSpoolSize", context, MQTTspoolSize);
+        MQTTreplayRate = Preferences.getIntPrefs("mqttReplayRate", context, MQTTreplayRate);
+        MQTTmetricsInterval = Preferences.getIntPrefs("mqttMetricsInterval", context, MQTTmetricsInterval);
+        BLEmaxConnecting = Preferences.getIntPrefs("bleMaxConnecting", context, BLEmaxConnecting);
+        BLEconnectSpacing = Preferences.getIntPrefs("bleConnectSpacing", context, BLEconnectSpacing);
+        BLEscanFilter = Boolean.parseBoolean(Preferences.getPrefs("bleScanFilter", context, String.valueOf(BLEscanFilter)));
+        BLEpresenceScan = Boolean.parseBoolean(Preferences.getPrefs("blePresenceScan", context, String.valueOf(BLEpresenceScan)));
 
         createNotificationChannel();
 
@@ -147,5 +190,62 @@ public class BLE_GW_Application extends Application {
             beacons.add(b.getKey() + "," + b.getValue());
         }
         Preferences.setArrayPrefs("MyDevs",beacons, context);
+
+        knownBeaconsGeneration++;
+        GatewayService gatewayService = ((BLE_GW_Application) context.getApplicationContext()).getGatewayService();
+        if (gatewayService != null) {
+            gatewayService.getGateway().getPublisher().invalidateTopics();
+        }
+    }
+
+    /**
+     * @return changes with every change of the known beacons saved by {@link #saveBeacons}
+     */
+    static public int getKnownBeaconsGeneration() {
+        return knownBeaconsGeneration;
+    }
+
+    /**
+     * @return true unless the user disconnected the tag, such tags aren't connected on start
+     */
+    static public boolean isAutoConnect(String address, Context context) {
+        return Boolean.parseBoolean(Preferences.getPrefs("autoConnect_" + address, context, "true"));
+    }
+
+    static public void setAutoConnect(String address, boolean autoConnect, Context context) {
+        if (autoConnect) {
+            Preferences.delPrefs("autoConnect_" + address, context);
+        } else {
+            Preferences.setPrefs("autoConnect_" + address, "false", context);
+        }
+    }
+
+    /**
+     * Carry the tag of the former single reconnectTag preference over to the per tag flags, once.
+     * It is marked as the most recently active tag, so the warm start connects it first.
+     */
+    static public void migrateReconnectTag(Context context) {
+        String address = Preferences.getPrefs("reconnectTag", context);
+        if (address.equals("notfound")) {
+            return;
+        }
+        setAutoConnect(address, true, context);
+        setLastActivity(address, System.currentTimeMillis(), context);
+        Preferences.delPrefs("reconnectTag", context);
+    }
+
+    /**
+     * @return when the tag was last connected in ms since epoch, 0 if never
+     */
+    static public long getLastActivity(String address, Context context) {
+        try {
+            return Long.parseLong(Preferences.getPrefs("lastActive_" + address, context, "0"));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    static public void setLastActivity(String address, long time, Context context) {
+        Preferences.setPrefs("lastActive_" + address, String.valueOf(time), context);
     }
 }
@@ -25,9 +25,7 @@ import static de.drb.il4l.androidgw.BLE_GW_Application.CHANNEL_ID;
 import static de.drb.il4l.androidgw.BLE_GW_Application.SEND_NOTIFY_DELAY;
 import static de.drb.il4l.androidgw.viewmodels.GattConnection.CONNECTED;
 import static de.drb.il4l.androidgw.viewmodels.GattConnection.CONNECTING;
-import static de.drb.il4l.androidgw.viewmodels.GattConnection.DISCONNECTING;
 import static de.drb.il4l.androidgw.viewmodels.GattConnection.DISCOVERED;
-import static de.drb.il4l.androidgw.viewmodels.GattConnection.NOT_STARTED;
 
 import android.annotation.SuppressLint;
 import android.app.Notification;
@@ -43,6 +41,8 @@ import android.os.Binder;
 import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.service.notification.StatusBarNotification;
 import android.util.Log;
@@ -51,39 +51,72 @@ import androidx.annotation.NonNull;
 import androidx.core.app.NotificationCompat;
 import androidx.databinding.ObservableArrayMap;
 import androidx.databinding.ObservableMap;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
-import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.text.DecimalFormat;
 
 import no.nordicsemi.android.ble.BleManagerCallbacks;
+import de.drb.il4l.androidgw.core.BleTransport;
+import de.drb.il4l.androidgw.core.ConnectionScheduler;
+import de.drb.il4l.androidgw.core.EventLoop;
+import de.drb.il4l.androidgw.core.Gateway;
+import de.drb.il4l.androidgw.events.GatewayEvents;
+import de.drb.il4l.androidgw.metrics.MetricsReporter;
 import de.drb.il4l.androidgw.mqtt.MqttForwarder;
+import de.drb.il4l.androidgw.mqtt.OutboundQueue;
+import de.drb.il4l.androidgw.mqtt.PublishPipeline;
+import de.drb.il4l.androidgw.mqtt.QosPolicy;
+import de.drb.il4l.androidgw.mqtt.TransportException;
+import de.drb.il4l.androidgw.profile.RangingFrame;
+import de.drb.il4l.androidgw.profile.RangingFrameDecoder;
+import de.drb.il4l.androidgw.scan.PresenceScanner;
 import de.drb.il4l.androidgw.viewmodels.GattConnection;
 import de.drb.il4l.androidgw.R;
 
 /**
- * Foreground-Service that manages connection to BLE tags.
+ * Foreground-Service that manages connection to BLE tags. Connection handling and forwarding is
+ * done by the platform independent {@link Gateway}, this service adapts the Nordic BLE library
+ * and the Android UI to it.
  *
  * @author  Lars Schymik
  * @author  Michael Pekar
  */
-public class GatewayService extends Service implements BleManagerCallbacks {
+public class GatewayService extends Service implements BleManagerCallbacks, BleTransport<GattConnection> {
 
     private final static String TAG = GatewayService.class.getSimpleName();
     private final static int ONGOING_NOTIFICATION_ID = 1;
-
-    public final static String BROADCAST_CHANGED_STATE = "changedState";
-    public final static String BROADCAST_MQTT_CONNECTION = "mqttConnection";
+    private final static String SPOOL_DIR = "mqtt-spool";
 
     private final ObservableMap<String, TagGattManager> mConnections = new ObservableArrayMap<>();
-    private LocalBroadcastManager mLocalBroadcastManager;
+    private GatewayEvents mEvents;
     private MqttForwarder mMqtt;
+    private Gateway<GattConnection> mGateway;
+    private MetricsReporter mMetrics;
+    private PresenceScanner mPresence;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // The BLE library delivers its callbacks on the main thread, so the scheduler runs there too
+    private final EventLoop mMainLoop = new EventLoop() {
+        @Override
+        public long uptimeMillis() {
+            return SystemClock.uptimeMillis();
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delayMillis) {
+            mMainHandler.postDelayed(task, delayMillis);
+        }
+    };
+    // Only accessed from the ingest worker thread
+    private final RangingFrame mFrame = new RangingFrame();
 
     private boolean mCachedMqttIsConnected = false;
+    private boolean mWarmStarted = false;
     private long mLastDeviceUpdateNotification = 0;
 
     // Mqtt event listener used to communicate connection state with other parts of the app.
@@ -114,6 +147,45 @@ public class GatewayService extends Service implements BleManagerCallbacks {
         }
     };
 
+    // Gateway event listener, connection events arrive on the main thread
+    private final Gateway.Listener<GattConnection> mGatewayListener = new Gateway.Listener<GattConnection>() {
+        @Override
+        public void onStateChanged(GattConnection connection) {
+            if (connection.getConnectionState() == DISCOVERED) {
+                // Orders the warm start after the next restart
+                BLE_GW_Application.setLastActivity(connection.getServerAddr(), System.currentTimeMillis(), getApplicationContext());
+            }
+            broadcastChangedState(connection.getServerAddr());
+            updateForegroundNotification();
+        }
+
+        @Override
+        public void onSessionClosed(GattConnection connection) {
+            // Stop service when there are no connected tags
+            if (mConnections.isEmpty()) {
+                stopSelf();
+            }
+
+            broadcastChangedState(connection.getServerAddr());
+            updatePresenceScan();
+            Log.i(TAG, "Closed connection to GATT Peripheral...");
+        }
+
+        @Override
+        public void onRangingFrame(GattConnection connection, byte[] data, int length, long receivedAt) {
+            deviceNotifyUpdate(connection);
+
+            if (BLE_GW_Application.showPOS) {
+                String s = "";
+                if (RangingFrameDecoder.decodePosition(data, 0, length, mFrame)) {
+                    s = "x:" + mFrame.x + " y:" + mFrame.y + " z:" + mFrame.z;
+                }
+
+                BLE_GW_Application.debugPos = s;
+            }
+        }
+    };
+
     private final IBinder mBinder = new GatewayService.LocalBinder();
     public class LocalBinder extends Binder {
         GatewayService getService() {
@@ -134,7 +206,7 @@ public class GatewayService extends Service implements BleManagerCallbacks {
     @Override
     public void onCreate() {
         super.onCreate();
-        mLocalBroadcastManager = LocalBroadcastManager.getInstance(this);
+        mEvents = ((BLE_GW_Application) getApplication()).getEvents();
 
         // Get a unique id so we can distinguish different devices.
         String deviceId = Settings.Secure.getString(getApplicationContext().getContentResolver(), Settings.Secure.ANDROID_ID);
@@ -143,22 +215,78 @@ public class GatewayService extends Service implements BleManagerCallbacks {
                     Build.MANUFACTURER, Build.MODEL, Build.VERSION.SDK_INT, Build.VERSION.RELEASE);
         }
         mMqtt = new MqttForwarder(getApplicationContext(), deviceId, mMqttCallback);
+        mGateway = new Gateway<>(this, mMainLoop, schedulerConfig(),
+                new PublishPipeline(mMqtt, publishConfig(deviceId)), mGatewayListener);
         try {
             mMqtt.connect();
-        } catch (MqttException e) {
+        } catch (TransportException e) {
             Log.i(TAG, "Couldn't connect to MQTT-Broker!", e);
         }
+
+        mGateway.start();
+
+        if (BLE_GW_Application.BLEpresenceScan) {
+            mPresence = new PresenceScanner(this::onTagAdvertising);
+        }
+
+        if (BLE_GW_Application.MQTTmetricsInterval > 0) {
+            mMetrics = new MetricsReporter(mGateway, deviceId, BLE_GW_Application.MQTTmetricsInterval);
+            mMetrics.start();
+        }
+    }
+
+    private ConnectionScheduler.Config schedulerConfig() {
+        ConnectionScheduler.Config config = new ConnectionScheduler.Config();
+        config.maxConnecting = BLE_GW_Application.BLEmaxConnecting;
+        config.connectSpacing = BLE_GW_Application.BLEconnectSpacing;
+        if (BLE_GW_Application.BLEpresenceScan) {
+            config.presenceTimeout = PresenceScanner.PRESENCE_TIMEOUT;
+        }
+        return config;
+    }
+
+    private PublishPipeline.Config publishConfig(String deviceId) {
+        PublishPipeline.Config config = new PublishPipeline.Config();
+        config.rangingTopic = BLE_GW_Application.MQTTtopic;
+        config.useTagName = BLE_GW_Application.MQTTname;
+        config.batch = BLE_GW_Application.MQTTbatch;
+        config.batchWindow = BLE_GW_Application.MQTTbatchWindow;
+        config.batchSize = BLE_GW_Application.MQTTbatchSize;
+        config.compact = BLE_GW_Application.MQTTcompact;
+        if (BLE_GW_Application.MQTTconflateRate > 0) {
+            config.conflate = true;
+            config.conflateRate = BLE_GW_Application.MQTTconflateRate;
+        }
+        config.targetLatency = BLE_GW_Application.MQTTtargetLatency;
+        config.gatewayId = deviceId;
+        try {
+            config.qosPolicy = QosPolicy.parse(BLE_GW_Application.MQTTqos);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Invalid QoS policy '" + BLE_GW_Application.MQTTqos + "', using defaults", e);
+        }
+        try {
+            config.overflowPolicy = OutboundQueue.OverflowPolicy.parse(BLE_GW_Application.MQTToverflow);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Invalid overflow policy '" + BLE_GW_Application.MQTToverflow + "', using default", e);
+        }
+        config.spoolDir = new File(getFilesDir(), SPOOL_DIR);
+        config.spoolSize = BLE_GW_Application.MQTTspoolSize * 1024L * 1024L;
+        config.replayRate = BLE_GW_Application.MQTTreplayRate;
+        // Same clock as the arrival stamps taken in RangingDataCallback
+        config.clock = SystemClock::elapsedRealtimeNanos;
+        return config;
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         int r = super.onStartCommand(intent, flags, startId);
 
-        // Look if there is any device saved for auto reconnect
-        String device = Preferences.getPrefs("reconnectTag", getApplicationContext());
-        if (!device.equals("notfound")){
-            deviceConnect(new GattConnection(device, GattConnection.NOT_STARTED));
+        // Bring all known tags back after a reboot or restart of the service
+        if (!mWarmStarted) {
+            mWarmStarted = true;
+            warmStart();
         }
+        updatePresenceScan();
 
         // Show service notification
         updateForegroundNotification();
@@ -167,17 +295,62 @@ public class GatewayService extends Service implements BleManagerCallbacks {
     }
 
     /**
-     * Attempt to establish connection with device
+     * Queue connections to all known tags the user didn't disconnect, most recently active first.
+     */
+    private void warmStart() {
+        Context context = getApplicationContext();
+        BLE_GW_Application.migrateReconnectTag(context);
+        List<GattConnection> connections = new ArrayList<>();
+        for (String address : BLE_GW_Application.KnownBeacons.keySet()) {
+            if (BLE_GW_Application.isAutoConnect(address, context)) {
+                GattConnection connection = new GattConnection(address, GattConnection.NOT_STARTED);
+                connection.setLastActivity(BLE_GW_Application.getLastActivity(address, context));
+                connections.add(connection);
+            }
+        }
+        mGateway.warmStart(connections);
+    }
+
+    /**
+     * Queue a connection to the device, see {@link ConnectionScheduler} for the order
      * @param connection                    target device
      */
     public void deviceConnect(GattConnection connection) {
-        String deviceAddress = connection.getServerAddr();
+        mGateway.connect(connection);
+        updatePresenceScan();
+    }
 
-        if (connection.getConnectionState() == CONNECTING ||
-            connection.getConnectionState() == CONNECTED) {
-            Log.i(TAG, "Ignoring deviceConnect(" + deviceAddress + ") because already connected");
-            return;
+    /**
+     * Scan for the known tags in the background, so the scheduler knows which ones are in range.
+     */
+    private void updatePresenceScan() {
+        if (mPresence != null) {
+            mPresence.update(BLE_GW_Application.KnownBeacons.keySet());
         }
+    }
+
+    /**
+     * Disconnect with device
+     * @param connection                    target device
+     * @throws IllegalArgumentException     if device is unknown
+     */
+    public void deviceDisconnect(GattConnection connection) {
+        mGateway.disconnect(connection);
+    }
+
+    /**
+     * A known tag was seen advertising, parked tags are connected again. Safe to call from any
+     * thread
+     * @param address                       address of the tag
+     * @param rssi                          signal strength in dBm
+     */
+    public void onTagAdvertising(String address, int rssi) {
+        mMainHandler.post(() -> mGateway.onAdvertising(address, rssi));
+    }
+
+    @Override
+    public void connect(GattConnection connection) {
+        String deviceAddress = connection.getServerAddr();
 
         TagGattManager tagConnection = mConnections.get(deviceAddress);
         if (tagConnection ==  null) {
@@ -197,42 +370,37 @@ public class GatewayService extends Service implements BleManagerCallbacks {
                 .useAutoConnect(false)
                 .enqueue();
         tagConnection.setConnPriority();
-        changeConnState(connection, CONNECTING);
         mConnections.put(deviceAddress, tagConnection);
     }
 
-    /**
-     * Disconnect with device
-     * @param connection                    target device
-     * @throws IllegalArgumentException     if device is unknown
-     */
-    public void deviceDisconnect(GattConnection connection) {
-        String deviceAddress = connection.getServerAddr();
-
-        TagGattManager tagConnection = mConnections.get(deviceAddress);
-        if (tagConnection ==  null) {
-            throw new IllegalArgumentException("unknown device");
+    @Override
+    public void disconnect(GattConnection connection) {
+        TagGattManager tagConnection = mConnections.get(connection.getServerAddr());
+        if (tagConnection != null) {
+            tagConnection
+                    .disconnect()
+                    .enqueue();
         }
+    }
 
-        Log.i(TAG, "deviceDisconnect(" + deviceAddress + ")");
-        tagConnection
-                .disconnect()
-                .enqueue();
-        changeConnState(connection, DISCONNECTING);
-        tagConnection.setAutoReconnect(false); // User issued disconnect, disable auto reconnect
+    @Override
+    public void release(GattConnection connection) {
+        mConnections.remove(connection.getServerAddr());
     }
 
     /**
-     * Broadcast that this device has new ranging information available
+     * Broadcast that this device has new ranging information available. Called from the ranging
+     * ingest worker thread.
      * @param connection                    target device
      */
-    public void deviceNotifyUpdate(GattConnection connection) {
+    private void deviceNotifyUpdate(GattConnection connection) {
         broadcastChangedState(connection.getServerAddr());
 
         // Throttle service notification updates
         long now = System.currentTimeMillis();
         if (now-mLastDeviceUpdateNotification > 5000) {
-            updateForegroundNotification();
+            // mConnections is only safe to iterate on the main thread
+            mMainHandler.post(this::updateForegroundNotification);
             mLastDeviceUpdateNotification = now;
         }
     }
@@ -240,6 +408,13 @@ public class GatewayService extends Service implements BleManagerCallbacks {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        if (mMetrics != null) {
+            mMetrics.stop();
+        }
+        if (mPresence != null) {
+            mPresence.stop();
+        }
+        mGateway.stop();
         Log.i(TAG, "GW Service destroyed ...");
     }
 
@@ -252,18 +427,7 @@ public class GatewayService extends Service implements BleManagerCallbacks {
     @Override
     public void onDeviceConnected(@NonNull final BluetoothDevice device) {
         Log.i(TAG, "Device connected: "+device.getAddress());
-        TagGattManager tag = mConnections.get(device.getAddress());
-        if (tag != null) {
-            changeConnState(tag.getConnection(), CONNECTED);
-
-            MqttMessage msg = new MqttMessage();
-            msg.setPayload(device.getAddress().getBytes());
-            try {
-                getMqtt().publish("ONLINE", msg);
-            } catch (MqttException e) {
-                Log.w(TAG, "Couldn't publish ONLINE message to MQTT-Broker", e);
-            }
-        }
+        mGateway.onDeviceConnected(device.getAddress());
     }
 
     @Override
@@ -271,14 +435,7 @@ public class GatewayService extends Service implements BleManagerCallbacks {
         Log.i(TAG, "Device '" + device.getAddress() + "' is disconnecting from gateway..");
 
         broadcastChangedState(device.getAddress());
-
-        MqttMessage msg = new MqttMessage();
-        msg.setPayload(device.getAddress().getBytes());
-        try {
-            getMqtt().publish("OFFLINE", msg);
-        } catch (MqttException e) {
-            Log.w(TAG, "Couldn't publish OFFLINE message to MQTT-Broker", e);
-        }
+        mGateway.onDeviceDisconnecting(device.getAddress());
     }
 
     @Override
@@ -291,50 +448,19 @@ public class GatewayService extends Service implements BleManagerCallbacks {
         }
 
         tag.close();
-
-        // Update connection state
-        changeConnState(tag.getConnection(), NOT_STARTED);
-
-        if (tag.isAutoReconnect()) {
-            Log.i(TAG, "Connection to GATT Peripheral was closed unexpectedly! reconnecting..");
-
-            changeConnState(tag.getConnection(), CONNECTING);
-            final BluetoothManager bluetoothManager =
-                    (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
-            BluetoothAdapter bluetoothAdapter = bluetoothManager.getAdapter();
-            BluetoothDevice bluetoothDevice = bluetoothAdapter.getRemoteDevice(device.getAddress());
-
-            tag.setGattCallbacks(this);
-            tag
-                    .connect(bluetoothDevice)
-                    .retry(3, 50)
-                    .useAutoConnect(false)
-                    .enqueue();
-            tag.setConnPriority();
-        } else {
-            mConnections.remove(device.getAddress());
-            // Stop service when there are no connected tags
-            if (mConnections.isEmpty()) {
-                stopSelf();
-            }
-
-            broadcastChangedState(device.getAddress());
-            Log.i(TAG, "Closed connection to GATT Peripheral...");
-        }
+        mGateway.onDeviceDisconnected(device.getAddress());
     }
 
     @Override
     public void onLinkLossOccurred(@NonNull final BluetoothDevice device) {
+        mGateway.onLinkLoss(device.getAddress());
     }
 
     @Override
     public void onServicesDiscovered(@NonNull final BluetoothDevice device,
                                      final boolean optionalServicesFound) {
         Log.i(TAG,"Discovered services on GATT Peripheral");
-        TagGattManager tag = mConnections.get(device.getAddress());
-        if (tag != null) {
-            changeConnState(tag.getConnection(), DISCOVERED);
-        }
+        mGateway.onServicesDiscovered(device.getAddress());
     }
 
     @Override
@@ -375,53 +501,27 @@ public class GatewayService extends Service implements BleManagerCallbacks {
     public void onDeviceNotSupported(@NonNull final BluetoothDevice device) {
     }
 
-    private void changeConnState(GattConnection connection, int newState) {
-        connection.setConnectionState(newState);
-
-        String stringState;
-        switch(newState){
-            case DISCONNECTING:
-                stringState = "DISCONNECTING";
-                break;
-            case CONNECTED:
-                stringState = "CONNECTED";
-                break;
-            case NOT_STARTED:
-                stringState = "DISCONNECTED";
-                break;
-            case CONNECTING:
-                stringState = "CONNECTING";
-                break;
-            case DISCOVERED:
-                stringState = "DISCOVERED";
-                break;
-            default:
-                stringState = "UNKNOWN #" + newState;
-                break;
-
-        }
-        Log.i(TAG,"Connection state of device '"+connection.getServerAddr()+"' was changed to: "+stringState);
-
-        broadcastChangedState(connection.getServerAddr());
-        updateForegroundNotification();
-    }
-
     private Notification buildForegroundNotification() {
         Intent notificationIntent = new Intent(this, StatusScreenActivity.class);
         PendingIntent pendingIntent = PendingIntent.getActivity(this, 0, notificationIntent, 0);
 
+        // Average over the tags that deliver frames, connecting ones would drag it down
         float averageUpdateRate = 0.0f;
         int connectedDevices = 0;
+        int rangingDevices = 0;
         for (TagGattManager tag : mConnections.values()) {
-            averageUpdateRate += tag.getConnection().getURate();
             int state = tag.getConnection().getConnectionState();
             if (state == CONNECTING || state == CONNECTED || state == DISCOVERED) {
                 connectedDevices++;
             }
+            if (state == CONNECTED || state == DISCOVERED) {
+                averageUpdateRate += tag.getConnection().getURate();
+                rangingDevices++;
+            }
         }
 
-        if (!mConnections.isEmpty()) {
-            averageUpdateRate /= mConnections.size();
+        if (rangingDevices > 0) {
+            averageUpdateRate /= rangingDevices;
         }
 
         String mqttState = getString(mCachedMqttIsConnected ? R.string.subtitle_mqtt_on : R.string.subtitle_mqtt_off);
@@ -453,15 +553,11 @@ public class GatewayService extends Service implements BleManagerCallbacks {
     }
 
     private void broadcastChangedState(String deviceAddress) {
-        Intent intent = new Intent(BROADCAST_CHANGED_STATE);
-        intent.putExtra("deviceAddress", deviceAddress);
-        mLocalBroadcastManager.sendBroadcast(intent);
+        mEvents.postTagChanged(deviceAddress);
     }
 
     private void broadcastMqttConnection(boolean isConnected) {
-        Intent intent = new Intent(BROADCAST_MQTT_CONNECTION);
-        intent.putExtra("connected", isConnected);
-        mLocalBroadcastManager.sendBroadcast(intent);
+        mEvents.postMqttConnection(isConnected);
         mCachedMqttIsConnected = isConnected;
     }
 
@@ -469,7 +565,7 @@ public class GatewayService extends Service implements BleManagerCallbacks {
         return mConnections;
     }
 
-    public MqttForwarder getMqtt() {
-        return mMqtt;
+    public Gateway<GattConnection> getGateway() {
+        return mGateway;
     }
 }
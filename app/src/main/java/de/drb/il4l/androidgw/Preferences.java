@@ -82,4 +82,12 @@ public class Preferences {
         return prefs.getString(key, defaultValue);
     }
 
+    public static int getIntPrefs(String key, Context context, int defaultValue){
+        try {
+            return Integer.parseInt(getPrefs(key, context, String.valueOf(defaultValue)).trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
 }
@@ -21,7 +21,22 @@
  */
 package de.drb.il4l.androidgw;
 
+import static de.drb.il4l.androidgw.BLE_GW_Application.MQTTbatch;
+import static de.drb.il4l.androidgw.BLE_GW_Application.MQTTbatchSize;
+import static de.drb.il4l.androidgw.BLE_GW_Application.MQTTcompact;
+import static de.drb.il4l.androidgw.BLE_GW_Application.MQTTbatchWindow;
 import static de.drb.il4l.androidgw.BLE_GW_Application.MQTTname;
+import static de.drb.il4l.androidgw.BLE_GW_Application.MQTTqos;
+import static de.drb.il4l.androidgw.BLE_GW_Application.MQTToverflow;
+import static de.drb.il4l.androidgw.BLE_GW_Application.MQTTconflateRate;
+import static de.drb.il4l.androidgw.BLE_GW_Application.MQTTtargetLatency;
+import static de.drb.il4l.androidgw.BLE_GW_Application.MQTTreplayRate;
+import static de.drb.il4l.androidgw.BLE_GW_Application.MQTTmetricsInterval;
+import static de.drb.il4l.androidgw.BLE_GW_Application.BLEmaxConnecting;
+import static de.drb.il4l.androidgw.BLE_GW_Application.BLEconnectSpacing;
+import static de.drb.il4l.androidgw.BLE_GW_Application.BLEpresenceScan;
+import static de.drb.il4l.androidgw.BLE_GW_Application.BLEscanFilter;
+import static de.drb.il4l.androidgw.BLE_GW_Application.MQTTspoolSize;
 import static de.drb.il4l.androidgw.BLE_GW_Application.MQTTtopic;
 import static de.drb.il4l.androidgw.BLE_GW_Application.serverUri;
 import static de.drb.il4l.androidgw.BLE_GW_Application.showPOS;
@@ -52,11 +67,41 @@ public class PrefsActivity extends AppCompatActivity {
         TextInputEditText showPos = findViewById(R.id.showPos);
         TextInputEditText mqttTopic = findViewById(R.id.mqttTopic);
         TextInputEditText mqttName = findViewById(R.id.mqttName);
+        TextInputEditText mqttBatch = findViewById(R.id.mqttBatch);
+        TextInputEditText mqttBatchWindow = findViewById(R.id.mqttBatchWindow);
+        TextInputEditText mqttBatchSize = findViewById(R.id.mqttBatchSize);
+        TextInputEditText mqttCompact = findViewById(R.id.mqttCompact);
+        TextInputEditText mqttQos = findViewById(R.id.mqttQos);
+        TextInputEditText mqttOverflow = findViewById(R.id.mqttOverflow);
+        TextInputEditText mqttConflateRate = findViewById(R.id.mqttConflateRate);
+        TextInputEditText mqttTargetLatency = findViewById(R.id.mqttTargetLatency);
+        TextInputEditText mqttSpoolSize = findViewById(R.id.mqttSpoolSize);
+        TextInputEditText mqttReplayRate = findViewById(R.id.mqttReplayRate);
+        TextInputEditText mqttMetricsInterval = findViewById(R.id.mqttMetricsInterval);
+        TextInputEditText bleMaxConnecting = findViewById(R.id.bleMaxConnecting);
+        TextInputEditText bleConnectSpacing = findViewById(R.id.bleConnectSpacing);
+        TextInputEditText bleScanFilter = findViewById(R.id.bleScanFilter);
+        TextInputEditText blePresenceScan = findViewById(R.id.blePresenceScan);
 
         wlsip.setText(serverUri);
         showPos.setText(String.valueOf(showPOS));
         mqttTopic.setText(MQTTtopic);
         mqttName.setText(String.valueOf(MQTTname));
+        mqttBatch.setText(String.valueOf(MQTTbatch));
+        mqttBatchWindow.setText(String.valueOf(MQTTbatchWindow));
+        mqttBatchSize.setText(String.valueOf(MQTTbatchSize));
+        mqttCompact.setText(String.valueOf(MQTTcompact));
+        mqttQos.setText(MQTTqos);
+        mqttOverflow.setText(MQTToverflow);
+        mqttConflateRate.setText(String.valueOf(MQTTconflateRate));
+        mqttTargetLatency.setText(String.valueOf(MQTTtargetLatency));
+        mqttSpoolSize.setText(String.valueOf(MQTTspoolSize));
+        mqttReplayRate.setText(String.valueOf(MQTTreplayRate));
+        mqttMetricsInterval.setText(String.valueOf(MQTTmetricsInterval));
+        bleMaxConnecting.setText(String.valueOf(BLEmaxConnecting));
+        bleConnectSpacing.setText(String.valueOf(BLEconnectSpacing));
+        bleScanFilter.setText(String.valueOf(BLEscanFilter));
+        blePresenceScan.setText(String.valueOf(BLEpresenceScan));
 
         Toolbar toolbar = findViewById(R.id.toolbar);
         setSupportActionBar(toolbar);
@@ -84,16 +129,67 @@ public class PrefsActivity extends AppCompatActivity {
         TextInputEditText showPos = findViewById(R.id.showPos);
         TextInputEditText mqttTopic = findViewById(R.id.mqttTopic);
         TextInputEditText mqttName = findViewById(R.id.mqttName);
+        TextInputEditText mqttBatch = findViewById(R.id.mqttBatch);
+        TextInputEditText mqttBatchWindow = findViewById(R.id.mqttBatchWindow);
+        TextInputEditText mqttBatchSize = findViewById(R.id.mqttBatchSize);
+        TextInputEditText mqttCompact = findViewById(R.id.mqttCompact);
+        TextInputEditText mqttQos = findViewById(R.id.mqttQos);
+        TextInputEditText mqttOverflow = findViewById(R.id.mqttOverflow);
+        TextInputEditText mqttConflateRate = findViewById(R.id.mqttConflateRate);
+        TextInputEditText mqttTargetLatency = findViewById(R.id.mqttTargetLatency);
+        TextInputEditText mqttSpoolSize = findViewById(R.id.mqttSpoolSize);
+        TextInputEditText mqttReplayRate = findViewById(R.id.mqttReplayRate);
+        TextInputEditText mqttMetricsInterval = findViewById(R.id.mqttMetricsInterval);
+        TextInputEditText bleMaxConnecting = findViewById(R.id.bleMaxConnecting);
+        TextInputEditText bleConnectSpacing = findViewById(R.id.bleConnectSpacing);
+        TextInputEditText bleScanFilter = findViewById(R.id.bleScanFilter);
+        TextInputEditText blePresenceScan = findViewById(R.id.blePresenceScan);
 
         Preferences.setPrefs("WLSip", wlsip.getText().toString(),getApplicationContext());
         Preferences.setPrefs("showPos", showPos.getText().toString(),getApplicationContext());
         Preferences.setPrefs("mqttTopic", mqttTopic.getText().toString(),getApplicationContext());
         Preferences.setPrefs("mqttName", mqttName.getText().toString(),getApplicationContext());
+        Preferences.setPrefs("mqttBatch", mqttBatch.getText().toString(),getApplicationContext());
+        Preferences.setPrefs("mqttBatchWindow", mqttBatchWindow.getText().toString(),getApplicationContext());
+        Preferences.setPrefs("mqttBatchSize", mqttBatchSize.getText().toString(),getApplicationContext());
+        Preferences.setPrefs("mqttCompact", mqttCompact.getText().toString(),getApplicationContext());
+        Preferences.setPrefs("mqttQos", mqttQos.getText().toString(),getApplicationContext());
+        Preferences.setPrefs("mqttOverflow", mqttOverflow.getText().toString(),getApplicationContext());
+        Preferences.setPrefs("mqttConflateRate", mqttConflateRate.getText().toString(),getApplicationContext());
+        Preferences.setPrefs("mqttTargetLatency", mqttTargetLatency.getText().toString(),getApplicationContext());
+        Preferences.setPrefs("mqttSpoolSize", mqttSpoolSize.getText().toString(),getApplicationContext());
+        Preferences.setPrefs("mqttReplayRate", mqttReplayRate.getText().toString(),getApplicationContext());
+        Preferences.setPrefs("mqttMetricsInterval", mqttMetricsInterval.getText().toString(),getApplicationContext());
+        Preferences.setPrefs("bleMaxConnecting", bleMaxConnecting.getText().toString(),getApplicationContext());
+        Preferences.setPrefs("bleConnectSpacing", bleConnectSpacing.getText().toString(),getApplicationContext());
+        Preferences.setPrefs("bleScanFilter", bleScanFilter.getText().toString(),getApplicationContext());
+        Preferences.setPrefs("blePresenceScan", blePresenceScan.getText().toString(),getApplicationContext());
 
         serverUri = wlsip.getText().toString();
         showPOS = Boolean.parseBoolean(showPos.getText()+"");
         MQTTtopic = mqttTopic.getText().toString();
         MQTTname = Boolean.parseBoolean(mqttName.getText()+"");
+        MQTTbatch = Boolean.parseBoolean(mqttBatch.getText()+"");
+        MQTTbatchWindow = Preferences.getIntPrefs("mqttBatchWindow", getApplicationContext(), MQTTbatchWindow);
+        MQTTbatchSize = Preferences.getIntPrefs("mqttBatchSize", getApplicationContext(), MQTTbatchSize);
+        MQTTcompact = Boolean.parseBoolean(mqttCompact.getText()+"");
+        MQTTqos = mqttQos.getText().toString();
+        MQTToverflow = mqttOverflow.getText().toString();
+        MQTTconflateRate = Preferences.getIntPrefs("mqttConflateRate", getApplicationContext(), MQTTconflateRate);
+        MQTTtargetLatency = Preferences.getIntPrefs("mqttTargetLatency", getApplicationContext(), MQTTtargetLatency);
+        MQTTspoolSize = Preferences.getIntPrefs("mqttSpoolSize", getApplicationContext(), MQTTspoolSize);
+        MQTTreplayRate = Preferences.getIntPrefs("mqttReplayRate", getApplicationContext(), MQTTreplayRate);
+        MQTTmetricsInterval = Preferences.getIntPrefs("mqttMetricsInterval", getApplicationContext(), MQTTmetricsInterval);
+        BLEmaxConnecting = Preferences.getIntPrefs("bleMaxConnecting", getApplicationContext(), BLEmaxConnecting);
+        BLEconnectSpacing = Preferences.getIntPrefs("bleConnectSpacing", getApplicationContext(), BLEconnectSpacing);
+        BLEscanFilter = Boolean.parseBoolean(bleScanFilter.getText()+"");
+        BLEpresenceScan = Boolean.parseBoolean(blePresenceScan.getText()+"");
+
+        // The ranging topic applies right away, the other MQTT settings after a restart
+        GatewayService gatewayService = ((BLE_GW_Application) getApplication()).getGatewayService();
+        if (gatewayService != null) {
+            gatewayService.getGateway().getPublisher().setRangingTopic(MQTTtopic, MQTTname);
+        }
 
         Toast toast = Toast.makeText(getApplicationContext(), R.string.settings_saved, Toast.LENGTH_SHORT);
         toast.show();
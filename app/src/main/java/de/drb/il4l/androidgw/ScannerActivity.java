@@ -29,6 +29,8 @@ import android.bluetooth.BluetoothDevice;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.Settings;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -51,6 +53,7 @@ import butterknife.ButterKnife;
 import butterknife.OnClick;
 import de.drb.il4l.androidgw.adapter.DevicesAdapter;
 import de.drb.il4l.androidgw.adapter.DiscoveredBluetoothDevice;
+import de.drb.il4l.androidgw.scan.ScanStats;
 import de.drb.il4l.androidgw.utils.Utils;
 import de.drb.il4l.androidgw.viewmodels.GattConnection;
 import de.drb.il4l.androidgw.viewmodels.ScannerStateLiveData;
@@ -65,9 +68,11 @@ public class ScannerActivity extends AppCompatActivity implements DevicesAdapter
     private static final int REQUEST_ACCESS_FINE_LOCATION = 1023; // random number
     private static final int REQUEST_ACCESS_BACKGROUND_LOCATION = 1024; // random number
     private static final int ASK_MULTIPLE_PERMISSION_REQUEST_CODE = 1025;
+    private static final long SCAN_STATS_INTERVAL = 1000;
 
     private ScannerViewModel mScannerViewModel;
     private DevicesAdapter mDevicesAdapter;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
 
     @BindView(R.id.state_scanning)
     View mScanningView;
@@ -114,12 +119,36 @@ public class ScannerActivity extends AppCompatActivity implements DevicesAdapter
         clear();
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        mHandler.post(mShowScanStats);
+    }
+
     @Override
     protected void onStop() {
         super.onStop();
+        mHandler.removeCallbacks(mShowScanStats);
         stopScan();
     }
 
+    /**
+     * Shows the CPU wakeups and results per second of the running scan below the title.
+     */
+    private final Runnable mShowScanStats = new Runnable() {
+        @Override
+        public void run() {
+            final ScanStats stats = mScannerViewModel.getScanStats();
+            if (mScannerViewModel.getScannerState().isScanning()) {
+                getSupportActionBar().setSubtitle(getString(R.string.scan_stats,
+                        stats.getWakeupRate(), stats.getResultRate(), stats.getMode()));
+            } else {
+                getSupportActionBar().setSubtitle(null);
+            }
+            mHandler.postDelayed(this, SCAN_STATS_INTERVAL);
+        }
+    };
+
     @Override
     public boolean onCreateOptionsMenu(final Menu menu) {
         getMenuInflater().inflate(R.menu.filter, menu);
@@ -203,7 +232,10 @@ public class ScannerActivity extends AppCompatActivity implements DevicesAdapter
             BLE_GW_Application.saveBeacons(getApplicationContext());
 
             GatewayService gatewayService = ((BLE_GW_Application) getApplication()).getGatewayService();
-            gatewayService.deviceConnect(new GattConnection(bt_dev.getAddress(), 0));
+            GattConnection connection = new GattConnection(bt_dev.getAddress(), 0);
+            connection.setRssi(bt_dev.getRssi());
+            connection.setImportance(GattConnection.IMPORTANCE_USER);
+            gatewayService.deviceConnect(connection);
 
             // send simple notification
             Context context = getApplicationContext();
@@ -22,12 +22,10 @@
 package de.drb.il4l.androidgw;
 
 import static de.drb.il4l.androidgw.BLE_GW_Application.KnownBeacons;
+import static de.drb.il4l.androidgw.BLE_GW_Application.UI_REFRESH_INTERVAL;
 
 import android.annotation.SuppressLint;
-import android.content.BroadcastReceiver;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.Menu;
@@ -41,7 +39,6 @@ import androidx.lifecycle.Lifecycle;
 import androidx.lifecycle.LifecycleEventObserver;
 import androidx.lifecycle.LifecycleOwner;
 import androidx.lifecycle.ViewModelProviders;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import androidx.recyclerview.widget.DividerItemDecoration;
 import androidx.recyclerview.widget.ItemTouchHelper;
 import androidx.recyclerview.widget.LinearLayoutManager;
@@ -52,6 +49,8 @@ import java.util.ArrayList;
 import java.util.List;
 
 import de.drb.il4l.androidgw.adapter.BeaconAdapter;
+import de.drb.il4l.androidgw.adapter.UiRefreshCoordinator;
+import de.drb.il4l.androidgw.events.GatewayEvents;
 import de.drb.il4l.androidgw.viewmodels.GattConnection;
 import de.drb.il4l.androidgw.viewmodels.StatusViewModel;
 public class StatusScreenActivity extends AppCompatActivity implements BeaconAdapter.OnItemClickListener {
@@ -60,7 +59,12 @@ public class StatusScreenActivity extends AppCompatActivity implements BeaconAda
 
     private StatusViewModel mStatusViewModel;
     public static BeaconAdapter beaconAdapter;
-    private BroadcastReceiver broadcastReceiver;
+    private GatewayEvents mEvents;
+
+    private final GatewayEvents.MqttListener mMqttListener = connected -> {
+        getSupportActionBar().setSubtitle(getString(connected ? R.string.subtitle_mqtt_on : R.string.subtitle_mqtt_off));
+        mStatusViewModel.getMqttConnection().setValue(connected);
+    };
 
     // Observe service connection changes
     private ObservableMap.OnMapChangedCallback<ObservableMap<String, TagGattManager>, String, TagGattManager> mObserveCallback = new ObservableMap.OnMapChangedCallback<ObservableMap<String, TagGattManager>, String, TagGattManager>() {
@@ -99,10 +103,14 @@ public class StatusScreenActivity extends AppCompatActivity implements BeaconAda
         recyclerView.addItemDecoration(new DividerItemDecoration(this, DividerItemDecoration.VERTICAL));
         ((SimpleItemAnimator) recyclerView.getItemAnimator()).setSupportsChangeAnimations(false);
 
+        mEvents = ((BLE_GW_Application) getApplication()).getEvents();
         beaconAdapter = new BeaconAdapter(this);
         beaconAdapter.setOnItemClickListener(this);
         recyclerView.setAdapter(beaconAdapter);
         mStatusViewModel.getConnections().observe(this, beaconAdapter::submitList);
+
+        // Refresh the rows from tag changes (issued from GatewayService) while visible
+        new UiRefreshCoordinator(this, mEvents, beaconAdapter, UI_REFRESH_INTERVAL);
         //badapter.notifyItemChanged(1, null);
 
         // Add handler for beacon removal via swipe
@@ -142,34 +150,6 @@ public class StatusScreenActivity extends AppCompatActivity implements BeaconAda
                 }
             }
         });
-
-        // Listen for BLE device state changes (issued from GatewayService) in order to
-        // notify our BeaconAdapter.
-        broadcastReceiver = new BroadcastReceiver() {
-            @SuppressLint("NotifyDataSetChanged")
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                if (GatewayService.BROADCAST_CHANGED_STATE.equals(intent.getAction())) {
-                    // Try to find device
-                    String deviceAddress = intent.getStringExtra("deviceAddress");
-                    int position = beaconAdapter.getPositionOfDevice(deviceAddress);
-                    if (position >= 0) {
-                        beaconAdapter.notifyItemChanged(position);
-                    } else {
-                        // We can't find the device/beacon that changed so just refresh everything..
-                        beaconAdapter.notifyDataSetChanged();
-                    }
-                } else if (GatewayService.BROADCAST_MQTT_CONNECTION.equals(intent.getAction())) {
-                    boolean mqttActive = intent.getBooleanExtra("connected", false);
-                    if (mqttActive) {
-                        getSupportActionBar().setSubtitle(getString(R.string.subtitle_mqtt_on));
-                    } else {
-                        getSupportActionBar().setSubtitle(getString(R.string.subtitle_mqtt_off));
-                    }
-                    mStatusViewModel.getMqttConnection().postValue(mqttActive);
-                }
-            }
-        };
     }
 
     @Override
@@ -180,10 +160,9 @@ public class StatusScreenActivity extends AppCompatActivity implements BeaconAda
     @Override
     protected void onResume() {
         super.onResume();
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(GatewayService.BROADCAST_CHANGED_STATE);
-        filter.addAction(GatewayService.BROADCAST_MQTT_CONNECTION);
-        LocalBroadcastManager.getInstance(this).registerReceiver(broadcastReceiver, filter);
+        mEvents.addMqttListener(mMqttListener);
+        // Catch up on changes while paused
+        mMqttListener.onMqttConnectionChanged(mEvents.isMqttConnected());
     }
 
     @SuppressLint("NotifyDataSetChanged")
@@ -198,7 +177,7 @@ public class StatusScreenActivity extends AppCompatActivity implements BeaconAda
     protected void onPause() {
         super.onPause();
 
-        LocalBroadcastManager.getInstance(this).unregisterReceiver(broadcastReceiver);
+        mEvents.removeMqttListener(mMqttListener);
     }
 
     @Override
@@ -230,17 +209,19 @@ public class StatusScreenActivity extends AppCompatActivity implements BeaconAda
     public void onItemClick(@NonNull GattConnection gattConnection) {
         GatewayService gatewayService = ((BLE_GW_Application) getApplication()).getGatewayService();
 
-        if(gattConnection.getConnectionState()>0){
+        // Tapping a parked tag retries it right away
+        if(gattConnection.getConnectionState()>0 && gattConnection.getConnectionState()!=GattConnection.PARKED){
             Log.i(TAG, "User wants to disconnect with device " + gattConnection.getServerAddr());
             gatewayService.deviceDisconnect(gattConnection);
-            // write action to prefs - delete autoconnect to this device
-            Preferences.delPrefs("reconnectTag", getApplicationContext());
+            // write action to prefs - don't connect to this device after a restart
+            BLE_GW_Application.setAutoConnect(gattConnection.getServerAddr(), false, getApplicationContext());
         } else {
             // connect to device
             Log.i(TAG, "User wants to connect to device " + gattConnection.getServerAddr());
+            gattConnection.setImportance(GattConnection.IMPORTANCE_USER);
             gatewayService.deviceConnect(gattConnection);
             // write action to prefs - after restart app will automatically connect to this device
-            Preferences.setPrefs("reconnectTag", gattConnection.getServerAddr(), getApplicationContext());
+            BLE_GW_Application.setAutoConnect(gattConnection.getServerAddr(), true, getApplicationContext());
         }
     }
 }
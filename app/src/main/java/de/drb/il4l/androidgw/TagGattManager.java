@@ -41,8 +41,6 @@ import de.drb.il4l.androidgw.viewmodels.GattConnection;
 
 import static no.nordicsemi.android.ble.ConnectionPriorityRequest.CONNECTION_PRIORITY_HIGH;
 
-import org.eclipse.paho.client.mqttv3.MqttException;
-
 /**
  * This class implements the ranging profile for DWM1001 tags. For each connection there will be
  * one instance of this class
@@ -66,25 +64,14 @@ public class TagGattManager extends BleManager {
     private BluetoothGattCharacteristic mBatLevel;
 
     private final GattConnection mConnection;
-    private boolean mAutoReconnect = true;
     private boolean mSupported = false;
-    private long mLastUpdateTime;
 
     public TagGattManager(@NonNull final Context context, GattConnection gattConnection) {
         super(context);
 
-        mLastUpdateTime = System.currentTimeMillis();
         mConnection = gattConnection;
     }
 
-    public boolean isAutoReconnect() {
-        return mAutoReconnect;
-    }
-
-    public void setAutoReconnect(boolean reconnect) {
-        mAutoReconnect = reconnect;
-    }
-
     public GattConnection getConnection() {
         return mConnection;
     }
@@ -103,35 +90,10 @@ public class TagGattManager extends BleManager {
     private	final RangingDataCallback mRangingCallback = new RangingDataCallback() {
         @Override
         public void onRangingChanged(@NonNull final BluetoothDevice device,
-                                   final Data data) {
-            refreshUpdateRate();
-
-            try {
-                GatewayService service = ((BLE_GW_Application)getContext().getApplicationContext()).getGatewayService();
-                service.getMqtt().publishRanging(getConnection(), data);
-
-                service.deviceNotifyUpdate(getConnection());
-            } catch (MqttException e) {
-                Log.w(TAG, "Failed to publish ranging data to MQTT-Broker", e);
-            }
-
-            if (BLE_GW_Application.showPOS) {
-                String s = "";
-                String[] arr;
-                try {
-                    arr = data.getStringValue(0).split(",");
-                    if (arr.length >= 3){
-                        for (int i=0; i<3; i++){
-                            if (i==0) s+="x:"+arr[i];
-                            if (i==1) s+=" y:"+arr[i];
-                            if (i==2) s+=" z:"+arr[i];
-
-                        }
-                    }
-                } catch (NullPointerException ignored){} //in case tag data is corrupted
-
-                BLE_GW_Application.debugPos = s;
-            }
+                                   final Data data, final long arrivalNanos) {
+            // Only copy the frame here, it is processed on the ingest worker thread.
+            GatewayService service = ((BLE_GW_Application)getContext().getApplicationContext()).getGatewayService();
+            service.getGateway().onNotification(mConnection, data.getValue(), arrivalNanos);
         }
 
         @Override
@@ -213,17 +175,4 @@ public class TagGattManager extends BleManager {
         requestConnectionPriority(CONNECTION_PRIORITY_HIGH).enqueue();
         requestMtu(240).enqueue();
     }
-
-    /**
-     * Refresh connection update rate
-     */
-    private void refreshUpdateRate() {
-        long now = System.currentTimeMillis();
-
-        long delta = now - mLastUpdateTime;
-        float updateRate = 1000.0f / delta;
-        mLastUpdateTime = now;
-
-        getConnection().setURate(updateRate);
-    }
 }
@@ -30,6 +30,7 @@ import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.GradientDrawable;
 import android.graphics.drawable.ShapeDrawable;
+import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -39,12 +40,18 @@ import android.widget.Toast;
 
 import androidx.annotation.ColorInt;
 import androidx.annotation.NonNull;
-import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.AsyncListDiffer;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.google.android.material.snackbar.Snackbar;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 import butterknife.BindView;
 import butterknife.ButterKnife;
@@ -52,16 +59,35 @@ import de.drb.il4l.androidgw.BLE_GW_Application;
 import de.drb.il4l.androidgw.GatewayService;
 import de.drb.il4l.androidgw.R;
 import de.drb.il4l.androidgw.StatusScreenActivity;
+import de.drb.il4l.androidgw.metrics.RateMeter;
 import de.drb.il4l.androidgw.viewmodels.GattConnection;
 
 /**
  * Provides beacon data bindings for recyclerview data.
  */
-public class BeaconAdapter extends RecyclerView.Adapter<BeaconAdapter.ViewHolder> {
-    private List<GattConnection> mConnections;
+public class BeaconAdapter extends RecyclerView.Adapter<BeaconAdapter.ViewHolder>
+        implements UiRefreshCoordinator.Target {
+    // Change payloads, each names the part of a row to rebind
+    static final Integer PAYLOAD_STATE = 1;
+    static final Integer PAYLOAD_RATE = 2;
+    static final Integer PAYLOAD_POSITION = 4;
+
+    // Diffs lists on a background thread, the current list must not be modified
+    private final AsyncListDiffer<GattConnection> mDiffer;
+    // Stats as shown at the last refresh, by address
+    private final Map<String, RowStats> mShownStats = new HashMap<>();
+    // Stable row ids by address, assigned in the order the tags are first shown
+    private final Map<String, Long> mItemIds = new HashMap<>();
+    private long mNextItemId = 0;
+    // List the row state was last pruned for
+    private List<GattConnection> mPrunedList;
     private OnItemClickListener mOnItemClickListener;
     private final StatusScreenActivity mActivity;
 
+    // Resolved once instead of on every bind
+    private final String mRateFormat;
+    private final SparseArray<String> mStateNames = new SparseArray<>();
+
     private GattConnection recentlyDeletedItem;
     private int recentlyDeletedItemPos;
     private String recentlyDeletedItemAddr;
@@ -74,62 +100,94 @@ public class BeaconAdapter extends RecyclerView.Adapter<BeaconAdapter.ViewHolder
     // Provide a suitable constructor (depends on the kind of dataset)
     public BeaconAdapter(final StatusScreenActivity activity) {
         mActivity = activity;
+        mDiffer = new AsyncListDiffer<>(this, new GattConnDiffCallback());
         setHasStableIds(true);
+
+        mRateFormat = activity.getString(R.string.status_urate);
+        mStateNames.put(-1, activity.getString(R.string.state_disconnecting));
+        mStateNames.put(0, activity.getString(R.string.state_not_started));
+        mStateNames.put(1, activity.getString(R.string.state_connecting));
+        mStateNames.put(2, activity.getString(R.string.state_connected));
+        mStateNames.put(3, activity.getString(R.string.state_services_found));
+        mStateNames.put(4, activity.getString(R.string.state_parked));
     }
 
+    /**
+     * Show a new list. The diff is calculated in the background, the adapter keeps showing the
+     * previous list until it is dispatched.
+     */
     public void submitList(List<GattConnection> newList) {
-        List<GattConnection> oldList = mConnections;
-        mConnections = newList;
-        DiffUtil.DiffResult result = DiffUtil.calculateDiff(new GattConnDiffCallback(oldList, newList));
-                /*new DiffUtil.Callback() {
-            @Override
-            public int getOldListSize() {
-                if (oldList != null) {
-                    return oldList.size();
-                }
-                return 0;
-            }
+        mDiffer.submitList(newList);
+    }
 
-            @Override
-            public int getNewListSize() {
-                return newList.size();
-            }
+    private GattConnection getItem(int position) {
+        return mDiffer.getCurrentList().get(position);
+    }
 
-            @Override
-            public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
-                GattConnection a = oldList != null ? oldList.get(oldItemPosition) : null;
-                GattConnection b = newList.get(oldItemPosition);
-                return b.equals(a);
+    /**
+     * Rebind the parts of the rows whose displayed stats differ from the last refresh. Rows that
+     * were reported changed get their position rebound if it is shown.
+     */
+    @Override
+    public boolean refresh(@NonNull Set<String> changed) {
+        List<GattConnection> connections = mDiffer.getCurrentList();
+        if (mPrunedList != connections) {
+            prune(connections);
+        }
+
+        boolean live = false;
+        for (int pos = 0; pos < connections.size(); ++pos) {
+            GattConnection gconn = connections.get(pos);
+            String address = gconn.getServerAddr();
+            RowStats stats = mShownStats.get(address);
+            if (stats == null) {
+                stats = new RowStats();
+                mShownStats.put(address, stats);
             }
 
-            @Override
-            public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
-                return areItemsTheSame(oldItemPosition, newItemPosition);
+            int updated = stats.update(gconn);
+            if ((updated & PAYLOAD_STATE) != 0) {
+                notifyItemChanged(pos, PAYLOAD_STATE);
+            }
+            if ((updated & PAYLOAD_RATE) != 0) {
+                notifyItemChanged(pos, PAYLOAD_RATE);
             }
-        });*/
-        result.dispatchUpdatesTo(this);
+            if (showPOS && changed.contains(address)) {
+                notifyItemChanged(pos, PAYLOAD_POSITION);
+            }
+            live |= stats.rate != 0;
+        }
+        return live;
     }
 
-    public int getPositionOfDevice(String deviceAddress) {
-        for (int pos = 0; pos < getItemCount(); ++pos) {
-            if (deviceAddress.equals(mConnections.get(pos).getServerAddr())) {
-                return pos;
-            }
+    /**
+     * Forget the stats and ids of the rows that were removed.
+     */
+    private void prune(List<GattConnection> connections) {
+        Set<String> addresses = new HashSet<>();
+        for (GattConnection gconn : connections) {
+            addresses.add(gconn.getServerAddr());
         }
-        return -1;
+        mShownStats.keySet().retainAll(addresses);
+        mItemIds.keySet().retainAll(addresses);
+        mPrunedList = connections;
     }
 
     @Override
     public long getItemId(final int position) {
-        return mConnections.get(position).hashCode();
+        // The address identifies a row, the connection object is replaced on reconnect
+        String address = getItem(position).getServerAddr();
+        Long id = mItemIds.get(address);
+        if (id == null) {
+            id = mNextItemId++;
+            mItemIds.put(address, id);
+        }
+        return id;
     }
 
     @Override
     public int getItemCount() {
-        if (mConnections != null) {
-            return mConnections.size();
-        }
-        return 0;
+        return mDiffer.getCurrentList().size();
     }
 
 
@@ -148,48 +206,63 @@ public class BeaconAdapter extends RecyclerView.Adapter<BeaconAdapter.ViewHolder
     public void onBindViewHolder(ViewHolder holder, int position) {
         // - get element from dataset at this position
         // - replace the contents of the view with that element
-        final GattConnection gconn = mConnections.get(position);
+        final GattConnection gconn = getItem(position);
         //get the nr
         String nr = gconn.getServerAddr();
         String name = gconn.getName();
 
-        if (nr == name) {
+        if (nr.equals(name)) {
             holder.deviceName.setText(mActivity.getString(R.string.status_tag_addr, nr));
         } else {
             holder.deviceName.setText(mActivity.getString(R.string.status_tag_name, gconn.getName()));
         }
 
+        bindPosition(holder, gconn);
+        bindRate(holder, gconn);
+        bindState(holder, gconn);
+    }
+
+    // Rebind only the parts named by the payloads
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position, @NonNull List<Object> payloads) {
+        if (payloads.isEmpty()) {
+            onBindViewHolder(holder, position);
+            return;
+        }
+
+        int parts = 0;
+        for (Object payload : payloads) {
+            parts |= (Integer) payload;
+        }
+
+        final GattConnection gconn = getItem(position);
+        if ((parts & PAYLOAD_POSITION) != 0) {
+            bindPosition(holder, gconn);
+        }
+        if ((parts & PAYLOAD_RATE) != 0) {
+            bindRate(holder, gconn);
+        }
+        if ((parts & PAYLOAD_STATE) != 0) {
+            bindState(holder, gconn);
+        }
+    }
+
+    private void bindPosition(ViewHolder holder, GattConnection gconn) {
         if (showPOS){
             holder.deviceAddr.setText(BLE_GW_Application.debugPos);
         } else {
             holder.deviceAddr.setText(gconn.getServerAddr());
         }
+    }
 
-        holder.connURate.setText(mActivity.getString(R.string.status_urate, gconn.getURate()));
-        String connState = "";
-        switch(gconn.getConnectionState()){
-            case -1:
-                connState = mActivity.getString(R.string.state_disconnecting);
-                gconn.setURate(0.0f);
-                break;
-            case 0:
-                connState = mActivity.getString(R.string.state_not_started);
-                gconn.setURate(0.0f);
-                break;
-            case 1:
-                connState = mActivity.getString(R.string.state_connecting);
-                break;
-            case 2:
-                connState = mActivity.getString(R.string.state_connected);
-                break;
-            case 3:
-                connState = mActivity.getString(R.string.state_services_found);
-                break;
-            default:
-                connState = "NO CASE";
-                break;
-        }
-        holder.connStateText.setText(connState);
+    private void bindRate(ViewHolder holder, GattConnection gconn) {
+        RateMeter rate = gconn.getRateMeter();
+        holder.connURate.setText(String.format(Locale.getDefault(), mRateFormat, gconn.getURate(),
+                rate.getJitter() / 1e6, rate.getGaps()));
+    }
+
+    private void bindState(ViewHolder holder, GattConnection gconn) {
+        holder.connStateText.setText(mStateNames.get(gconn.getConnectionState(), "NO CASE"));
         Drawable circle = holder.connStateCircle.getBackground();
         int colorToSet =0;
 
@@ -210,6 +283,9 @@ public class BeaconAdapter extends RecyclerView.Adapter<BeaconAdapter.ViewHolder
             case 3:
                 colorToSet = darkGreen;
                 break;
+            case 4:
+                colorToSet = Color.GRAY;
+                break;
         }
 
         if (circle instanceof ShapeDrawable) {
@@ -227,6 +303,39 @@ public class BeaconAdapter extends RecyclerView.Adapter<BeaconAdapter.ViewHolder
         }
     }
 
+    /**
+     * Snapshot of the row values that change without a tag event, at display precision.
+     */
+    private static final class RowStats {
+        int state;
+        int rate;
+        int jitter;
+        long gaps;
+
+        /**
+         * @return payload bits of the values that changed
+         */
+        int update(GattConnection gconn) {
+            RateMeter meter = gconn.getRateMeter();
+            int newState = gconn.getConnectionState();
+            int newRate = Math.round(gconn.getURate() * 10);
+            int newJitter = (int) Math.round(meter.getJitter() / 1e5);
+            long newGaps = meter.getGaps();
+
+            int updated = 0;
+            if (newState != state) {
+                updated |= PAYLOAD_STATE;
+            }
+            if (newRate != rate || newJitter != jitter || newGaps != gaps) {
+                updated |= PAYLOAD_RATE;
+            }
+            state = newState;
+            rate = newRate;
+            jitter = newJitter;
+            gaps = newGaps;
+            return updated;
+        }
+    }
     final class ViewHolder extends RecyclerView.ViewHolder {
         @BindView(R.id.device_name) TextView deviceName;
         @BindView(R.id.device_address) TextView deviceAddr;
@@ -242,7 +351,7 @@ public class BeaconAdapter extends RecyclerView.Adapter<BeaconAdapter.ViewHolder
             view.findViewById(R.id.beacon_item).setOnClickListener(v -> {
                 if (mOnItemClickListener != null) {
                     try {
-                        mOnItemClickListener.onItemClick(mConnections.get(getAdapterPosition()));
+                        mOnItemClickListener.onItemClick(getItem(getAdapterPosition()));
                     } catch (ArrayIndexOutOfBoundsException ignored) {
                     }
                 }
@@ -251,15 +360,15 @@ public class BeaconAdapter extends RecyclerView.Adapter<BeaconAdapter.ViewHolder
     }
 
     public void deleteItem(int pos){
-        recentlyDeletedItem = mConnections.get(pos);
+        List<GattConnection> connections = new ArrayList<>(mDiffer.getCurrentList());
+        recentlyDeletedItem = connections.remove(pos);
         recentlyDeletedItemPos = pos;
-        recentlyDeletedItemAddr = mConnections.get(pos).getServerAddr();
+        recentlyDeletedItemAddr = recentlyDeletedItem.getServerAddr();
         recentlyDeletedItemName = KnownBeacons.get(recentlyDeletedItemAddr);
-        mConnections.remove(pos);
         KnownBeacons.remove(recentlyDeletedItemAddr);
         showUndoSnackbar();
         saveBeacons(mActivity);
-        notifyItemRemoved(pos);
+        submitList(connections);
     }
 
     private void showUndoSnackbar() {
@@ -289,12 +398,13 @@ public class BeaconAdapter extends RecyclerView.Adapter<BeaconAdapter.ViewHolder
     }
 
     private void undoDelete() {
-        mConnections.add(recentlyDeletedItemPos,
+        List<GattConnection> connections = new ArrayList<>(mDiffer.getCurrentList());
+        connections.add(Math.min(recentlyDeletedItemPos, connections.size()),
                 recentlyDeletedItem);
         KnownBeacons.put(recentlyDeletedItemAddr,recentlyDeletedItemName);
         saveBeacons(mActivity);
 
-        notifyItemInserted(recentlyDeletedItemPos);
+        submitList(connections);
     }
 
     @FunctionalInterface
@@ -23,52 +23,33 @@
 
 package de.drb.il4l.androidgw.adapter;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.recyclerview.widget.DiffUtil;
 
-import java.util.List;
-
 import de.drb.il4l.androidgw.viewmodels.GattConnection;
 
-public class GattConnDiffCallback extends DiffUtil.Callback {
-	private final List<GattConnection> oldList;
-	private final List<GattConnection> newList;
-
-	public GattConnDiffCallback(final List<GattConnection> oldList,
-                         final List<GattConnection> newList) {
-		this.oldList = oldList;
-		this.newList = newList;
-	}
-
-	@Override
-	public int getOldListSize() {
-		return oldList != null ? oldList.size() : 0;
-	}
-
-	@Override
-	public int getNewListSize() {
-		return newList != null ? newList.size() : 0;
-	}
-
+/**
+ * Compares status list items, called on a background thread. Only the immutable address and the
+ * identity of the connection are used, state and rate are refreshed by
+ * {@link BeaconAdapter#refresh}.
+ */
+public class GattConnDiffCallback extends DiffUtil.ItemCallback<GattConnection> {
 	@Override
-	public boolean areItemsTheSame(final int oldItemPosition, final int newItemPosition) {
-		GattConnection a = oldList != null ? oldList.get(oldItemPosition) : null;
-		GattConnection b = newList.get(oldItemPosition);
-		return a == b;
+	public boolean areItemsTheSame(@NonNull final GattConnection oldItem, @NonNull final GattConnection newItem) {
+		return oldItem.getServerAddr().equals(newItem.getServerAddr());
 	}
 
 	@Override
-	public boolean areContentsTheSame(final int oldItemPosition, final int newItemPosition) {
-		boolean connStateSame = (newList.get(newItemPosition).getConnectionState() == oldList.get(oldItemPosition).getConnectionState());
-		boolean uRateSame = (newList.get(newItemPosition).getURate() == oldList.get(oldItemPosition).getURate());
-		return (connStateSame && uRateSame);
+	public boolean areContentsTheSame(@NonNull final GattConnection oldItem, @NonNull final GattConnection newItem) {
+		// A tag gets a new connection object when the gateway connects to it
+		return oldItem == newItem;
 	}
 
 	@Nullable
 	@Override
-	public Object getChangePayload(int oldItemPosition, int newItemPosition) {
-		// Implement method if you're going to use ItemAnimator
-		return super.getChangePayload(oldItemPosition, newItemPosition);
+	public Object getChangePayload(@NonNull final GattConnection oldItem, @NonNull final GattConnection newItem) {
+		// Same tag, so only state and rate can differ
+		return BeaconAdapter.PAYLOAD_STATE | BeaconAdapter.PAYLOAD_RATE;
 	}
-
 }
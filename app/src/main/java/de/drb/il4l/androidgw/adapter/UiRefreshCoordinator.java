@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.adapter;
+
+import android.view.Choreographer;
+
+import androidx.annotation.NonNull;
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleEventObserver;
+import androidx.lifecycle.LifecycleOwner;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import de.drb.il4l.androidgw.events.GatewayEvents;
+
+/**
+ * Refreshes a list of tags at a fixed cadence instead of on every event. Tag changes are
+ * collected between two frames and handed to the {@link Target} together, aligned to the display
+ * frames by {@link Choreographer}.
+ *
+ * <p>Only active while the lifecycle owner is started. When it is not visible no callbacks are
+ * registered, so nothing is done at all.</p>
+ */
+public class UiRefreshCoordinator implements Choreographer.FrameCallback, GatewayEvents.TagListener,
+        LifecycleEventObserver {
+
+    public interface Target {
+        /**
+         * Update the views from a snapshot of the current state.
+         *
+         * @param changed   addresses of tags reported changed since the last refresh
+         * @return true if the displayed state changes without further events, e.g. a decaying
+         *         rate, and the next refresh should happen anyway
+         */
+        boolean refresh(@NonNull Set<String> changed);
+    }
+
+    private final GatewayEvents mEvents;
+    private final Target mTarget;
+    private final long mInterval;
+
+    private final Set<String> mChanged = new HashSet<>();
+    private boolean mStarted;
+    private boolean mScheduled;
+
+    /**
+     * @param interval  time between two refreshes in milliseconds
+     */
+    public UiRefreshCoordinator(LifecycleOwner owner, GatewayEvents events, Target target, long interval) {
+        mEvents = events;
+        mTarget = target;
+        mInterval = interval;
+        owner.getLifecycle().addObserver(this);
+    }
+
+    @Override
+    public void onStateChanged(@NonNull LifecycleOwner source, @NonNull Lifecycle.Event event) {
+        if (event == Lifecycle.Event.ON_START) {
+            mStarted = true;
+            mEvents.addTagListener(this);
+            // Catch up on everything that changed while stopped
+            schedule();
+        } else if (event == Lifecycle.Event.ON_STOP) {
+            mStarted = false;
+            mEvents.removeTagListener(this);
+            Choreographer.getInstance().removeFrameCallback(this);
+            mScheduled = false;
+            mChanged.clear();
+        }
+    }
+
+    @Override
+    public void onTagChanged(@NonNull String address) {
+        mChanged.add(address);
+        schedule();
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mScheduled = false;
+        if (!mStarted) {
+            return;
+        }
+
+        boolean live = mTarget.refresh(mChanged);
+        mChanged.clear();
+        if (live) {
+            schedule();
+        }
+    }
+
+    private void schedule() {
+        if (mStarted && !mScheduled) {
+            mScheduled = true;
+            Choreographer.getInstance().postFrameCallbackDelayed(this, mInterval);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.events;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * In-process events of the gateway service for the UI. Events may be posted from any thread and
+ * are delivered on the main thread.
+ *
+ * <p>Tag changes are coalesced: a tag that changes several times within the update interval is
+ * reported once, listeners read the current state of the tag themselves. Each tag has a dirty
+ * flag that is created with its first change, so posting a change doesn't allocate after that.
+ * Nothing is scheduled while there are no listeners.</p>
+ */
+public class GatewayEvents {
+    public interface TagListener {
+        /**
+         * State or ranging data of a tag changed.
+         */
+        void onTagChanged(@NonNull String address);
+    }
+
+    public interface MqttListener {
+        void onMqttConnectionChanged(boolean connected);
+    }
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final long mInterval;
+
+    private final CopyOnWriteArrayList<TagListener> mTagListeners = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<MqttListener> mMqttListeners = new CopyOnWriteArrayList<>();
+
+    // Dirty flag per tag, set if it changed since the last flush
+    private final Map<String, AtomicBoolean> mChanged = new ConcurrentHashMap<>();
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean();
+    private volatile long mLastFlush;
+    private final Runnable mFlushTags = this::flushTags;
+
+    private volatile boolean mMqttConnected;
+    private final Runnable mDispatchMqtt = this::dispatchMqtt;
+
+    /**
+     * @param interval  minimum time between two updates of the same tag in milliseconds
+     */
+    public GatewayEvents(long interval) {
+        mInterval = interval;
+    }
+
+    /**
+     * Report a changed tag. Safe to call from any thread.
+     */
+    public void postTagChanged(@NonNull String address) {
+        if (mTagListeners.isEmpty()) {
+            return;
+        }
+
+        AtomicBoolean changed = mChanged.get(address);
+        if (changed == null) {
+            changed = mChanged.computeIfAbsent(address, a -> new AtomicBoolean());
+        }
+        if (changed.compareAndSet(false, true) && mFlushScheduled.compareAndSet(false, true)) {
+            long delay = mLastFlush + mInterval - SystemClock.uptimeMillis();
+            mMainHandler.postDelayed(mFlushTags, Math.max(0, delay));
+        }
+    }
+
+    /**
+     * Report the MQTT connection state. Safe to call from any thread, listeners only see the
+     * latest state if it changes again before delivery.
+     */
+    public void postMqttConnection(boolean connected) {
+        mMqttConnected = connected;
+        mMainHandler.removeCallbacks(mDispatchMqtt);
+        mMainHandler.post(mDispatchMqtt);
+    }
+
+    /**
+     * @return last posted MQTT connection state
+     */
+    public boolean isMqttConnected() {
+        return mMqttConnected;
+    }
+
+    @MainThread
+    public void addTagListener(TagListener listener) {
+        mTagListeners.addIfAbsent(listener);
+    }
+
+    @MainThread
+    public void removeTagListener(TagListener listener) {
+        mTagListeners.remove(listener);
+        if (mTagListeners.isEmpty()) {
+            mMainHandler.removeCallbacks(mFlushTags);
+            for (AtomicBoolean changed : mChanged.values()) {
+                changed.set(false);
+            }
+            mFlushScheduled.set(false);
+        }
+    }
+
+    @MainThread
+    public void addMqttListener(MqttListener listener) {
+        mMqttListeners.addIfAbsent(listener);
+    }
+
+    @MainThread
+    public void removeMqttListener(MqttListener listener) {
+        mMqttListeners.remove(listener);
+    }
+
+    private void flushTags() {
+        // Clear first, changes posted during dispatch schedule the next flush
+        mFlushScheduled.set(false);
+        mLastFlush = SystemClock.uptimeMillis();
+
+        for (Map.Entry<String, AtomicBoolean> entry : mChanged.entrySet()) {
+            if (entry.getValue().getAndSet(false)) {
+                for (TagListener listener : mTagListeners) {
+                    listener.onTagChanged(entry.getKey());
+                }
+            }
+        }
+    }
+
+    private void dispatchMqtt() {
+        boolean connected = mMqttConnected;
+        for (MqttListener listener : mMqttListeners) {
+            listener.onMqttConnectionChanged(connected);
+        }
+    }
+}
@@ -29,81 +29,143 @@ import android.util.Log;
 import org.eclipse.paho.android.service.MqttAndroidClient;
 import org.eclipse.paho.client.mqttv3.DisconnectedBufferOptions;
 import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.IMqttToken;
 import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 
-import no.nordicsemi.android.ble.data.Data;
-import de.drb.il4l.androidgw.BLE_GW_Application;
-import de.drb.il4l.androidgw.viewmodels.GattConnection;
-
 /**
- * This class is responsible for forwarding BLE messages to a MQTT Broker.
+ * This class is responsible for forwarding BLE messages to a MQTT Broker. It adapts the Paho
+ * Android client to the {@link MqttTransport} of the {@link PublishPipeline}.
  */
-public class MqttForwarder {
+public class MqttForwarder implements MqttTransport {
     private final static String TAG = MqttForwarder.class.getSimpleName();
 
     private final MqttAndroidClient mqttAndroidClient;
-    private final static int QoS = 2;
+    private volatile MqttTransport.Callback mTransportCallback;
+    // Reports publications that fail, acknowledgements arrive through deliveryComplete
+    private final IMqttActionListener mPublishListener = new IMqttActionListener() {
+        @Override
+        public void onSuccess(IMqttToken asyncActionToken) {
+        }
+
+        @Override
+        public void onFailure(IMqttToken asyncActionToken, Throwable e) {
+            Log.w(TAG, "Failed to publish message", e);
+            MqttTransport.Callback transportCallback = mTransportCallback;
+            if (transportCallback != null) {
+                Object context = asyncActionToken.getUserContext();
+                transportCallback.deliveryFailed(context instanceof Delivery ? (Delivery) context : null);
+            }
+        }
+    };
 
     // TODO: add authentication
     private final String username = "xxxxxxx";
     private final String password = "yyyyyyyyyy";
 
-    public MqttForwarder(Context context, String uniqueId, MqttCallbackExtended callback) {
+    public MqttForwarder(Context context, String uniqueId, final MqttCallbackExtended callback) {
         mqttAndroidClient = new MqttAndroidClient(context, serverUri, "BLE GW " + uniqueId);
-        mqttAndroidClient.setCallback(callback);
-    }
-
-    public boolean isConnected() {
-        return mqttAndroidClient.isConnected();
-    }
+        mqttAndroidClient.setCallback(new MqttCallbackExtended() {
+            @Override
+            public void connectComplete(boolean reconnect, String serverURI) {
+                callback.connectComplete(reconnect, serverURI);
+                MqttTransport.Callback transportCallback = mTransportCallback;
+                if (transportCallback != null) {
+                    transportCallback.connectComplete(reconnect);
+                }
+            }
 
-    public void connect() throws MqttException {
-        MqttConnectOptions mqttConnectOptions = new MqttConnectOptions();
-        mqttConnectOptions.setAutomaticReconnect(true);
-        mqttConnectOptions.setCleanSession(false);
-        //mqttConnectOptions.setUserName(username);
-        //mqttConnectOptions.setPassword(password.toCharArray());
+            @Override
+            public void connectionLost(Throwable cause) {
+                callback.connectionLost(cause);
+                MqttTransport.Callback transportCallback = mTransportCallback;
+                if (transportCallback != null) {
+                    transportCallback.connectionLost();
+                }
+            }
 
-        mqttAndroidClient.connect(mqttConnectOptions, null, new IMqttActionListener() {
             @Override
-            public void onSuccess(IMqttToken asyncActionToken) {
-                DisconnectedBufferOptions disconnectedBufferOptions = new DisconnectedBufferOptions();
-                disconnectedBufferOptions.setBufferEnabled(true);
-                disconnectedBufferOptions.setBufferSize(100);
-                disconnectedBufferOptions.setPersistBuffer(false);
-                disconnectedBufferOptions.setDeleteOldestMessages(false);
-                mqttAndroidClient.setBufferOpts(disconnectedBufferOptions);
+            public void messageArrived(String topic, MqttMessage message) throws Exception {
+                callback.messageArrived(topic, message);
             }
 
             @Override
-            public void onFailure(IMqttToken asyncActionToken, Throwable e) {
-                Log.e(TAG, "Failed to connect to: " + serverUri, e);
+            public void deliveryComplete(IMqttDeliveryToken token) {
+                callback.deliveryComplete(token);
+                // Reported for every message, the pipeline counts the messages in flight
+                MqttTransport.Callback transportCallback = mTransportCallback;
+                if (transportCallback != null) {
+                    Object context = token.getUserContext();
+                    transportCallback.deliveryComplete(context instanceof Delivery ? (Delivery) context : null);
+                }
             }
         });
     }
 
-    public void publish(String topic, MqttMessage message) throws MqttException {
-        if (!isConnected()) {
-            connect();
-        }
+    @Override
+    public void setCallback(MqttTransport.Callback callback) {
+        mTransportCallback = callback;
+    }
 
-        mqttAndroidClient.publish(topic, message);
+    @Override
+    public boolean isConnected() {
+        return mqttAndroidClient.isConnected();
     }
 
-    public void publishRanging(GattConnection connection, Data data) throws MqttException {
-        final String distancesTopic = BLE_GW_Application.MQTTtopic;
+    @Override
+    public void connect() throws TransportException {
+        MqttConnectOptions mqttConnectOptions = new MqttConnectOptions();
+        mqttConnectOptions.setAutomaticReconnect(true);
+        mqttConnectOptions.setCleanSession(false);
+        //mqttConnectOptions.setUserName(username);
+        //mqttConnectOptions.setPassword(password.toCharArray());
 
-        String topic = distancesTopic+"/"+connection.getServerAddr();
-        if (BLE_GW_Application.MQTTname){ //user chooses to use the device name as topic
-            topic = distancesTopic+"/"+connection.getName();
+        try {
+            mqttAndroidClient.connect(mqttConnectOptions, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    DisconnectedBufferOptions disconnectedBufferOptions = new DisconnectedBufferOptions();
+                    disconnectedBufferOptions.setBufferEnabled(true);
+                    disconnectedBufferOptions.setBufferSize(100);
+                    disconnectedBufferOptions.setPersistBuffer(false);
+                    disconnectedBufferOptions.setDeleteOldestMessages(false);
+                    mqttAndroidClient.setBufferOpts(disconnectedBufferOptions);
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable e) {
+                    Log.e(TAG, "Failed to connect to: " + serverUri, e);
+                }
+            });
+        } catch (MqttException e) {
+            throw new TransportException(e);
         }
+    }
 
-        MqttMessage message = new MqttMessage(data.getValue());
-        message.setQos(QoS);
-        publish(topic, message);
+    @Override
+    public void publish(String topic, byte[] payload, int qos, boolean retained, Delivery delivery) throws TransportException {
+        // Pooled deliveries come back with a message of an earlier publication, Paho keeps no
+        // reference to it once the delivery was reported
+        MqttMessage message = delivery != null ? (MqttMessage) delivery.getTransportMessage() : null;
+        if (message == null) {
+            message = new MqttMessage();
+            if (delivery != null) {
+                delivery.setTransportMessage(message);
+            }
+        }
+        message.setPayload(payload);
+        message.setQos(qos);
+        message.setRetained(retained);
+
+        try {
+            // The delivery is passed as user context and comes back with deliveryComplete or
+            // the failure of the publication
+            mqttAndroidClient.publish(topic, message, delivery, mPublishListener);
+        } catch (MqttException e) {
+            throw new TransportException(e);
+        }
     }
 }
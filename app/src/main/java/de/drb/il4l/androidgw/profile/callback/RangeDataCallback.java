@@ -24,45 +24,29 @@
 package de.drb.il4l.androidgw.profile.callback;
 
 import android.bluetooth.BluetoothDevice;
-import android.util.Log;
 
 import androidx.annotation.NonNull;
 
+import de.drb.il4l.androidgw.profile.RangingFrame;
+import de.drb.il4l.androidgw.profile.RangingFrameDecoder;
 import no.nordicsemi.android.ble.callback.profile.ProfileDataCallback;
 import no.nordicsemi.android.ble.data.Data;
 
 @SuppressWarnings("ConstantConditions")
 public abstract class RangeDataCallback implements ProfileDataCallback, RangeCallback {
-    private static final int STATE_RELEASED = 0x00;
-    private static final int STATE_PRESSED = 0x01;
-
     public static final String TAG = RangeDataCallback.class.getSimpleName();
 
+    // Only used to validate the value, so no allocation happens per notification
+    private final RangingFrame mFrame = new RangingFrame();
+
     @Override
     public void onDataReceived(@NonNull final BluetoothDevice device, @NonNull final Data data) {
-        if (data.size() <= 2) {
+        final byte[] value = data.getValue();
+        if (value == null || !RangingFrameDecoder.decodeRanges(value, 0, value.length, mFrame)) {
             onInvalidDataReceived(device, data);
             return;
         }
 
-        Log.v(TAG,"data size received: "+data.size());
-
-        if (data != null){
-            int valueCount = data.getIntValue(Data.FORMAT_UINT16, 0);
-            Log.d(TAG,"RangeDataCallback with "+valueCount+" values");
-            /*for(int i=0;i<valueCount;i++){
-                int liteID = data.getIntValue(Data.FORMAT_UINT16,i*4+2);
-                int range = data.getIntValue(Data.FORMAT_UINT16, i*4+4);
-                if (range != 0xFFFF) {
-                    onRangeChanged(device, range, liteID);
-                } else {
-                    onInvalidDataReceived(device, data);
-                }
-            }*/
-            onRangeChanged(device,data);
-        }
-
+        onRangeChanged(device, data);
     }
-
-
 }
@@ -34,8 +34,10 @@ public interface RangingCallback {
     /**
      * Called when new ranging information is available
      *
-     * @param device    the target device.
-     * @param data      ranging information
+     * @param device        the target device.
+     * @param data          ranging information
+     * @param arrivalNanos  {@link android.os.SystemClock#elapsedRealtimeNanos()} when the
+     *                      notification arrived
      */
-    void onRangingChanged(@NonNull final BluetoothDevice device, final Data data);
+    void onRangingChanged(@NonNull final BluetoothDevice device, final Data data, final long arrivalNanos);
 }
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.scan;
+
+import android.bluetooth.BluetoothAdapter;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import no.nordicsemi.android.support.v18.scanner.BluetoothLeScannerCompat;
+import no.nordicsemi.android.support.v18.scanner.ScanCallback;
+import no.nordicsemi.android.support.v18.scanner.ScanResult;
+import no.nordicsemi.android.support.v18.scanner.ScanSettings;
+
+/**
+ * Low duty cycle background scan for the known tags. Only their addresses pass the scan filter,
+ * so where the controller filters the CPU only wakes up for them, once per report delay.
+ *
+ * <p>Must be used from the main thread, sightings are reported there too.</p>
+ */
+public class PresenceScanner {
+    private final static String TAG = PresenceScanner.class.getSimpleName();
+
+    // Results are batched this long, tags count as present a few batches long
+    public static final long REPORT_DELAY = 5000;
+    public static final long PRESENCE_TIMEOUT = 6 * REPORT_DELAY;
+    // Android blocks apps that start more than 5 scans in 30 s
+    private static final long MIN_RESTART_INTERVAL = 10000;
+
+    public interface Listener {
+        /**
+         * A known tag was seen advertising.
+         *
+         * @param rssi  signal strength in dBm
+         */
+        void onTagSeen(@NonNull String address, int rssi);
+    }
+
+    private final Listener mListener;
+    private final ScanConfig mScanConfig = new ScanConfig(BluetoothAdapter.getDefaultAdapter());
+    private final ScanStats mStats = new ScanStats();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private Set<String> mAddresses = Collections.emptySet();
+    private boolean mStarted;
+    private boolean mScanning;
+    private boolean mRestartPosted;
+    private long mLastStart = -MIN_RESTART_INTERVAL;
+
+    public PresenceScanner(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Scan for the given tags, restarts the scan if they changed or it isn't running.
+     */
+    public void update(Collection<String> addresses) {
+        Set<String> newAddresses = new HashSet<>(addresses);
+        if (mStarted && (mScanning || mRestartPosted) && newAddresses.equals(mAddresses)) {
+            return;
+        }
+        mAddresses = newAddresses;
+        mStarted = true;
+        restart();
+    }
+
+    public void stop() {
+        mStarted = false;
+        mHandler.removeCallbacks(mRestart);
+        mRestartPosted = false;
+        stopScan();
+    }
+
+    public ScanStats getStats() {
+        return mStats;
+    }
+
+    private final Runnable mRestart = () -> {
+        mRestartPosted = false;
+        restart();
+    };
+
+    private void restart() {
+        if (!mStarted) {
+            return;
+        }
+
+        long wait = mLastStart + MIN_RESTART_INTERVAL - SystemClock.uptimeMillis();
+        if (wait > 0) {
+            if (!mRestartPosted) {
+                mRestartPosted = true;
+                mHandler.postDelayed(mRestart, wait);
+            }
+            return;
+        }
+
+        stopScan();
+        if (mAddresses.isEmpty()) {
+            return;
+        }
+
+        final ScanSettings settings = mScanConfig.settings(ScanSettings.SCAN_MODE_LOW_POWER, REPORT_DELAY);
+        try {
+            BluetoothLeScannerCompat.getScanner().startScan(mScanConfig.addressFilters(mAddresses), settings, mScanCallback);
+        } catch (IllegalStateException | SecurityException e) {
+            // Bluetooth off or no permission, the next update tries again
+            Log.w(TAG, "Couldn't start presence scan", e);
+            return;
+        }
+        mScanning = true;
+        mLastStart = SystemClock.uptimeMillis();
+        mStats.start(mScanConfig.describe(true));
+        Log.i(TAG, "Presence scan for " + mAddresses.size() + " tags, " + mStats.getMode());
+    }
+
+    private void stopScan() {
+        if (mScanning) {
+            mScanning = false;
+            try {
+                BluetoothLeScannerCompat.getScanner().stopScan(mScanCallback);
+            } catch (IllegalStateException e) {
+                // Bluetooth was turned off, the scan is gone anyway
+            }
+            Log.i(TAG, "Presence scan stopped, " + mStats);
+        }
+    }
+
+    private final ScanCallback mScanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(final int callbackType, @NonNull final ScanResult result) {
+            mStats.record(1);
+            report(result);
+        }
+
+        @Override
+        public void onBatchScanResults(@NonNull final List<ScanResult> results) {
+            mStats.record(results.size());
+            for (final ScanResult result : results) {
+                report(result);
+            }
+        }
+
+        @Override
+        public void onScanFailed(final int errorCode) {
+            mScanning = false;
+            Log.e(TAG, "Presence scan failed, errorCode=" + errorCode);
+        }
+    };
+
+    private void report(ScanResult result) {
+        // Software filtering passes other devices in rare cases, e.g. after the addresses changed
+        String address = result.getDevice().getAddress();
+        if (mAddresses.contains(address)) {
+            mListener.onTagSeen(address, result.getRssi());
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.scan;
+
+import android.bluetooth.BluetoothAdapter;
+import android.os.ParcelUuid;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import de.drb.il4l.androidgw.TagGattManager;
+import no.nordicsemi.android.support.v18.scanner.ScanFilter;
+import no.nordicsemi.android.support.v18.scanner.ScanSettings;
+
+/**
+ * Scan filters and settings that let the Bluetooth controller filter and batch advertisements,
+ * so the CPU only wakes up for tags and only once per report delay.
+ *
+ * <p>Where the controller can't, the scanner compat library filters and batches in software
+ * instead. Results are the same, but every advertisement wakes the CPU again.</p>
+ */
+public class ScanConfig {
+    private static final ParcelUuid RANGING_UUID = new ParcelUuid(TagGattManager.RANGING_SERVICE);
+
+    private final boolean mHardwareFiltering;
+    private final boolean mHardwareBatching;
+
+    public ScanConfig(@Nullable BluetoothAdapter adapter) {
+        mHardwareFiltering = adapter != null && adapter.isOffloadedFilteringSupported();
+        mHardwareBatching = adapter != null && adapter.isOffloadedScanBatchingSupported();
+    }
+
+    /**
+     * @param scanMode      one of the ScanSettings.SCAN_MODE_* constants
+     * @param reportDelay   batch results for this long in ms, 0 to report each one
+     */
+    public ScanSettings settings(int scanMode, long reportDelay) {
+        return new ScanSettings.Builder()
+                .setScanMode(scanMode)
+                .setReportDelay(reportDelay)
+                .setUseHardwareFilteringIfSupported(true)
+                .setUseHardwareBatchingIfSupported(true)
+                .build();
+    }
+
+    /**
+     * Matches tags advertising the ranging service. Tag names only share a prefix, which a
+     * controller filter can't match, so this is the only tag filter for unknown tags.
+     */
+    public List<ScanFilter> rangingServiceFilters() {
+        return Collections.singletonList(new ScanFilter.Builder().setServiceUuid(RANGING_UUID).build());
+    }
+
+    /**
+     * Matches the given tags only.
+     */
+    public List<ScanFilter> addressFilters(Collection<String> addresses) {
+        List<ScanFilter> filters = new ArrayList<>(addresses.size());
+        for (String address : addresses) {
+            filters.add(new ScanFilter.Builder().setDeviceAddress(address).build());
+        }
+        return filters;
+    }
+
+    public boolean isHardwareFiltering() {
+        return mHardwareFiltering;
+    }
+
+    public boolean isHardwareBatching() {
+        return mHardwareBatching;
+    }
+
+    /**
+     * @param filtered  whether the scan uses filters
+     * @return where filtering and batching happen, for logs
+     */
+    public String describe(boolean filtered) {
+        String filtering = !filtered ? "none" : mHardwareFiltering ? "controller" : "software";
+        return "filtering: " + filtering + ", batching: " + (mHardwareBatching ? "controller" : "software");
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.scan;
+
+import android.os.SystemClock;
+
+import java.util.Locale;
+
+import de.drb.il4l.androidgw.metrics.RateMeter;
+
+/**
+ * Counts the scan callbacks, i.e. CPU wakeups, and the scan results they deliver. Must be fed
+ * from the thread the scan callbacks run on.
+ */
+public class ScanStats {
+    private final RateMeter mWakeups = new RateMeter();
+    private final RateMeter mResults = new RateMeter();
+    private long mStarted;
+    private volatile long mWakeupCount;
+    private volatile long mResultCount;
+    private volatile String mMode = "";
+
+    /**
+     * Start counting a new scan.
+     *
+     * @param mode  description of the scan configuration, see {@link ScanConfig#describe}
+     */
+    public void start(String mode) {
+        mWakeups.reset();
+        mResults.reset();
+        mWakeupCount = 0;
+        mResultCount = 0;
+        mMode = mode;
+        mStarted = SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * A scan callback delivered the given number of results.
+     */
+    public void record(int results) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        mWakeups.record(now);
+        for (int i = 0; i < results; i++) {
+            mResults.record(now);
+        }
+        mWakeupCount = mWakeupCount + 1;
+        mResultCount = mResultCount + results;
+    }
+
+    /**
+     * @return callbacks per second over the last seconds
+     */
+    public float getWakeupRate() {
+        return mWakeups.getWindowRate(SystemClock.elapsedRealtimeNanos());
+    }
+
+    /**
+     * @return results per second over the last seconds
+     */
+    public float getResultRate() {
+        return mResults.getWindowRate(SystemClock.elapsedRealtimeNanos());
+    }
+
+    public long getWakeupCount() {
+        return mWakeupCount;
+    }
+
+    public long getResultCount() {
+        return mResultCount;
+    }
+
+    public String getMode() {
+        return mMode;
+    }
+
+    @Override
+    public String toString() {
+        double seconds = (SystemClock.elapsedRealtimeNanos() - mStarted) / 1e9;
+        return String.format(Locale.ROOT, "%s: %d wakeups (%.1f/s), %d results (%.1f/s) in %.0f s",
+                mMode, mWakeupCount, mWakeupCount / seconds, mResultCount, mResultCount / seconds, seconds);
+    }
+}
@@ -28,7 +28,9 @@ import androidx.lifecycle.LiveData;
 import android.os.ParcelUuid;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import de.drb.il4l.androidgw.BLE_GW_Application;
 import de.drb.il4l.androidgw.TagGattManager;
@@ -37,16 +39,21 @@ import no.nordicsemi.android.support.v18.scanner.ScanResult;
 
 /**
  * This class keeps the current list of discovered Bluetooth LE devices matching filter.
- * Each time @{link {@link #applyFilter()} is called, the observers are notified with a new
- * list instance.
+ * Devices are kept by address and the filtered list is maintained per scan result, so a
+ * result costs the same no matter how many devices are around. Observers are notified with a
+ * new list instance at most once per scan callback, and only if the list changed.
  */
 @SuppressWarnings("unused")
 public class DevicesLiveData extends LiveData<List<DiscoveredBluetoothDevice>> {
 	private static final ParcelUuid FILTER_UUID = new ParcelUuid(TagGattManager.RANGING_SERVICE);
 	private static final int FILTER_RSSI = -50; // [dBm]
 
-	private final List<DiscoveredBluetoothDevice> mDevices = new ArrayList<>();
-	private static List<DiscoveredBluetoothDevice> mFilteredDevices = null;
+	// All devices by address, in discovery order
+	private final Map<String, DiscoveredBluetoothDevice> mDevices = new LinkedHashMap<>();
+	// Devices matching the filter by address
+	private final Map<String, DiscoveredBluetoothDevice> mFilteredDevices = new LinkedHashMap<>();
+	// The filtered devices changed since the last publish
+	private boolean mChanged;
 	private boolean mFilterUuidRequired;
 	private boolean mFilterNearbyOnly;
 
@@ -57,7 +64,8 @@ public class DevicesLiveData extends LiveData<List<DiscoveredBluetoothDevice>> {
 
 	/* package */ synchronized void bluetoothDisabled() {
 		mDevices.clear();
-		mFilteredDevices = null;
+		mFilteredDevices.clear();
+		mChanged = false;
 		postValue(null);
 	}
 
@@ -71,32 +79,68 @@ public class DevicesLiveData extends LiveData<List<DiscoveredBluetoothDevice>> {
 		return applyFilter();
 	}
 
+	/**
+	 * Adds or updates the device of a scan result. Call {@link #publish()} to notify the
+	 * observers.
+	 *
+	 * @return true if the device matches the filter.
+	 */
 	/* package */ synchronized boolean deviceDiscovered(final ScanResult result) {
-		DiscoveredBluetoothDevice device;
+		final String address = result.getDevice().getAddress();
 
 		// Check if it's a new device.
-		final int index = indexOf(result);
-		if (index == -1) {
+		DiscoveredBluetoothDevice device = mDevices.get(address);
+		if (device == null) {
 			device = new DiscoveredBluetoothDevice(result);
-			mDevices.add(device);
-		} else {
-			device = mDevices.get(index);
+			mDevices.put(address, device);
 		}
 
 		// Update RSSI and name.
 		device.update(result);
 
-		// Return true if the device was on the filtered list or is to be added.
-		return (mFilteredDevices != null && mFilteredDevices.contains(device))
-				|| (matchesUuidFilter(result) && matchesNearbyFilter(device.getHighestRssi()));
-    }
+		// Update the filtered list, a listed device also changes if its signal bar does
+		if (matchesFilter(device)) {
+			if (mFilteredDevices.put(address, device) == null || device.hasRssiLevelChanged()) {
+				mChanged = true;
+			}
+			return true;
+		}
+		if (mFilteredDevices.remove(address) != null) {
+			mChanged = true;
+		}
+		return false;
+	}
+
+	/**
+	 * Adds or updates the devices of a batch of scan results under a single lock.
+	 *
+	 * @return true if at least one device matches the filter.
+	 */
+	/* package */ synchronized boolean devicesDiscovered(final List<ScanResult> results) {
+		boolean atLeastOneMatchedFilter = false;
+		for (final ScanResult result : results) {
+			atLeastOneMatchedFilter = deviceDiscovered(result) || atLeastOneMatchedFilter;
+		}
+		return atLeastOneMatchedFilter;
+	}
+
+	/**
+	 * Notifies the observers with a new list if the filtered devices changed since the last call.
+	 */
+	/* package */ synchronized void publish() {
+		if (mChanged) {
+			mChanged = false;
+			postValue(new ArrayList<>(mFilteredDevices.values()));
+		}
+	}
 
 	/**
 	 * Clears the list of devices.
 	 */
 	public synchronized void clear() {
 		mDevices.clear();
-		mFilteredDevices = null;
+		mFilteredDevices.clear();
+		mChanged = false;
 		postValue(null);
 	}
 
@@ -104,45 +148,24 @@ public class DevicesLiveData extends LiveData<List<DiscoveredBluetoothDevice>> {
 	 * Refreshes the filtered device list based on the filter flags.
 	 */
 	/* package */ public synchronized boolean applyFilter() {
-		final List<DiscoveredBluetoothDevice> devices = new ArrayList<>();
-
-		for (final DiscoveredBluetoothDevice device : mDevices) {
-			final ScanResult result = device.getScanResult();
-			if (matchesUuidFilter(result) && matchesNearbyFilter(device.getHighestRssi())) {
-
-				// If Beacon is already known we don't add it to the list of devices.
-				if(BLE_GW_Application.KnownBeacons != null){
-					if(!BLE_GW_Application.KnownBeacons.containsKey(device.getAddress())){
-						devices.add(device);
-						// System.out.println("added to scanlist!");
-					}else{
-						// System.out.println("not added to scanlist!");
-					}
-				}else{
-					devices.add(device);
-				}
-
+		mFilteredDevices.clear();
+		for (final DiscoveredBluetoothDevice device : mDevices.values()) {
+			if (matchesFilter(device)) {
+				mFilteredDevices.put(device.getAddress(), device);
 			}
 		}
-		mFilteredDevices = devices;
-        postValue(mFilteredDevices);
-        return !mFilteredDevices.isEmpty();
+		mChanged = true;
+		publish();
+		return !mFilteredDevices.isEmpty();
 	}
 
-	/**
-	 * Finds the index of existing devices on the device list.
-	 *
-	 * @param result scan result.
-	 * @return Index of -1 if not found.
-	 */
-	private int indexOf(final ScanResult result) {
-		int i = 0;
-		for (final DiscoveredBluetoothDevice device : mDevices) {
-			if (device.matches(result))
-				return i;
-			i++;
+	private boolean matchesFilter(final DiscoveredBluetoothDevice device) {
+		// If Beacon is already known we don't add it to the list of devices.
+		if (BLE_GW_Application.KnownBeacons != null
+				&& BLE_GW_Application.KnownBeacons.containsKey(device.getAddress())) {
+			return false;
 		}
-		return -1;
+		return matchesUuidFilter(device.getScanResult()) && matchesNearbyFilter(device.getHighestRssi());
 	}
 
 	@SuppressWarnings("SimplifiableIfStatement")
@@ -47,13 +47,4 @@ public class GConnLiveData extends LiveData<List<GattConnection>> {
         Log.i(TAG,"Connection state was changed, posting to UI ....");
         postValue(allConnStates);
     }
-
-    public void updateURate(String server_addr, float urate){
-        for(int i=0;i<allConnStates.size();i++){
-            if(allConnStates.get(i).getServerAddr().equals(server_addr)){
-                allConnStates.get(i).setURate(urate);
-            }
-        }
-        postValue(allConnStates);
-    }
 }
@@ -23,43 +23,24 @@ package de.drb.il4l.androidgw.viewmodels;
 
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.os.SystemClock;
 
 import de.drb.il4l.androidgw.BLE_GW_Application;
+import de.drb.il4l.androidgw.core.TagSession;
+import de.drb.il4l.androidgw.utils.TagNames;
 
-public class GattConnection implements Parcelable {
+public class GattConnection extends TagSession implements Parcelable {
 
-    /* Service ConnStates:
+    // Display name and the generation of the known beacons it was derived from
+    private volatile String name;
+    private volatile int nameGeneration = -1;
 
-        mögliche Zusände:
-           -1 - beende Verbindung
-            0 - nicht gestartet
-            1 - verbinde zu GATT Server
-            2 - verbunden zu GATT Server
-            3 - Services entdeckt / fertig
-         */
-    public static final int DISCONNECTING = -1;
-    public static final int NOT_STARTED = 0;
-    public static final int CONNECTING = 1;
-    public static final int CONNECTED = 2;
-    public static final int DISCOVERED = 3;
-
-    private String serverAddr;
-    private Integer connectionState;
-    private float urate;
-
-    public GattConnection(String serverAddress, Integer connectionState) {
-        this.serverAddr = serverAddress;
-        this.connectionState = connectionState;
-        this.urate = 0.0f;
+    public GattConnection(String serverAddress, int connectionState) {
+        super(serverAddress, connectionState);
     }
 
     protected GattConnection(Parcel in) {
-        serverAddr = in.readString();
-        if (in.readByte() == 0) {
-            connectionState = null;
-        } else {
-            connectionState = in.readInt();
-        }
+        this(in.readString(), in.readByte() == 0 ? NOT_STARTED : in.readInt());
     }
 
     public static final Creator<GattConnection> CREATOR = new Creator<GattConnection>() {
@@ -74,46 +55,23 @@ public class GattConnection implements Parcelable {
         }
     };
 
-    public Integer getConnectionState(){
-        return connectionState;
-    }
-
-    public void setConnectionState(Integer newState){
-        connectionState = newState;
-    }
-
-    public void setURate(float urate){
-        this.urate = urate;
-    }
-
-    public float getURate(){
-        return  urate;
-    }
-
-    public String getServerAddr() {
-        return serverAddr;
-    }
-
-    public void setServerAddr(String newAddr){
-        serverAddr = newAddr;
+    /**
+     * @return ranging frames per second, 0 while the tag isn't connected
+     */
+    public float getURate() {
+        // Same clock as the arrival stamps taken in RangingDataCallback
+        return getURate(SystemClock.elapsedRealtimeNanos());
     }
 
+    @Override
     public String getName() {
-        // Try to get bluetooth name and fallback to device address if we can't figure out the name.
-        String bleDevName = BLE_GW_Application.KnownBeacons.get(serverAddr);
-        if (bleDevName != null) {
-            String[] nrList = bleDevName.split("_");
-            String nr = null;
-            for (String s : nrList) {
-                if (s.length()==4) {
-                    nr = s;
-                }
-            }
-            if (nr != null) bleDevName = nr;
-        } else {
-            bleDevName = serverAddr;
+        int generation = BLE_GW_Application.getKnownBeaconsGeneration();
+        if (nameGeneration != generation) {
+            // Try to get bluetooth name and fallback to device address if we can't figure out the name.
+            name = TagNames.shortName(BLE_GW_Application.KnownBeacons.get(getServerAddr()), getServerAddr());
+            nameGeneration = generation;
         }
-        return bleDevName;
+        return name;
     }
 
     @Override
@@ -123,7 +81,7 @@ public class GattConnection implements Parcelable {
 
     @Override
     public void writeToParcel(final Parcel parcel, final int flags) {
-        parcel.writeString(serverAddr);
-        parcel.writeInt(connectionState);
+        parcel.writeString(getServerAddr());
+        parcel.writeInt(getConnectionState());
     }
 }
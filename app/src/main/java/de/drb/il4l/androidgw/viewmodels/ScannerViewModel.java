@@ -38,10 +38,15 @@ import androidx.preference.PreferenceManager;
 
 import java.util.List;
 
+import de.drb.il4l.androidgw.BLE_GW_Application;
+import de.drb.il4l.androidgw.GatewayService;
 import de.drb.il4l.androidgw.ScannerActivity;
+import de.drb.il4l.androidgw.scan.ScanConfig;
+import de.drb.il4l.androidgw.scan.ScanStats;
 import de.drb.il4l.androidgw.utils.Utils;
 import no.nordicsemi.android.support.v18.scanner.BluetoothLeScannerCompat;
 import no.nordicsemi.android.support.v18.scanner.ScanCallback;
+import no.nordicsemi.android.support.v18.scanner.ScanFilter;
 import no.nordicsemi.android.support.v18.scanner.ScanResult;
 import no.nordicsemi.android.support.v18.scanner.ScanSettings;
 
@@ -60,6 +65,8 @@ public class ScannerViewModel extends AndroidViewModel {
 	private final ScannerStateLiveData mScannerStateLiveData;
 
 	private final SharedPreferences mPreferences;
+	private final ScanConfig mScanConfig;
+	private final ScanStats mScanStats = new ScanStats();
 
 	private boolean mScanError = false;
 
@@ -71,6 +78,13 @@ public class ScannerViewModel extends AndroidViewModel {
 		return mScannerStateLiveData;
 	}
 
+	/**
+	 * Returns the wakeups and results of the current or last scan, shown by the scanner screen.
+	 */
+	public ScanStats getScanStats() {
+		return mScanStats;
+	}
+
 	public ScannerViewModel(final Application application) {
 		super(application);
 		mPreferences = PreferenceManager.getDefaultSharedPreferences(application);
@@ -81,6 +95,7 @@ public class ScannerViewModel extends AndroidViewModel {
 		mScannerStateLiveData = new ScannerStateLiveData(Utils.isBleEnabled(),
 				Utils.isLocationEnabled(application));
 		mDevicesLiveData = new DevicesLiveData(filterUuidRequired, filerNearbyOnly);
+		mScanConfig = new ScanConfig(BluetoothAdapter.getDefaultAdapter());
 		registerBroadcastReceivers(application);
 	}
 
@@ -125,6 +140,12 @@ public class ScannerViewModel extends AndroidViewModel {
 			mScannerStateLiveData.recordFound();
 		else
 			mScannerStateLiveData.clearRecords();
+
+		// The controller filter depends on this flag while no tag is known
+		if (BLE_GW_Application.BLEscanFilter && !hasKnownTags() && mScannerStateLiveData.isScanning()) {
+			stopScan();
+			startScan();
+		}
 	}
 
 
@@ -152,17 +173,35 @@ public class ScannerViewModel extends AndroidViewModel {
 		}
 
 		// Scanning settings
-		final ScanSettings settings = new ScanSettings.Builder()
-				.setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
-				.setReportDelay(500)
-				.setUseHardwareBatchingIfSupported(false)
-				.build();
+		final ScanSettings settings = mScanConfig.settings(ScanSettings.SCAN_MODE_LOW_LATENCY, 500);
+		final List<ScanFilter> filters = scanFilters();
 
 		final BluetoothLeScannerCompat scanner = BluetoothLeScannerCompat.getScanner();
-		scanner.startScan(null, settings, scanCallback);
+		scanner.startScan(filters, settings, scanCallback);
+		mScanStats.start(mScanConfig.describe(filters != null));
 		mScannerStateLiveData.scanningStarted();
 	}
 
+	/**
+	 * Once tags are known, only they and tags advertising the ranging service pass, whatever the
+	 * UUID filter says. Before, the ranging service filter only applies if enabled in the settings.
+	 * The name filter is still applied to the results.
+	 *
+	 * @return null to scan without filter
+	 */
+	private List<ScanFilter> scanFilters() {
+		if (hasKnownTags()) {
+			final List<ScanFilter> filters = mScanConfig.addressFilters(BLE_GW_Application.KnownBeacons.keySet());
+			filters.addAll(mScanConfig.rangingServiceFilters());
+			return filters;
+		}
+		return BLE_GW_Application.BLEscanFilter && isUuidFilterEnabled() ? mScanConfig.rangingServiceFilters() : null;
+	}
+
+	private static boolean hasKnownTags() {
+		return BLE_GW_Application.KnownBeacons != null && !BLE_GW_Application.KnownBeacons.isEmpty();
+	}
+
 	/**
 	 * Stop scanning for bluetooth devices.
 	 */
@@ -171,6 +210,7 @@ public class ScannerViewModel extends AndroidViewModel {
 			final BluetoothLeScannerCompat scanner = BluetoothLeScannerCompat.getScanner();
 			scanner.stopScan(scanCallback);
 			mScannerStateLiveData.scanningStopped();
+			Log.i(TAG, "Scan stopped, " + mScanStats);
 		}
 	}
 
@@ -178,32 +218,36 @@ public class ScannerViewModel extends AndroidViewModel {
 		@Override
 		public void onScanResult(final int callbackType, @NonNull final ScanResult result) {
 			// This callback will be called only if the scan report delay is not set or is set to 0.
+			mScanStats.record(1);
 
 			// If the packet has been obtained while Location was disabled, mark Location as not required
 			if (Utils.isLocationRequired(getApplication()) && !Utils.isLocationEnabled(getApplication()))
 				Utils.markLocationNotRequired(getApplication());
 
+			reportKnownTag(result);
 			if (mDevicesLiveData.deviceDiscovered(result)) {
-				mDevicesLiveData.applyFilter();
 				mScannerStateLiveData.recordFound();
 			}
+			mDevicesLiveData.publish();
 		}
 
 		@Override
 		public void onBatchScanResults(@NonNull final List<ScanResult> results) {
 			// This callback will be called only if the report delay set above is greater then 0.
+			mScanStats.record(results.size());
 
 			// If the packet has been obtained while Location was disabled, mark Location as not required
 			if (Utils.isLocationRequired(getApplication()) && !Utils.isLocationEnabled(getApplication()))
 				Utils.markLocationNotRequired(getApplication());
 
-			boolean atLeastOneMatchedFilter = false;
-			for (final ScanResult result : results)
-				atLeastOneMatchedFilter = mDevicesLiveData.deviceDiscovered(result) || atLeastOneMatchedFilter;
-			if (atLeastOneMatchedFilter) {
-				mDevicesLiveData.applyFilter();
+			for (final ScanResult result : results) {
+				reportKnownTag(result);
+			}
+			if (mDevicesLiveData.devicesDiscovered(results)) {
 				mScannerStateLiveData.recordFound();
 			}
+			// One list per batch at most
+			mDevicesLiveData.publish();
 		}
 
 		@Override
@@ -216,6 +260,17 @@ public class ScannerViewModel extends AndroidViewModel {
 		}
 	};
 
+	/**
+	 * Tell the gateway service about known tags in range, so parked ones get connected again.
+	 */
+	private void reportKnownTag(final ScanResult result) {
+		final String address = result.getDevice().getAddress();
+		final GatewayService service = ((BLE_GW_Application) getApplication()).getGatewayService();
+		if (service != null && BLE_GW_Application.KnownBeacons.containsKey(address)) {
+			service.onTagAdvertising(address, result.getRssi());
+		}
+	}
+
 	/**
 	 * Register for required broadcast receivers.
 	 */
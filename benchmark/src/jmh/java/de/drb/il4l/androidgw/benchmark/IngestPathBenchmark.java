@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import de.drb.il4l.androidgw.core.TagSession;
+import de.drb.il4l.androidgw.ingest.RangingIngest;
+import de.drb.il4l.androidgw.ingest.RangingRingBuffer;
+import de.drb.il4l.androidgw.mqtt.RangingBatcher;
+
+/**
+ * Hand-off of a notification through the ingest ring and into a ranging batch, without the
+ * broker round trip.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class IngestPathBenchmark {
+
+    private static final String ADDRESS = "C4:7C:8D:6A:3E:01";
+    private static final String TOPIC = "POS/batch";
+
+    private final byte[] mFrame = new byte[2 + 8 * 4];
+    private final TagSession mSession = new TagSession(ADDRESS, TagSession.CONNECTED);
+    private RangingRingBuffer<String> mRing;
+    private RangingBatcher mBatcher;
+    private ScheduledExecutorService mTimer;
+    private Blackhole mBlackhole;
+
+    @Setup
+    public void setup(Blackhole bh) {
+        mBlackhole = bh;
+        mFrame[0] = 8;
+        mRing = new RangingRingBuffer<>(1024, RangingIngest.MAX_FRAME_SIZE);
+        // Long window so envelopes are only emitted by size
+        mTimer = Executors.newSingleThreadScheduledExecutor();
+        mBatcher = new RangingBatcher((topic, envelope, delivery) -> mBlackhole.consume(envelope),
+                60000, 64, RangingIngest.MAX_FRAME_SIZE, mTimer);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mBatcher.close();
+        mTimer.shutdownNow();
+    }
+
+    @Benchmark
+    public int ringOfferDrain() {
+        mRing.offer(ADDRESS, mFrame, 0L, 0L);
+        return mRing.drain((tag, data, length, receivedAt, arrivalNanos) -> mBlackhole.consume(length), 64);
+    }
+
+    @Benchmark
+    public void batchAdd() {
+        mBatcher.add(TOPIC, mSession, mFrame, mFrame.length, 0L, 0L);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+import de.drb.il4l.androidgw.core.TagSession;
+import de.drb.il4l.androidgw.mqtt.Delivery;
+import de.drb.il4l.androidgw.mqtt.MqttTransport;
+import de.drb.il4l.androidgw.mqtt.PublishPipeline;
+
+/**
+ * A single ranging frame into the outbound queue of the publish pipeline, whose I/O thread hands
+ * it to a transport that acknowledges it right away. Once the message pool is warm the gc
+ * profiler should report close to 0 B/op.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PublishPathBenchmark {
+
+    private static final String ADDRESS = "C4:7C:8D:6A:3E:01";
+
+    @Param({"false", "true"})
+    public boolean compact;
+
+    private final byte[] mFrame = new byte[2 + 8 * 4];
+    private final TagSession mSession = new TagSession(ADDRESS, TagSession.CONNECTED);
+    private PublishPipeline mPipeline;
+
+    @Setup
+    public void setup() {
+        mFrame[0] = 8;
+        PublishPipeline.Config config = new PublishPipeline.Config();
+        config.useTagName = false;
+        config.compact = compact;
+        mPipeline = new PublishPipeline(new AckingTransport(), config);
+        mPipeline.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mPipeline.close();
+    }
+
+    @Benchmark
+    public boolean publishRanging() {
+        return mPipeline.publishRanging(mSession, mFrame, mFrame.length, 0L, 0L);
+    }
+
+    private static final class AckingTransport implements MqttTransport {
+        private volatile Callback mCallback;
+
+        @Override
+        public void setCallback(Callback callback) {
+            mCallback = callback;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public void publish(String topic, byte[] payload, int qos, boolean retained, Delivery delivery) {
+            mCallback.deliveryComplete(delivery);
+        }
+    }
+}
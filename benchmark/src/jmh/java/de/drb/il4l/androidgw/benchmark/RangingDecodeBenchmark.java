@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import de.drb.il4l.androidgw.profile.RangingFrame;
+import de.drb.il4l.androidgw.profile.RangingFrameDecoder;
+
+/**
+ * Decoding of Ranging characteristic values, once per notification on the ingest worker.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RangingDecodeBenchmark {
+
+    @Param({"4", "16", "59"})
+    public int anchors;
+
+    private byte[] mRanges;
+    private byte[] mPosition;
+    private final RangingFrame mFrame = new RangingFrame();
+
+    @Setup
+    public void setup() {
+        mRanges = new byte[2 + anchors * 4];
+        mRanges[0] = (byte) anchors;
+        for (int i = 0; i < anchors; i++) {
+            int id = 0x1000 + i;
+            int range = 250 + i * 17;
+            mRanges[2 + i * 4] = (byte) id;
+            mRanges[3 + i * 4] = (byte) (id >> 8);
+            mRanges[4 + i * 4] = (byte) range;
+            mRanges[5 + i * 4] = (byte) (range >> 8);
+        }
+        mPosition = "12.345,-3.5,1.75".getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Benchmark
+    public RangingFrame decodeRanges() {
+        RangingFrameDecoder.decodeRanges(mRanges, 0, mRanges.length, mFrame);
+        return mFrame;
+    }
+
+    @Benchmark
+    public RangingFrame decodePosition() {
+        RangingFrameDecoder.decodePosition(mPosition, 0, mPosition.length, mFrame);
+        return mFrame;
+    }
+
+    /**
+     * Position text handling as it was done before the decoder existed, for comparison.
+     */
+    @Benchmark
+    public void decodePositionSplit(Blackhole bh) {
+        String[] arr = new String(mPosition, StandardCharsets.US_ASCII).split(",");
+        String s = "";
+        if (arr.length >= 3) {
+            s += "x:" + arr[0];
+            s += " y:" + arr[1];
+            s += " z:" + arr[2];
+        }
+        bh.consume(s);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import de.drb.il4l.androidgw.core.TagSession;
+import de.drb.il4l.androidgw.mqtt.RangingTopics;
+import de.drb.il4l.androidgw.utils.TagNames;
+
+/**
+ * Topic of a ranging frame as built by MqttForwarder.publishRanging, including the tag name
+ * lookup of GattConnection.getName when the name is used as topic, and the topic cached in the
+ * session as done by the publish pipeline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RangingTopicBenchmark {
+
+    @Param({"true", "false"})
+    public boolean useName;
+
+    private final String mBaseTopic = "POS";
+    private final String mBleName = "inloc4log_lite_0815";
+    private final String mAddress = "C4:7C:8D:6A:3E:01";
+    private final TagSession mSession = new TagSession(mAddress, TagSession.DISCOVERED);
+
+    @Benchmark
+    public String topic() {
+        String tagId = useName ? TagNames.shortName(mBleName, mAddress) : mAddress;
+        return RangingTopics.forTag(mBaseTopic, tagId);
+    }
+
+    @Benchmark
+    public String cachedTopic() {
+        String topic = mSession.getRangingTopic(0);
+        if (topic == null) {
+            topic = topic();
+            mSession.setRangingTopic(topic, 0);
+        }
+        return topic;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import de.drb.il4l.androidgw.mqtt.CompactRangingCodec;
+import de.drb.il4l.androidgw.profile.RangingFrame;
+import de.drb.il4l.androidgw.profile.RangingFrameDecoder;
+
+/**
+ * Payload of a ranging publication in the raw, CSV and compact formats, built once per frame on
+ * the ingest worker. The payload sizes are listed in the README.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class WireFormatBenchmark {
+    private static final String ADDRESS = "C0:DE:00:12:34:56";
+    private static final long RECEIVED_AT = 1700000000000L;
+
+    @Param({"4", "16", "59"})
+    public int anchors;
+
+    private byte[] mRanges;
+    private byte[] mCompact;
+    private final RangingFrame mFrame = new RangingFrame();
+    private final StringBuilder mCsv = new StringBuilder();
+    private final CompactRangingCodec mCodec = new CompactRangingCodec();
+    private final CompactRangingCodec.Message mMessage = new CompactRangingCodec.Message();
+    private final int mGateway = CompactRangingCodec.gatewayHash("benchmark");
+    private long mSequence;
+
+    @Setup
+    public void setup() {
+        mRanges = new byte[2 + anchors * 4];
+        mRanges[0] = (byte) anchors;
+        for (int i = 0; i < anchors; i++) {
+            int id = 0x1000 + i;
+            int range = 250 + i * 17;
+            mRanges[2 + i * 4] = (byte) id;
+            mRanges[3 + i * 4] = (byte) (id >> 8);
+            mRanges[4 + i * 4] = (byte) range;
+            mRanges[5 + i * 4] = (byte) (range >> 8);
+        }
+        mCompact = compact();
+    }
+
+    /**
+     * The characteristic value as it is published today.
+     */
+    @Benchmark
+    public byte[] raw() {
+        return Arrays.copyOf(mRanges, mRanges.length);
+    }
+
+    /**
+     * Text with metadata, {@code gateway,tag,sequence,time,id,range,id,range,...}.
+     */
+    @Benchmark
+    public byte[] csv() {
+        RangingFrameDecoder.decodeRanges(mRanges, 0, mRanges.length, mFrame);
+        StringBuilder csv = mCsv;
+        csv.setLength(0);
+        csv.append(mGateway).append(',').append(ADDRESS).append(',').append(mSequence++)
+                .append(',').append(RECEIVED_AT);
+        for (int i = 0; i < mFrame.count; i++) {
+            csv.append(',').append(mFrame.anchorIds[i]).append(',').append(mFrame.ranges[i]);
+        }
+        return csv.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Benchmark
+    public byte[] compact() {
+        int length = mCodec.encode(mGateway, CompactRangingCodec.tagId(ADDRESS), mSequence++,
+                RECEIVED_AT, mRanges, mRanges.length);
+        return Arrays.copyOf(mCodec.getBuffer(), length);
+    }
+
+    @Benchmark
+    public CompactRangingCodec.Message decodeCompact() {
+        CompactRangingCodec.decode(mCompact, 0, mCompact.length, mMessage);
+        return mMessage;
+    }
+}
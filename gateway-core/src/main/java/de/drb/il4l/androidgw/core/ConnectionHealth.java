@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.core;
+
+/**
+ * Connect history of a tag. The health score combines the recent success rate of connects with
+ * the time they took, 1 is a tag that connects reliably and fast, 0 one that never connects.
+ *
+ * <p>Updated by the {@link ConnectionScheduler} on its thread, readable from any thread.</p>
+ */
+public class ConnectionHealth {
+    // Weight of the latest attempt in the averages
+    private static final double ALPHA = 0.25;
+    // Time to connect that halves the score
+    private static final double REFERENCE_TIME = 5000;
+
+    private volatile double mSuccessRate = 1.0;
+    private volatile double mConnectTime = 0;
+    private volatile int mFailures = 0;
+    private long mAttemptStartedAt;
+    private boolean mMeasured = false;
+
+    void onAttempt(long now) {
+        mAttemptStartedAt = now;
+    }
+
+    void onSuccess(long now) {
+        long connectTime = now - mAttemptStartedAt;
+        mConnectTime = mMeasured ? mConnectTime + ALPHA * (connectTime - mConnectTime) : connectTime;
+        mMeasured = true;
+        mSuccessRate = mSuccessRate + ALPHA * (1 - mSuccessRate);
+        mFailures = 0;
+    }
+
+    void onFailure() {
+        mSuccessRate = mSuccessRate * (1 - ALPHA);
+        mFailures = mFailures + 1;
+    }
+
+    /**
+     * Forget the failures since the last success, e.g. when the tag was seen again.
+     */
+    void clearFailures() {
+        mFailures = 0;
+    }
+
+    /**
+     * @return 0..1, higher is better
+     */
+    public float getScore() {
+        return (float) (mSuccessRate / (1 + mConnectTime / REFERENCE_TIME));
+    }
+
+    /**
+     * @return failed connects since the last successful one
+     */
+    public int getFailures() {
+        return mFailures;
+    }
+
+    /**
+     * @return average time a connect including service discovery took in ms
+     */
+    public long getConnectTime() {
+        return (long) mConnectTime;
+    }
+}
@@ -0,0 +1,495 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import de.drb.il4l.androidgw.metrics.FleetStartup;
+
+import static de.drb.il4l.androidgw.core.TagSession.CONNECTED;
+import static de.drb.il4l.androidgw.core.TagSession.CONNECTING;
+import static de.drb.il4l.androidgw.core.TagSession.DISCONNECTING;
+import static de.drb.il4l.androidgw.core.TagSession.DISCOVERED;
+import static de.drb.il4l.androidgw.core.TagSession.NOT_STARTED;
+import static de.drb.il4l.androidgw.core.TagSession.PARKED;
+
+/**
+ * Decides when tags get connected and keeps the connection state of their sessions. Connect
+ * requests of the user and connection events of the {@link BleTransport} both end up here.
+ *
+ * <p>Connects are queued and started one by one: at most {@link Config#maxConnecting} tags are
+ * connecting or discovering services at the same time and consecutive connects are spaced by
+ * {@link Config#connectSpacing}. Starting many connects at once overloads the BLE stack of most
+ * phones, which then fails them with status 133. Queued tags are ordered by importance, then by
+ * their {@link ConnectionHealth} and the signal strength they were last seen with.</p>
+ *
+ * <p>A tag that disconnects unexpectedly is queued again right away. If its connect fails or
+ * doesn't finish within {@link Config#connectTimeout}, the next attempt is delayed with
+ * exponential backoff and jitter. After
+ * {@link Config#parkAfter} failures in a row the tag is parked and only retried once it is seen
+ * advertising again, see {@link #onAdvertising}, or the user connects it.</p>
+ *
+ * <p>If the platform scans for the tags in the background, {@link Config#presenceTimeout} can be
+ * set. A failed tag that wasn't seen advertising within that time is parked right away instead
+ * of being retried blindly, and only the signal strength of present tags counts for the
+ * order.</p>
+ *
+ * <p>Not thread safe, all methods have to be called from the thread of the {@link EventLoop}. On
+ * Android that is the main thread, where the BLE library delivers its callbacks. Only
+ * {@link #getSession} and {@link #getSessions} may be used from other threads.</p>
+ *
+ * @param <S> session type of the platform
+ */
+public class ConnectionScheduler<S extends TagSession> {
+    private final static Logger LOG = Logger.getLogger(ConnectionScheduler.class.getName());
+
+    public interface Listener<S extends TagSession> {
+        /**
+         * The connection state of the session changed.
+         */
+        void onStateChanged(S session);
+
+        /**
+         * The session was dropped after a disconnect that shouldn't be restored.
+         */
+        void onSessionClosed(S session);
+    }
+
+    public static class Config {
+        // Tags connecting or discovering services at the same time
+        public int maxConnecting = 2;
+        // Minimum time between the start of two connects in ms
+        public long connectSpacing = 100;
+        // Time in ms after which a connect that hasn't finished is aborted and counts as failed
+        public long connectTimeout = 30000;
+        // Delay in ms after the first failed connect, doubled with every further failure
+        public long reconnectDelay = 1000;
+        public long maxReconnectDelay = 5 * 60 * 1000;
+        // Failed connects in a row after which a tag is parked, 0 never parks
+        public int parkAfter = 6;
+        // Time in ms a tag counts as present after it was seen advertising, 0 if the platform
+        // doesn't scan in the background
+        public long presenceTimeout = 0;
+    }
+
+    private final BleTransport<S> mTransport;
+    private final EventLoop mLoop;
+    private final Listener<S> mListener;
+    private final int mMaxConnecting;
+    private final long mConnectSpacing;
+    private final long mConnectTimeout;
+    private final long mReconnectDelay;
+    private final long mMaxReconnectDelay;
+    private final int mParkAfter;
+    private final long mPresenceTimeout;
+    private final Random mRandom = new Random();
+    private final FleetStartup mStartup = new FleetStartup();
+
+    // Modified on the scheduler thread only, concurrent so metrics can be read from other threads
+    private final Map<String, S> mSessions = new ConcurrentHashMap<>();
+    // Waiting for a connect slot, in request order
+    private final Map<String, S> mQueued = new LinkedHashMap<>();
+    // Connecting or discovering, mapped to the attempt number to match timeouts
+    private final Map<String, Integer> mInFlight = new HashMap<>();
+    private int mAttempts = 0;
+    private long mNextConnectAt = 0;
+    private boolean mPumpPosted = false;
+
+    public ConnectionScheduler(BleTransport<S> transport, EventLoop loop, Config config, Listener<S> listener) {
+        mTransport = transport;
+        mLoop = loop;
+        mListener = listener;
+        mMaxConnecting = Math.max(1, config.maxConnecting);
+        mConnectSpacing = config.connectSpacing;
+        mConnectTimeout = config.connectTimeout;
+        mReconnectDelay = config.reconnectDelay;
+        mMaxReconnectDelay = config.maxReconnectDelay;
+        mParkAfter = config.parkAfter;
+        mPresenceTimeout = config.presenceTimeout;
+    }
+
+    /**
+     * Queue a connection to the tag. If a session for the address exists already that session is
+     * used. Previous failures of the tag are forgotten, a parked tag is queued again.
+     *
+     * @param session   target tag
+     */
+    public void connect(S session) {
+        String address = session.getServerAddr();
+        S registered = mSessions.get(address);
+        if (registered != null) {
+            session = registered;
+        }
+
+        int state = session.getConnectionState();
+        if (state == CONNECTING || state == CONNECTED || state == DISCOVERED) {
+            LOG.info("Ignoring connect(" + address + ") because already connected");
+            return;
+        }
+
+        LOG.info("connect(" + address + ")");
+        mSessions.put(address, session);
+        session.setAutoReconnect(true);
+        session.getHealth().clearFailures();
+        enqueue(session);
+    }
+
+    /**
+     * Queue connections to all tags, e.g. the known tags after the gateway was restarted. The
+     * tags that were active most recently are queued first. The time until all of them are
+     * connected or given up on is tracked by {@link #getFleetStartup()}.
+     *
+     * @param sessions  target tags
+     */
+    public void warmStart(Collection<S> sessions) {
+        List<S> ordered = new ArrayList<>(sessions);
+        Collections.sort(ordered, (a, b) -> Long.compare(b.getLastActivity(), a.getLastActivity()));
+
+        List<String> addresses = new ArrayList<>(ordered.size());
+        for (S session : ordered) {
+            addresses.add(session.getServerAddr());
+        }
+        LOG.info("Warm start of " + ordered.size() + " tags");
+        mStartup.start(addresses, mLoop.uptimeMillis());
+
+        for (S session : ordered) {
+            connect(session);
+            // Already connected tags count as up
+            S registered = mSessions.get(session.getServerAddr());
+            if (registered != null && registered.getConnectionState() == DISCOVERED) {
+                mStartup.onConnected(registered.getServerAddr(), mLoop.uptimeMillis());
+            }
+        }
+    }
+
+    /**
+     * Disconnect from the tag, the connection won't be restored.
+     *
+     * @param session                       target tag
+     * @throws IllegalArgumentException     if the tag is unknown
+     */
+    public void disconnect(S session) {
+        S registered = mSessions.get(session.getServerAddr());
+        if (registered == null) {
+            throw new IllegalArgumentException("unknown device");
+        }
+
+        LOG.info("disconnect(" + registered.getServerAddr() + ")");
+        registered.setAutoReconnect(false);
+        int state = registered.getConnectionState();
+        if (mQueued.remove(registered.getServerAddr()) != null || state == NOT_STARTED || state == PARKED) {
+            // Queued, waiting for a retry or parked: the transport isn't connecting, so no
+            // disconnect event will follow
+            setState(registered, NOT_STARTED);
+            close(registered);
+            return;
+        }
+
+        mTransport.disconnect(registered);
+        setState(registered, DISCONNECTING);
+    }
+
+    /**
+     * @return the session of the address or null if the tag is unknown
+     */
+    public S getSession(String address) {
+        return mSessions.get(address);
+    }
+
+    public Collection<S> getSessions() {
+        return Collections.unmodifiableCollection(mSessions.values());
+    }
+
+    public EventLoop getEventLoop() {
+        return mLoop;
+    }
+
+    /**
+     * @return progress of the last {@link #warmStart}
+     */
+    public FleetStartup getFleetStartup() {
+        return mStartup;
+    }
+
+    /**
+     * @return number of tags waiting for a connect slot
+     */
+    public int getQueueLength() {
+        return mQueued.size();
+    }
+
+    /**
+     * @return number of tags connecting or discovering services
+     */
+    public int getInFlight() {
+        return mInFlight.size();
+    }
+
+    /**
+     * @return the session of the connected tag or null if the tag is unknown
+     */
+    public S onConnected(String address) {
+        S session = mSessions.get(address);
+        if (session != null) {
+            session.resetURate();
+            setState(session, CONNECTED);
+        }
+        return session;
+    }
+
+    public S onServicesDiscovered(String address) {
+        S session = mSessions.get(address);
+        if (session != null) {
+            session.getHealth().onSuccess(mLoop.uptimeMillis());
+            setState(session, DISCOVERED);
+            finishAttempt(address);
+        }
+        return session;
+    }
+
+    /**
+     * The connection to the tag is closed. Unless the user asked for the disconnect the tag is
+     * queued again, after a backoff delay if the connect failed. Otherwise the session is
+     * dropped.
+     */
+    public S onDisconnected(String address) {
+        S session = mSessions.get(address);
+        if (session == null) {
+            LOG.warning("Unknown device disconnected: " + address);
+            return null;
+        }
+
+        int previousState = session.getConnectionState();
+        if (previousState == NOT_STARTED || previousState == PARKED || mQueued.containsKey(address)) {
+            // The transport isn't connecting, e.g. the disconnect of a connect that timed out
+            LOG.info("Ignoring disconnect of " + address + ", not connected");
+            return session;
+        }
+
+        // Anything but a completed discovery means the connect failed
+        boolean failed = previousState == CONNECTING || previousState == CONNECTED;
+        setState(session, NOT_STARTED);
+        finishAttempt(address);
+
+        if (!session.isAutoReconnect()) {
+            close(session);
+        } else if (failed) {
+            retryLater(session);
+        } else {
+            LOG.info("Connection to " + address + " was closed unexpectedly! reconnecting..");
+            enqueue(session);
+        }
+        return session;
+    }
+
+    /**
+     * The tag was seen advertising. Updates its signal strength and queues it again if it was
+     * parked.
+     *
+     * @param rssi  signal strength in dBm
+     */
+    public void onAdvertising(String address, int rssi) {
+        S session = mSessions.get(address);
+        if (session == null) {
+            return;
+        }
+
+        session.setRssi(rssi);
+        session.setLastSeen(mLoop.uptimeMillis());
+        if (session.getConnectionState() == PARKED) {
+            LOG.info("Parked device " + address + " is advertising again, reconnecting..");
+            session.getHealth().clearFailures();
+            enqueue(session);
+        }
+    }
+
+    private void retryLater(final S session) {
+        final ConnectionHealth health = session.getHealth();
+        health.onFailure();
+        final int failures = health.getFailures();
+        if (mParkAfter > 0 && failures >= mParkAfter) {
+            LOG.info("Connecting to " + session.getServerAddr() + " failed " + failures + " times, parking it");
+            setState(session, PARKED);
+            return;
+        }
+        if (mPresenceTimeout > 0 && !isPresent(session)) {
+            LOG.info("Connecting to " + session.getServerAddr() + " failed and it isn't advertising, parking it");
+            setState(session, PARKED);
+            return;
+        }
+
+        // Equal jitter: at least half of the backoff, so retries of many tags spread out
+        long backoff = Math.min(mMaxReconnectDelay, mReconnectDelay << Math.min(failures - 1, 30));
+        long delay = backoff / 2 + (long) (mRandom.nextDouble() * (backoff / 2));
+        LOG.info("Connecting to " + session.getServerAddr() + " failed, retrying in " + delay + " ms");
+
+        mLoop.postDelayed(() -> {
+            // Skip if the tag was connected, parked or dropped in the meantime
+            if (mSessions.get(session.getServerAddr()) == session && session.isAutoReconnect()
+                    && session.getConnectionState() == NOT_STARTED && health.getFailures() == failures) {
+                enqueue(session);
+            }
+        }, delay);
+    }
+
+    private void enqueue(S session) {
+        mQueued.put(session.getServerAddr(), session);
+        setState(session, CONNECTING);
+        pump();
+    }
+
+    private void close(S session) {
+        String address = session.getServerAddr();
+        mStartup.onGivenUp(address, mLoop.uptimeMillis());
+        mSessions.remove(address);
+        mTransport.release(session);
+        mListener.onSessionClosed(session);
+        LOG.info("Closed connection to " + address);
+    }
+
+    private void finishAttempt(String address) {
+        if (mInFlight.remove(address) != null) {
+            pump();
+        }
+    }
+
+    /**
+     * Start queued connects while slots are free and the spacing allows it.
+     */
+    private void pump() {
+        while (!mQueued.isEmpty() && mInFlight.size() < mMaxConnecting) {
+            long now = mLoop.uptimeMillis();
+            if (now < mNextConnectAt) {
+                if (!mPumpPosted) {
+                    mPumpPosted = true;
+                    mLoop.postDelayed(() -> {
+                        mPumpPosted = false;
+                        pump();
+                    }, mNextConnectAt - now);
+                }
+                return;
+            }
+
+            S session = pollBest();
+            session.getHealth().onAttempt(now);
+            final String address = session.getServerAddr();
+            final int attempt = ++mAttempts;
+            mInFlight.put(address, attempt);
+            mNextConnectAt = now + mConnectSpacing;
+            mTransport.connect(session);
+
+            mLoop.postDelayed(() -> {
+                Integer current = mInFlight.get(address);
+                if (current != null && current == attempt) {
+                    onConnectTimeout(address);
+                }
+            }, mConnectTimeout);
+        }
+    }
+
+    /**
+     * Abort a connect that didn't finish in time and retry it like a failed one. The disconnect
+     * reported by the transport afterwards is ignored.
+     */
+    private void onConnectTimeout(String address) {
+        S session = mSessions.get(address);
+        if (session == null || session.getConnectionState() == DISCONNECTING) {
+            // Disconnect requested in the meantime, its event finishes the attempt
+            LOG.warning("Disconnect of " + address + " takes too long, releasing its slot");
+            finishAttempt(address);
+            return;
+        }
+
+        LOG.warning("Connect to " + address + " takes too long, aborting it");
+        setState(session, NOT_STARTED);
+        finishAttempt(address);
+        mTransport.disconnect(session);
+        retryLater(session);
+    }
+
+    /**
+     * @return the queued session with the highest importance, health and signal strength, the
+     *         earliest request on a tie
+     */
+    private S pollBest() {
+        S best = null;
+        for (S session : mQueued.values()) {
+            if (best == null || compare(session, best) > 0) {
+                best = session;
+            }
+        }
+        mQueued.remove(best.getServerAddr());
+        return best;
+    }
+
+    /**
+     * @return true if the tag was seen advertising within the presence timeout
+     */
+    private boolean isPresent(TagSession session) {
+        return session.getRssi() != TagSession.RSSI_UNKNOWN
+                && mLoop.uptimeMillis() - session.getLastSeen() <= mPresenceTimeout;
+    }
+
+    /**
+     * @return signal strength of the tag, unknown if it wasn't seen recently
+     */
+    private int effectiveRssi(TagSession session) {
+        if (mPresenceTimeout > 0 && !isPresent(session)) {
+            return TagSession.RSSI_UNKNOWN;
+        }
+        return session.getRssi();
+    }
+
+    private int compare(TagSession a, TagSession b) {
+        if (a.getImportance() != b.getImportance()) {
+            return Integer.compare(a.getImportance(), b.getImportance());
+        }
+        // Coarse steps, so the signal strength decides between similarly healthy tags
+        int healthA = Math.round(a.getHealth().getScore() * 4);
+        int healthB = Math.round(b.getHealth().getScore() * 4);
+        if (healthA != healthB) {
+            return Integer.compare(healthA, healthB);
+        }
+        return Integer.compare(effectiveRssi(a), effectiveRssi(b));
+    }
+
+    private void setState(S session, int newState) {
+        session.setConnectionState(newState);
+        if (newState == DISCOVERED) {
+            mStartup.onConnected(session.getServerAddr(), mLoop.uptimeMillis());
+        } else if (newState == PARKED) {
+            mStartup.onGivenUp(session.getServerAddr(), mLoop.uptimeMillis());
+        }
+        LOG.info("Connection state of device '" + session.getServerAddr() + "' was changed to: "
+                + TagSession.stateName(newState));
+        mListener.onStateChanged(session);
+    }
+}
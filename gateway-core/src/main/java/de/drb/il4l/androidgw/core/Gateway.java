@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.core;
+
+import java.util.Collection;
+import java.util.logging.Logger;
+
+import de.drb.il4l.androidgw.ingest.RangingIngest;
+import de.drb.il4l.androidgw.mqtt.MessageClass;
+import de.drb.il4l.androidgw.mqtt.PublishPipeline;
+
+/**
+ * Forwarding path of the gateway without any platform dependency. The platform feeds connection
+ * events and ranging notifications in, frames are queued by the {@link RangingIngest} and handed
+ * to the {@link PublishPipeline} on its worker thread.
+ *
+ * <p>Connection events and connect requests have to be delivered on a single thread, see
+ * {@link ConnectionScheduler}. Notifications may arrive on any thread.</p>
+ *
+ * @param <S> session type of the platform
+ */
+public class Gateway<S extends TagSession> {
+    private final static Logger LOG = Logger.getLogger(Gateway.class.getName());
+
+    public final static String TOPIC_ONLINE = "ONLINE";
+    public final static String TOPIC_OFFLINE = "OFFLINE";
+
+    public interface Listener<S extends TagSession> extends ConnectionScheduler.Listener<S> {
+        /**
+         * A ranging frame was handed to the publish pipeline. Called on the ingest worker thread.
+         *
+         * @param data  frame payload, only valid during this call
+         */
+        void onRangingFrame(S session, byte[] data, int length, long receivedAt);
+    }
+
+    private final ConnectionScheduler<S> mScheduler;
+    private final PublishPipeline mPublisher;
+    private final RangingIngest<S> mIngest;
+    private final Listener<S> mListener;
+
+    public Gateway(BleTransport<S> transport, EventLoop loop, ConnectionScheduler.Config schedulerConfig,
+                   PublishPipeline publisher, Listener<S> listener) {
+        mScheduler = new ConnectionScheduler<>(transport, loop, schedulerConfig, listener);
+        mPublisher = publisher;
+        mListener = listener;
+        mIngest = new RangingIngest<>(this::onRangingFrame);
+    }
+
+    public void start() {
+        mPublisher.start();
+        mIngest.start();
+    }
+
+    /**
+     * Stop the ingest worker and close the publish pipeline.
+     */
+    public void stop() {
+        mIngest.stop();
+        mPublisher.close();
+    }
+
+    public void connect(S session) {
+        mScheduler.connect(session);
+    }
+
+    public void disconnect(S session) {
+        mScheduler.disconnect(session);
+    }
+
+    /**
+     * Connect all tags, most recently active first, see {@link ConnectionScheduler#warmStart}.
+     */
+    public void warmStart(Collection<S> sessions) {
+        mScheduler.warmStart(sessions);
+    }
+
+    /**
+     * Queue a ranging notification. Safe to call from any thread, never blocks.
+     *
+     * @param session       tag the notification was received from
+     * @param value         notification payload, copied before returning
+     * @param arrivalNanos  arrival time on the latency clock of the publish pipeline
+     * @return false if the frame was dropped because the queue is full
+     */
+    public boolean onNotification(S session, byte[] value, long arrivalNanos) {
+        return mIngest.offer(session, value, arrivalNanos);
+    }
+
+    public void onDeviceConnected(String address) {
+        if (mScheduler.onConnected(address) != null) {
+            publishPresence(TOPIC_ONLINE, address);
+        }
+    }
+
+    public void onServicesDiscovered(String address) {
+        mScheduler.onServicesDiscovered(address);
+    }
+
+    public void onDeviceDisconnecting(String address) {
+        publishPresence(TOPIC_OFFLINE, address);
+    }
+
+    public void onDeviceDisconnected(String address) {
+        mScheduler.onDisconnected(address);
+    }
+
+    /**
+     * A tag was seen advertising, e.g. by a background scan.
+     *
+     * @param rssi  signal strength in dBm
+     */
+    public void onAdvertising(String address, int rssi) {
+        mScheduler.onAdvertising(address, rssi);
+    }
+
+    public void onLinkLoss(String address) {
+        LOG.info("Link loss: " + address);
+    }
+
+    public ConnectionScheduler<S> getScheduler() {
+        return mScheduler;
+    }
+
+    public PublishPipeline getPublisher() {
+        return mPublisher;
+    }
+
+    public RangingIngest<S> getIngest() {
+        return mIngest;
+    }
+
+    private void onRangingFrame(S session, byte[] data, int length, long receivedAt, long arrivalNanos) {
+        session.onRangingFrame(arrivalNanos);
+        // Frames that don't fit into the outbound queue are counted by the publisher
+        mPublisher.publishRanging(session, data, length, receivedAt, arrivalNanos);
+
+        mListener.onRangingFrame(session, data, length, receivedAt);
+    }
+
+    private void publishPresence(String topic, String address) {
+        S session = mScheduler.getSession(address);
+        byte[] payload = session != null ? session.getAddressBytes() : address.getBytes();
+        if (!mPublisher.publish(MessageClass.PRESENCE, topic, payload)) {
+            LOG.warning("Outbound queue full, " + topic + " message of " + address + " dropped");
+        }
+    }
+}
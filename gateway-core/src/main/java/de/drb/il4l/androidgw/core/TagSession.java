@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.core;
+
+import de.drb.il4l.androidgw.metrics.RateMeter;
+import de.drb.il4l.androidgw.metrics.TagLatency;
+
+/**
+ * State of a tag as seen by the gateway. The session is kept by the {@link ConnectionScheduler}
+ * for as long as the gateway tries to stay connected to the tag, platform specific connection
+ * handles only refer to it.
+ */
+public class TagSession {
+
+    /* Connection states:
+           -1 - disconnect requested
+            0 - not started
+            1 - connecting to GATT server
+            2 - connected to GATT server
+            3 - services discovered / ready
+     */
+    public static final int DISCONNECTING = -1;
+    public static final int NOT_STARTED = 0;
+    public static final int CONNECTING = 1;
+    public static final int CONNECTED = 2;
+    public static final int DISCOVERED = 3;
+    /** Connects kept failing, retried once the tag is seen advertising */
+    public static final int PARKED = 4;
+
+    public static final int IMPORTANCE_NORMAL = 0;
+    /** Connects requested by the user are served first */
+    public static final int IMPORTANCE_USER = 10;
+
+    public static final int RSSI_UNKNOWN = Integer.MIN_VALUE;
+
+    private final String serverAddr;
+    // Payload of the presence messages
+    private final byte[] addressBytes;
+    private volatile int connectionState;
+    private volatile boolean autoReconnect = true;
+    private volatile int importance = IMPORTANCE_NORMAL;
+    private volatile int rssi = RSSI_UNKNOWN;
+    private volatile long lastActivity = 0;
+    private volatile long lastSeen = 0;
+    private final TagLatency latency = new TagLatency();
+    private final RateMeter rate = new RateMeter();
+    private final ConnectionHealth health = new ConnectionHealth();
+    // Set on (re)connect, the meter is reset on the ingest worker with the next frame
+    private volatile boolean rateReset;
+    // Next sequence number of a published frame, ingest worker only
+    private long sequence;
+    // Ranging topic and the topic generation of the publish pipeline it was built for, ingest worker only
+    private String rangingTopic;
+    private int rangingTopicGeneration = -1;
+
+    public TagSession(String serverAddress, int connectionState) {
+        this.serverAddr = serverAddress;
+        this.addressBytes = serverAddress.getBytes();
+        this.connectionState = connectionState;
+    }
+
+    public String getServerAddr() {
+        return serverAddr;
+    }
+
+    /**
+     * @return BLE address as bytes, shared by all callers and must not be modified
+     */
+    public byte[] getAddressBytes() {
+        return addressBytes;
+    }
+
+    /**
+     * @return name used for this tag in topics and on screen, the BLE address by default
+     */
+    public String getName() {
+        return serverAddr;
+    }
+
+    public int getConnectionState() {
+        return connectionState;
+    }
+
+    public void setConnectionState(int newState) {
+        connectionState = newState;
+    }
+
+    /**
+     * @param now   current time on the clock of the frame arrival times
+     * @return ranging frames per second, 0 while the tag isn't connected
+     */
+    public float getURate(long now) {
+        int state = connectionState;
+        return state == CONNECTED || state == DISCOVERED ? rate.getRate(now) : 0.0f;
+    }
+
+    /**
+     * @return rate, jitter and gaps of the ranging frames since the tag was connected
+     */
+    public RateMeter getRateMeter() {
+        return rate;
+    }
+
+    /**
+     * @return true if the connection is restored when it was closed without being requested
+     */
+    public boolean isAutoReconnect() {
+        return autoReconnect;
+    }
+
+    public void setAutoReconnect(boolean reconnect) {
+        autoReconnect = reconnect;
+    }
+
+    /**
+     * @return connect priority, higher values are connected first
+     */
+    public int getImportance() {
+        return importance;
+    }
+
+    public void setImportance(int importance) {
+        this.importance = importance;
+    }
+
+    /**
+     * @return signal strength the tag was last seen with in dBm, {@link #RSSI_UNKNOWN} if it
+     *         wasn't seen yet
+     */
+    public int getRssi() {
+        return rssi;
+    }
+
+    public void setRssi(int rssi) {
+        this.rssi = rssi;
+    }
+
+    /**
+     * @return when the tag was last seen advertising in ms of the {@link EventLoop} clock, only
+     *         valid if {@link #getRssi()} is known
+     */
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    public void setLastSeen(long lastSeen) {
+        this.lastSeen = lastSeen;
+    }
+
+    /**
+     * @return when the tag was last connected in ms since epoch, 0 if unknown
+     */
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    public void setLastActivity(long lastActivity) {
+        this.lastActivity = lastActivity;
+    }
+
+    public ConnectionHealth getHealth() {
+        return health;
+    }
+
+    /**
+     * @return latency of the ranging frames of this tag since the gateway started
+     */
+    public TagLatency getLatency() {
+        return latency;
+    }
+
+    /**
+     * Refresh the update rate with a ranging frame. Called on the ingest worker thread.
+     *
+     * @param arrivalNanos  arrival time of the frame on a monotonic clock
+     */
+    public void onRangingFrame(long arrivalNanos) {
+        if (rateReset) {
+            rateReset = false;
+            rate.reset();
+        }
+        rate.record(arrivalNanos);
+    }
+
+    /**
+     * @return sequence number for the next published frame, counting up from 0. Called on the
+     *         ingest worker thread.
+     */
+    public long nextSequence() {
+        return sequence++;
+    }
+
+    /**
+     * @param generation    current topic generation of the publish pipeline
+     * @return cached ranging topic, null if it was built for another generation. Called on the
+     *         ingest worker thread.
+     */
+    public String getRangingTopic(int generation) {
+        return generation == rangingTopicGeneration ? rangingTopic : null;
+    }
+
+    public void setRangingTopic(String topic, int generation) {
+        rangingTopic = topic;
+        rangingTopicGeneration = generation;
+    }
+
+    /**
+     * Start the update rate over with the next frame, so the time the tag was disconnected
+     * doesn't count as a gap.
+     */
+    public void resetURate() {
+        rateReset = true;
+    }
+
+    public static String stateName(int state) {
+        switch (state) {
+            case DISCONNECTING:
+                return "DISCONNECTING";
+            case CONNECTED:
+                return "CONNECTED";
+            case NOT_STARTED:
+                return "DISCONNECTED";
+            case CONNECTING:
+                return "CONNECTING";
+            case DISCOVERED:
+                return "DISCOVERED";
+            case PARKED:
+                return "OUT OF RANGE";
+            default:
+                return "UNKNOWN #" + state;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.ingest;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Moves ranging notifications off the BLE callback thread. Notifications are copied into a
+ * {@link RangingRingBuffer} and handed to the frame handler on a dedicated worker thread, which
+ * is where publishing, statistics and UI fan-out happen.
+ *
+ * @param <T> handle of the tag a frame belongs to
+ */
+public class RangingIngest<T> implements Runnable {
+    private final static String TAG = RangingIngest.class.getSimpleName();
+    private final static Logger LOG = Logger.getLogger(RangingIngest.class.getName());
+
+    // 40 tags at 20Hz can queue up for more than a second before frames get dropped
+    private final static int QUEUE_CAPACITY = 1024;
+    // Negotiated MTU is 240, so a notification never carries more than 237 bytes
+    public final static int MAX_FRAME_SIZE = 240;
+    private final static int DRAIN_BATCH = 64;
+    private final static long STATS_INTERVAL = 10000;
+    private final static long STOP_TIMEOUT = 1000;
+
+    private final RangingRingBuffer<T> mRing = new RangingRingBuffer<>(QUEUE_CAPACITY, MAX_FRAME_SIZE);
+    private final RangingRingBuffer.FrameHandler<T> mHandler;
+
+    private Thread mThread;
+    private volatile boolean mRunning = false;
+    private volatile long mProcessed = 0;
+    private long mLastStatsTime = 0;
+    private long mLastStatsDropped = 0;
+
+    public RangingIngest(RangingRingBuffer.FrameHandler<T> handler) {
+        mHandler = (tag, data, length, receivedAt, arrivalNanos) -> {
+            try {
+                handler.onFrame(tag, data, length, receivedAt, arrivalNanos);
+            } catch (RuntimeException e) {
+                LOG.log(Level.SEVERE, "Failed to process ranging frame", e);
+            }
+        };
+    }
+
+    /**
+     * Start the worker. If the previous one didn't end within the timeout of {@link #stop}, wait
+     * for it first, the ring buffer takes a single consumer only.
+     */
+    public synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+        if (mThread != null) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        mRunning = true;
+        mThread = new Thread(this, TAG);
+        mThread.start();
+    }
+
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+        mRunning = false;
+        mThread.interrupt();
+        try {
+            mThread.join(STOP_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (mThread.isAlive()) {
+            LOG.warning("Ranging ingest worker still busy " + STOP_TIMEOUT + " ms after stop");
+            return;
+        }
+        mThread = null;
+    }
+
+    /**
+     * Queue a notification payload. Safe to call from any thread, never blocks.
+     *
+     * @param tag           tag the notification was received from
+     * @param data          notification payload, copied before returning
+     * @param arrivalNanos  arrival time on the latency clock
+     * @return false if the frame was dropped because the queue is full
+     */
+    public boolean offer(T tag, byte[] data, long arrivalNanos) {
+        return mRing.offer(tag, data, System.currentTimeMillis(), arrivalNanos);
+    }
+
+    @Override
+    public void run() {
+        LOG.info("Ranging ingest worker started");
+        while (mRunning) {
+            try {
+                if (mRing.awaitFrames(STATS_INTERVAL)) {
+                    mProcessed += mRing.drain(mHandler, DRAIN_BATCH);
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+            logStats();
+        }
+        LOG.info("Ranging ingest worker stopped");
+    }
+
+    private void logStats() {
+        long now = System.currentTimeMillis();
+        if (now - mLastStatsTime < STATS_INTERVAL) {
+            return;
+        }
+        mLastStatsTime = now;
+
+        long dropped = mRing.dropped();
+        if (dropped != mLastStatsDropped) {
+            LOG.warning("Ranging queue overflow: " + (dropped - mLastStatsDropped) + " frames dropped, "
+                    + "depth " + mRing.depth() + "/" + mRing.capacity()
+                    + " (max " + mRing.highWatermark() + ")");
+            mLastStatsDropped = dropped;
+        }
+    }
+
+    public int getQueueDepth() {
+        return mRing.depth();
+    }
+
+    public int getQueueCapacity() {
+        return mRing.capacity();
+    }
+
+    public int getQueueHighWatermark() {
+        return mRing.highWatermark();
+    }
+
+    public long getAcceptedFrames() {
+        return mRing.accepted();
+    }
+
+    public long getDroppedFrames() {
+        return mRing.dropped();
+    }
+
+    public long getProcessedFrames() {
+        return mProcessed;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.ingest;
+
+/**
+ * Bounded ring of preallocated frame slots sitting between the BLE notification callbacks and
+ * the ingest worker. Producers copy the notification payload into the next free slot, a single
+ * consumer drains the slots in arrival order. If the ring is full the new frame is dropped and
+ * counted, the producer never blocks.
+ *
+ * @param <T> handle of the tag a frame belongs to
+ */
+public class RangingRingBuffer<T> {
+
+    /**
+     * Receives frames drained from the ring. The data array is owned by the ring and only valid
+     * for the duration of the call. Implementations must not throw.
+     */
+    public interface FrameHandler<T> {
+        void onFrame(T tag, byte[] data, int length, long receivedAt, long arrivalNanos);
+    }
+
+    private final Object[] mTags;
+    private final byte[][] mData;
+    private final int[] mLengths;
+    private final long[] mReceivedAt;
+    private final long[] mArrivalNanos;
+    private final int mMask;
+    private final int mMaxFrameSize;
+
+    // Both counters only grow, slot index is (counter & mMask)
+    private long mHead = 0;
+    private long mTail = 0;
+
+    private long mAccepted = 0;
+    private long mDropped = 0;
+    private int mHighWatermark = 0;
+
+    /**
+     * @param capacity      number of slots, rounded up to the next power of two
+     * @param maxFrameSize  largest payload a slot can hold, bigger frames are dropped
+     */
+    public RangingRingBuffer(int capacity, int maxFrameSize) {
+        if (capacity <= 0 || maxFrameSize <= 0) {
+            throw new IllegalArgumentException("capacity and frame size must be positive");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+
+        mTags = new Object[size];
+        mData = new byte[size][maxFrameSize];
+        mLengths = new int[size];
+        mReceivedAt = new long[size];
+        mArrivalNanos = new long[size];
+        mMask = size - 1;
+        mMaxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Copy a frame into the ring.
+     *
+     * @param tag           tag the frame was received from
+     * @param data          notification payload, not retained
+     * @param receivedAt    arrival timestamp
+     * @param arrivalNanos  arrival time on the latency clock
+     * @return false if the frame was dropped
+     */
+    public synchronized boolean offer(T tag, byte[] data, long receivedAt, long arrivalNanos) {
+        if (data == null || data.length > mMaxFrameSize || mTail - mHead > mMask) {
+            mDropped++;
+            return false;
+        }
+
+        int idx = (int) (mTail & mMask);
+        System.arraycopy(data, 0, mData[idx], 0, data.length);
+        mLengths[idx] = data.length;
+        mReceivedAt[idx] = receivedAt;
+        mArrivalNanos[idx] = arrivalNanos;
+        mTags[idx] = tag;
+
+        boolean wasEmpty = mTail == mHead;
+        mTail++;
+        mAccepted++;
+
+        int depth = (int) (mTail - mHead);
+        if (depth > mHighWatermark) {
+            mHighWatermark = depth;
+        }
+        if (wasEmpty) {
+            notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Block until at least one frame is queued or the timeout elapsed.
+     *
+     * @return true if frames are available
+     */
+    public synchronized boolean awaitFrames(long timeoutMs) throws InterruptedException {
+        if (mTail == mHead) {
+            wait(timeoutMs);
+        }
+        return mTail != mHead;
+    }
+
+    /**
+     * Hand queued frames to the handler. Must only be called from a single consumer thread.
+     * The handler runs without holding the ring lock, so producers are not stalled by it.
+     *
+     * @param handler       receives the frames
+     * @param maxFrames     upper bound of frames handled by this call
+     * @return number of frames handled
+     */
+    @SuppressWarnings("unchecked")
+    public int drain(FrameHandler<T> handler, int maxFrames) {
+        long head, tail;
+        synchronized (this) {
+            head = mHead;
+            tail = Math.min(mTail, head + maxFrames);
+        }
+
+        // Slots in [head, tail) can't be written by producers until mHead moves past them.
+        for (long i = head; i < tail; i++) {
+            int idx = (int) (i & mMask);
+            handler.onFrame((T) mTags[idx], mData[idx], mLengths[idx], mReceivedAt[idx], mArrivalNanos[idx]);
+            mTags[idx] = null;
+        }
+
+        synchronized (this) {
+            mHead = tail;
+        }
+        return (int) (tail - head);
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    public synchronized int depth() {
+        return (int) (mTail - mHead);
+    }
+
+    public synchronized int highWatermark() {
+        return mHighWatermark;
+    }
+
+    public synchronized long accepted() {
+        return mAccepted;
+    }
+
+    public synchronized long dropped() {
+        return mDropped;
+    }
+}
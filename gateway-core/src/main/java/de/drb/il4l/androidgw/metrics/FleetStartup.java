@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.metrics;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Time it takes to bring a set of tags up after a warm start, until every tag is either connected
+ * or given up on.
+ *
+ * <p>Updated on the thread of the connection scheduler, readable from any thread.</p>
+ */
+public class FleetStartup {
+    private final static Logger LOG = Logger.getLogger(FleetStartup.class.getName());
+
+    // Only accessed from the scheduler thread
+    private final Set<String> mPending = new HashSet<>();
+
+    private volatile int mTags = 0;
+    private volatile int mConnected = 0;
+    private volatile int mFailed = 0;
+    private volatile boolean mStarted = false;
+    private volatile boolean mComplete = false;
+    private volatile long mStartedAt;
+    private volatile long mCompletedAt;
+
+    /**
+     * @param addresses tags that are brought up
+     * @param now       current time in ms
+     */
+    public void start(Collection<String> addresses, long now) {
+        mPending.clear();
+        mPending.addAll(addresses);
+        mTags = mPending.size();
+        mConnected = 0;
+        mFailed = 0;
+        mStartedAt = now;
+        mCompletedAt = now;
+        mComplete = mPending.isEmpty();
+        mStarted = true;
+    }
+
+    /**
+     * The tag connected and discovered its services.
+     */
+    public void onConnected(String address, long now) {
+        if (mPending.remove(address)) {
+            mConnected++;
+            checkComplete(now);
+        }
+    }
+
+    /**
+     * The tag was parked or dropped before it connected.
+     */
+    public void onGivenUp(String address, long now) {
+        if (mPending.remove(address)) {
+            mFailed++;
+            checkComplete(now);
+        }
+    }
+
+    private void checkComplete(long now) {
+        if (mPending.isEmpty()) {
+            mCompletedAt = now;
+            mComplete = true;
+            LOG.info("Warm start finished after " + (now - mStartedAt) + " ms, " + mConnected
+                    + " of " + mTags + " tags connected");
+        }
+    }
+
+    /**
+     * @return number of tags of the last warm start
+     */
+    public int getTags() {
+        return mTags;
+    }
+
+    public int getConnected() {
+        return mConnected;
+    }
+
+    /**
+     * @return tags that were parked or dropped before they connected
+     */
+    public int getFailed() {
+        return mFailed;
+    }
+
+    public boolean isStarted() {
+        return mStarted;
+    }
+
+    public boolean isComplete() {
+        return mComplete;
+    }
+
+    /**
+     * @param now   current time in ms
+     * @return time to full fleet in ms, or the time since the start if it is still in progress
+     */
+    public long getDuration(long now) {
+        if (!mStarted) {
+            return 0;
+        }
+        return (mComplete ? mCompletedAt : now) - mStartedAt;
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.metrics;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.drb.il4l.androidgw.core.ConnectionHealth;
+import de.drb.il4l.androidgw.core.ConnectionScheduler;
+import de.drb.il4l.androidgw.core.Gateway;
+import de.drb.il4l.androidgw.core.TagSession;
+import de.drb.il4l.androidgw.mqtt.MessageClass;
+import de.drb.il4l.androidgw.mqtt.MessagePool;
+import de.drb.il4l.androidgw.mqtt.OutboundQueue;
+import de.drb.il4l.androidgw.mqtt.PublishPipeline;
+import de.drb.il4l.androidgw.mqtt.PublishRateController;
+import de.drb.il4l.androidgw.mqtt.RangingConflator;
+
+/**
+ * Periodically publishes the update rate and latency histograms of all connected tags as JSON to
+ * {@link #TOPIC_METRICS}. Latencies are in microseconds and cumulative since the gateway started,
+ * gaps and missed frames since the tag was connected. The warm start section shows how long it
+ * took to bring the known tags up after the gateway started, see {@link FleetStartup}. The pool
+ * section shows how many messages were taken from the {@link MessagePool} and how many of them had
+ * to be allocated, in total and per second since the previous report. The outbound section shows
+ * the queue of the MQTT I/O thread, messages lost or spilled to the offline buffer because it was
+ * full and the time from queueing to sending in microseconds. The flow section shows the messages
+ * in flight and the round trip time to the broker, with a latency target also the mean latency
+ * to acknowledgement, the current batch scale and how often the {@link PublishRateController}
+ * reduced or raised the load. The conflation section shows the rate limit per tag, 0 while not
+ * conflating, and how many frames were replaced by a newer one:
+ *
+ * <pre>
+ * {"gateway":"GW1","time":1700000000000,
+ *  "warmStart":{"tags":40,"connected":38,"failed":2,"complete":true,"ms":21500},
+ *  "pool":{"acquired":120000,"allocated":24,"allocatedBytes":1632,"allocatedPerSec":0.0},
+ *  "outbound":{"depth":3,"capacity":512,"highWatermark":40,"policy":"DROP_OLDEST","dropped":0,
+ *   "spilled":0,"sendLatency":{"count":120000,"p50":60,"p99":511,"p999":1023,"max":1800}},
+ *  "flow":{"inFlight":4,"maxInFlight":10,"rttMs":38.5,"targetMs":250,"latencyMs":120.4,
+ *   "batchScale":1,"decreases":3,"increases":5},
+ *  "conflation":{"maxRate":5.0,"replaced":84000},
+ *  "tags":{"Tag1":{
+ *   "state":"DISCOVERED","health":{"score":0.8,"failures":0,"connectMs":1200},
+ *   "rate":{"hz":10.0,"windowHz":9.8,"jitterMs":1.2,"frames":1200,"gaps":1,"missed":3},
+ *   "queue":{"count":120,"p50":850,"p99":2047,"p999":4095,"max":4200},
+ *   "delivery":{...},"total":{...}}}}
+ * </pre>
+ */
+public class MetricsReporter {
+    private final static Logger LOG = Logger.getLogger(MetricsReporter.class.getName());
+
+    public final static String TOPIC_METRICS = "METRICS";
+
+    private final Gateway<?> mGateway;
+    private final String mGatewayId;
+    private final int mInterval;
+    private ScheduledExecutorService mTimer;
+
+    // Pool allocations at the previous report, to report the allocation rate
+    private long mLastAllocated;
+    private long mLastReport = System.currentTimeMillis();
+
+    /**
+     * @param gateway   gateway whose sessions are reported
+     * @param gatewayId id of this gateway, included in every report
+     * @param interval  report interval in seconds
+     */
+    public MetricsReporter(Gateway<?> gateway, String gatewayId, int interval) {
+        mGateway = gateway;
+        mGatewayId = gatewayId;
+        mInterval = interval;
+    }
+
+    public synchronized void start() {
+        if (mTimer != null) {
+            return;
+        }
+        mTimer = Executors.newSingleThreadScheduledExecutor();
+        mTimer.scheduleAtFixedRate(this::publish, mInterval, mInterval, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stop() {
+        if (mTimer != null) {
+            mTimer.shutdownNow();
+            mTimer = null;
+        }
+    }
+
+    /**
+     * @return current report, see the class description for the format
+     */
+    public synchronized String toJson() {
+        long time = System.currentTimeMillis();
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("{\"gateway\":");
+        appendString(sb, mGatewayId);
+        sb.append(",\"time\":").append(time);
+
+        ConnectionScheduler<?> scheduler = mGateway.getScheduler();
+        FleetStartup startup = scheduler.getFleetStartup();
+        if (startup.isStarted()) {
+            sb.append(",\"warmStart\":{\"tags\":").append(startup.getTags())
+                    .append(",\"connected\":").append(startup.getConnected())
+                    .append(",\"failed\":").append(startup.getFailed())
+                    .append(",\"complete\":").append(startup.isComplete())
+                    .append(",\"ms\":").append(startup.getDuration(scheduler.getEventLoop().uptimeMillis()))
+                    .append('}');
+        }
+        sb.append(",\"pool\":");
+        appendPool(sb, mGateway.getPublisher().getMessagePool(), time);
+        sb.append(",\"outbound\":");
+        appendOutbound(sb, mGateway.getPublisher());
+        sb.append(",\"flow\":");
+        appendFlow(sb, mGateway.getPublisher().getRateController());
+        RangingConflator conflator = mGateway.getPublisher().getConflator();
+        if (conflator != null) {
+            float maxRate = mGateway.getPublisher().isConflating() ? conflator.getMaxRate() : 0;
+            sb.append(",\"conflation\":{\"maxRate\":").append(round(maxRate))
+                    .append(",\"replaced\":").append(conflator.getReplaced())
+                    .append('}');
+        }
+        sb.append(",\"tags\":{");
+
+        long now = mGateway.getPublisher().getClock().getAsLong();
+        boolean first = true;
+        for (TagSession session : scheduler.getSessions()) {
+            TagLatency latency = session.getLatency();
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            appendString(sb, session.getName());
+            sb.append(":{\"state\":");
+            appendString(sb, TagSession.stateName(session.getConnectionState()));
+            sb.append(",\"health\":");
+            appendHealth(sb, session.getHealth());
+            sb.append(",\"rate\":");
+            appendRate(sb, session, now);
+            sb.append(",\"queue\":");
+            appendHistogram(sb, latency.getQueue());
+            sb.append(",\"delivery\":");
+            appendHistogram(sb, latency.getDelivery());
+            sb.append(",\"total\":");
+            appendHistogram(sb, latency.getTotal());
+            sb.append('}');
+        }
+        return sb.append("}}").toString();
+    }
+
+    private void publish() {
+        try {
+            if (!mGateway.getPublisher().publish(MessageClass.METRICS, TOPIC_METRICS, toJson().getBytes())) {
+                LOG.warning("Outbound queue full, metrics report dropped");
+            }
+        } catch (RuntimeException e) {
+            // Keep the timer running
+            LOG.log(Level.SEVERE, "Failed to create metrics report", e);
+        }
+    }
+
+    private void appendPool(StringBuilder sb, MessagePool pool, long time) {
+        long allocated = pool.getAllocated();
+        double seconds = (time - mLastReport) / 1000.0;
+        double rate = seconds > 0 ? (allocated - mLastAllocated) / seconds : 0;
+        mLastAllocated = allocated;
+        mLastReport = time;
+
+        sb.append("{\"acquired\":").append(pool.getAcquired())
+                .append(",\"allocated\":").append(allocated)
+                .append(",\"allocatedBytes\":").append(pool.getAllocatedBytes())
+                .append(",\"allocatedPerSec\":").append(round(rate))
+                .append('}');
+    }
+
+    private static void appendOutbound(StringBuilder sb, PublishPipeline publisher) {
+        OutboundQueue queue = publisher.getOutboundQueue();
+        sb.append("{\"depth\":").append(queue.depth())
+                .append(",\"capacity\":").append(queue.capacity())
+                .append(",\"highWatermark\":").append(queue.highWatermark())
+                .append(",\"policy\":");
+        appendString(sb, publisher.getOverflowPolicy().name());
+        sb.append(",\"dropped\":").append(publisher.getDroppedMessages())
+                .append(",\"spilled\":").append(publisher.getSpilledMessages())
+                .append(",\"sendLatency\":");
+        appendHistogram(sb, publisher.getSendLatency());
+        sb.append('}');
+    }
+
+    private static void appendFlow(StringBuilder sb, PublishRateController controller) {
+        sb.append("{\"inFlight\":").append(controller.getInFlight())
+                .append(",\"maxInFlight\":").append(controller.getMaxInFlight())
+                .append(",\"rttMs\":").append(round(controller.getRtt() / 1e6));
+        if (controller.getTarget() > 0) {
+            sb.append(",\"targetMs\":").append(controller.getTarget() / 1_000_000)
+                    .append(",\"latencyMs\":").append(round(controller.getLatency() / 1e6))
+                    .append(",\"batchScale\":").append(controller.getBatchScale())
+                    .append(",\"decreases\":").append(controller.getDecreases())
+                    .append(",\"increases\":").append(controller.getIncreases());
+        }
+        sb.append('}');
+    }
+
+    private static void appendHealth(StringBuilder sb, ConnectionHealth health) {
+        sb.append("{\"score\":").append(round(health.getScore()))
+                .append(",\"failures\":").append(health.getFailures())
+                .append(",\"connectMs\":").append(health.getConnectTime())
+                .append('}');
+    }
+
+    private static void appendRate(StringBuilder sb, TagSession session, long now) {
+        RateMeter rate = session.getRateMeter();
+        sb.append("{\"hz\":").append(round(session.getURate(now)))
+                .append(",\"windowHz\":").append(round(rate.getWindowRate(now)))
+                .append(",\"jitterMs\":").append(round(rate.getJitter() / 1e6))
+                .append(",\"frames\":").append(rate.getFrames())
+                .append(",\"gaps\":").append(rate.getGaps())
+                .append(",\"missed\":").append(rate.getMissed())
+                .append('}');
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10) / 10.0;
+    }
+
+    private static void appendHistogram(StringBuilder sb, LatencyHistogram histogram) {
+        sb.append("{\"count\":").append(histogram.count())
+                .append(",\"p50\":").append(histogram.percentile(0.5))
+                .append(",\"p99\":").append(histogram.percentile(0.99))
+                .append(",\"p999\":").append(histogram.percentile(0.999))
+                .append(",\"max\":").append(histogram.max())
+                .append('}');
+    }
+
+    private static void appendString(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+}
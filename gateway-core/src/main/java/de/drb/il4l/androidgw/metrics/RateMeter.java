@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Update rate of a periodic event source, e.g. the ranging frames of one tag. Combines an EWMA of
+ * the inter-arrival time, which follows rate changes quickly, with an event count over a sliding
+ * window, which decays to 0 once the events stop. Also tracks the inter-arrival jitter and gaps,
+ * i.e. intervals much longer than usual. Several gaps in a row are a lasting drop of the rate, the
+ * average then restarts from the new interval instead of counting every interval as a gap.
+ *
+ * <p>Times are nanoseconds on a monotonic clock. {@link #record} may only be called from one
+ * thread, the getters from any thread. Nothing is locked or allocated.</p>
+ */
+public class RateMeter {
+    // Weight of a new interval in the EWMA, about the last 8 intervals count
+    private static final double ALPHA = 1.0 / 8;
+    // Jitter estimator gain as in RFC 3550
+    private static final double JITTER_GAIN = 1.0 / 16;
+    // An interval longer than this multiple of the average is a gap
+    private static final double GAP_FACTOR = 3.0;
+    // Intervals until the average is trusted for gap detection
+    private static final int WARMUP = 4;
+    // Gaps in a row that are taken as a lower rate
+    private static final int RESEED_GAPS = 3;
+
+    private static final int SLOTS = 8;
+    private static final long SLOT_NS = 500_000_000L;
+
+    // Written by the recording thread only
+    private volatile long mFirst;
+    private volatile long mLast;
+    private volatile double mInterval;
+    private volatile double mJitter;
+    private volatile long mFrames;
+    private volatile long mGaps;
+    private volatile long mMissed;
+    // Intervals in the average, and gaps in a row with the events missed in them, which are only
+    // counted once a regular interval follows
+    private long mIntervals;
+    private int mGapRun;
+    private long mGapRunMissed;
+
+    // Event count per slot, slots are tagged with their epoch to detect stale counts
+    private final AtomicLongArray mSlotEpochs = new AtomicLongArray(SLOTS);
+    private final AtomicLongArray mSlotCounts = new AtomicLongArray(SLOTS);
+
+    public RateMeter() {
+        reset();
+    }
+
+    /**
+     * @param now   time of the event
+     */
+    public void record(long now) {
+        if (mFrames > 0) {
+            long delta = now - mLast;
+            if (delta > 0) {
+                recordInterval(delta);
+            }
+        } else {
+            mFirst = now;
+        }
+
+        long epoch = Math.floorDiv(now, SLOT_NS);
+        int slot = (int) Math.floorMod(epoch, (long) SLOTS);
+        if (mSlotEpochs.get(slot) != epoch) {
+            mSlotCounts.set(slot, 0);
+            mSlotEpochs.set(slot, epoch);
+        }
+        mSlotCounts.incrementAndGet(slot);
+
+        mFrames = mFrames + 1;
+        mLast = now;
+    }
+
+    private void recordInterval(long delta) {
+        double interval = mInterval;
+        if (mIntervals >= WARMUP && delta > GAP_FACTOR * interval) {
+            // Keep gaps out of the average, count the frames that should have arrived instead
+            mGapRun++;
+            mGapRunMissed += Math.max(0, Math.round(delta / interval) - 1);
+            if (mGapRun < RESEED_GAPS) {
+                return;
+            }
+            // The source slowed down, start over at its new rate
+            mGapRun = 0;
+            mGapRunMissed = 0;
+            mIntervals = 0;
+            mJitter = 0;
+        } else if (mGapRun > 0) {
+            mGaps = mGaps + mGapRun;
+            mMissed = mMissed + mGapRunMissed;
+            mGapRun = 0;
+            mGapRunMissed = 0;
+        }
+
+        if (mIntervals == 0) {
+            interval = delta;
+        } else {
+            mJitter = mJitter + JITTER_GAIN * (Math.abs(delta - interval) - mJitter);
+            interval += ALPHA * (delta - interval);
+        }
+        mInterval = interval;
+        mIntervals++;
+    }
+
+    /**
+     * Forget all events, e.g. after a reconnect. Must be called from the recording thread.
+     */
+    public void reset() {
+        mFrames = 0;
+        mInterval = 0;
+        mJitter = 0;
+        mGaps = 0;
+        mMissed = 0;
+        mIntervals = 0;
+        mGapRun = 0;
+        mGapRunMissed = 0;
+        for (int i = 0; i < SLOTS; i++) {
+            mSlotCounts.set(i, 0);
+            mSlotEpochs.set(i, Long.MIN_VALUE);
+        }
+    }
+
+    /**
+     * @param now   current time
+     * @return events per second, the EWMA while events arrive regularly and the window rate
+     *         during a gap, so a silent source decays to 0
+     */
+    public float getRate(long now) {
+        double interval = mInterval;
+        if (interval <= 0 || now - mLast > GAP_FACTOR * interval) {
+            return getWindowRate(now);
+        }
+        return (float) (1e9 / interval);
+    }
+
+    /**
+     * @param now   current time
+     * @return events per second over the last {@value #SLOTS} half second slots
+     */
+    public float getWindowRate(long now) {
+        if (mFrames == 0) {
+            return 0;
+        }
+
+        long first = mFirst;
+        long epoch = Math.floorDiv(now, SLOT_NS);
+        long count = 0;
+        for (int i = 0; i < SLOTS; i++) {
+            long slotEpoch = mSlotEpochs.get(i);
+            if (slotEpoch > epoch - SLOTS && slotEpoch <= epoch) {
+                count += mSlotCounts.get(i);
+            }
+        }
+
+        // The window starts at the oldest slot, or at the first event if that is later
+        long span = now - Math.max(first, (epoch - SLOTS + 1) * SLOT_NS);
+        return span > 0 ? (float) (count * 1e9 / span) : 0;
+    }
+
+    /**
+     * @return mean deviation of the inter-arrival time from its average in nanoseconds
+     */
+    public double getJitter() {
+        return mJitter;
+    }
+
+    public long getFrames() {
+        return mFrames;
+    }
+
+    /**
+     * @return number of intervals longer than {@value #GAP_FACTOR} times the average, counted
+     *         when the next regular interval arrives
+     */
+    public long getGaps() {
+        return mGaps;
+    }
+
+    /**
+     * @return estimated number of events lost in gaps
+     */
+    public long getMissed() {
+        return mMissed;
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.mqtt;
+
+import java.nio.charset.StandardCharsets;
+
+import de.drb.il4l.androidgw.ingest.RangingIngest;
+import de.drb.il4l.androidgw.profile.RangingFrame;
+import de.drb.il4l.androidgw.profile.RangingFrameDecoder;
+
+/**
+ * Compact binary encoding of ranging publications. Unlike the raw characteristic value it
+ * identifies gateway and tag and carries a sequence number and the receive time, so the server
+ * can order frames and drop duplicates.
+ *
+ * <p>Version 1, varints are unsigned LEB128, fixed width fields little-endian:</p>
+ * <pre>
+ * u8      version, 1
+ * u8      content, {@link #CONTENT_RANGES}, {@link #CONTENT_POSITION} or {@link #CONTENT_RAW}
+ * u32     gateway, see {@link #gatewayHash}
+ * varint  tag, see {@link #tagId}
+ * varint  sequence number of the tag, counts up from 0 when the gateway starts
+ * varint  receive time in ms since epoch
+ * ranges:    varint count, count * (varint anchor id, varint range)
+ *            anchor ids zigzag encoded as difference to the previous id, ranges as range + 1
+ *            modulo 2^16, so the invalid range 0xFFFF takes a single byte as 0
+ * position:  3 * float32 x, y, z
+ * raw:       varint length, characteristic value that could not be decoded
+ * </pre>
+ *
+ * <p>An encoder instance reuses its buffers and must only be used by one thread. Decoding
+ * doesn't allocate either once the {@link Message} is large enough.</p>
+ */
+public class CompactRangingCodec {
+    public static final int VERSION = 1;
+
+    public static final int CONTENT_RANGES = 1;
+    public static final int CONTENT_POSITION = 2;
+    public static final int CONTENT_RAW = 3;
+
+    private static final int MAX_HEADER_SIZE = 2 + 4 + 5 + 10 + 10;
+    // Anchor id delta at most 17 bits and range 16 bits, 3 bytes each as varint
+    private static final int MAX_RANGES_SIZE = 5 + RangingFrame.MAX_RANGES * 6;
+
+    /** Largest encoded message */
+    public static final int MAX_SIZE = MAX_HEADER_SIZE
+            + Math.max(MAX_RANGES_SIZE, 5 + RangingIngest.MAX_FRAME_SIZE);
+
+    private final byte[] mBuffer = new byte[MAX_SIZE];
+    private final RangingFrame mFrame = new RangingFrame();
+
+    /**
+     * Decoded message, meant to be reused.
+     */
+    public static class Message {
+        public int version;
+        public int content;
+        public int gateway;
+        public int tag;
+        public long sequence;
+        public long receivedAt;
+        // Ranges or position
+        public final RangingFrame frame = new RangingFrame();
+        // Undecoded characteristic value, grown as needed
+        public byte[] raw = new byte[RangingIngest.MAX_FRAME_SIZE];
+        public int rawLength;
+        // Read position while decoding
+        private int cursor;
+    }
+
+    /**
+     * Encode a ranging frame into the buffer of this encoder.
+     *
+     * @param gateway       id of the gateway, see {@link #gatewayHash}
+     * @param tag           id of the tag, see {@link #tagId}
+     * @param sequence      sequence number of the frame
+     * @param receivedAt    receive time in ms since epoch
+     * @param payload       characteristic value
+     * @param length        payload length
+     * @return length of the message in {@link #getBuffer()}
+     */
+    public int encode(int gateway, int tag, long sequence, long receivedAt, byte[] payload, int length) {
+        final byte[] out = mBuffer;
+        int pos = 0;
+        out[pos++] = VERSION;
+        int contentPos = pos++;
+        pos = putInt(out, pos, gateway);
+        pos = putVarint(out, pos, tag & 0xFFFFFFFFL);
+        pos = putVarint(out, pos, sequence);
+        pos = putVarint(out, pos, receivedAt);
+
+        final RangingFrame frame = mFrame;
+        if (RangingFrameDecoder.decodeRanges(payload, 0, length, frame)) {
+            out[contentPos] = CONTENT_RANGES;
+            pos = putVarint(out, pos, frame.count);
+            int previousId = 0;
+            for (int i = 0; i < frame.count; i++) {
+                int delta = frame.anchorIds[i] - previousId;
+                previousId = frame.anchorIds[i];
+                pos = putVarint(out, pos, (delta << 1) ^ (delta >> 31));
+                pos = putVarint(out, pos, (frame.ranges[i] + 1) & 0xFFFF);
+            }
+        } else if (RangingFrameDecoder.decodePosition(payload, 0, length, frame)) {
+            out[contentPos] = CONTENT_POSITION;
+            pos = putInt(out, pos, Float.floatToIntBits(frame.x));
+            pos = putInt(out, pos, Float.floatToIntBits(frame.y));
+            pos = putInt(out, pos, Float.floatToIntBits(frame.z));
+        } else {
+            if (length > RangingIngest.MAX_FRAME_SIZE) {
+                throw new IllegalArgumentException("frame too large: " + length);
+            }
+            out[contentPos] = CONTENT_RAW;
+            pos = putVarint(out, pos, length);
+            System.arraycopy(payload, 0, out, pos, length);
+            pos += length;
+        }
+        return pos;
+    }
+
+    /**
+     * @return buffer holding the last encoded message, overwritten by the next {@link #encode}
+     */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Decode a message.
+     *
+     * @return false if the message is truncated, malformed or of an unknown version
+     */
+    public static boolean decode(byte[] data, int offset, int length, Message message) {
+        message.frame.clear();
+        message.rawLength = 0;
+        if (data == null || length < 6 || offset + length > data.length) {
+            return false;
+        }
+
+        final int end = offset + length;
+        message.version = data[offset] & 0xFF;
+        message.content = data[offset + 1] & 0xFF;
+        if (message.version != VERSION) {
+            return false;
+        }
+        message.gateway = getInt(data, offset + 2);
+
+        message.cursor = offset + 6;
+        long tag = getVarint(data, message, end);
+        long sequence = getVarint(data, message, end);
+        long receivedAt = getVarint(data, message, end);
+        if (tag < 0 || sequence < 0 || receivedAt < 0) {
+            return false;
+        }
+        message.tag = (int) tag;
+        message.sequence = sequence;
+        message.receivedAt = receivedAt;
+
+        final RangingFrame frame = message.frame;
+        switch (message.content) {
+            case CONTENT_RANGES: {
+                long count = getVarint(data, message, end);
+                if (count < 0 || count > RangingFrame.MAX_RANGES) {
+                    return false;
+                }
+                int previousId = 0;
+                for (int i = 0; i < count; i++) {
+                    long delta = getVarint(data, message, end);
+                    long range = getVarint(data, message, end);
+                    if (delta < 0 || delta > 0xFFFFFFFFL || range < 0 || range > 0xFFFF) {
+                        return false;
+                    }
+                    int id = previousId + (((int) delta >>> 1) ^ -((int) delta & 1));
+                    if (id < 0 || id > 0xFFFF) {
+                        return false;
+                    }
+                    previousId = id;
+                    frame.anchorIds[i] = id;
+                    frame.ranges[i] = ((int) range - 1) & 0xFFFF;
+                }
+                frame.count = (int) count;
+                return true;
+            }
+            case CONTENT_POSITION: {
+                int pos = message.cursor;
+                if (pos + 12 > end) {
+                    return false;
+                }
+                frame.x = Float.intBitsToFloat(getInt(data, pos));
+                frame.y = Float.intBitsToFloat(getInt(data, pos + 4));
+                frame.z = Float.intBitsToFloat(getInt(data, pos + 8));
+                frame.hasPosition = true;
+                return true;
+            }
+            case CONTENT_RAW: {
+                long rawLength = getVarint(data, message, end);
+                int pos = message.cursor;
+                if (rawLength < 0 || pos + rawLength > end) {
+                    return false;
+                }
+                if (message.raw.length < rawLength) {
+                    message.raw = new byte[(int) rawLength];
+                }
+                System.arraycopy(data, pos, message.raw, 0, (int) rawLength);
+                message.rawLength = (int) rawLength;
+                return true;
+            }
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param gatewayId id of the gateway, as in the metrics reports
+     * @return 32 bit FNV-1a hash of the UTF-8 encoded id
+     */
+    public static int gatewayHash(String gatewayId) {
+        int hash = 0x811C9DC5;
+        for (byte b : gatewayId.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+
+    /**
+     * @param address   BLE address like "C0:DE:00:12:34:56"
+     * @return the last three bytes of the address, which tell the tags of a site apart, 0 if
+     *         the address is malformed
+     */
+    public static int tagId(String address) {
+        if (address.length() != 17) {
+            return 0;
+        }
+        int id = 0;
+        for (int i = 9; i < 17; i += 3) {
+            int hi = Character.digit(address.charAt(i), 16);
+            int lo = Character.digit(address.charAt(i + 1), 16);
+            if (hi < 0 || lo < 0) {
+                return 0;
+            }
+            id = (id << 8) | (hi << 4) | lo;
+        }
+        return id;
+    }
+
+    private static int putInt(byte[] out, int pos, int value) {
+        out[pos] = (byte) value;
+        out[pos + 1] = (byte) (value >> 8);
+        out[pos + 2] = (byte) (value >> 16);
+        out[pos + 3] = (byte) (value >> 24);
+        return pos + 4;
+    }
+
+    private static int getInt(byte[] data, int pos) {
+        return (data[pos] & 0xFF) | ((data[pos + 1] & 0xFF) << 8)
+                | ((data[pos + 2] & 0xFF) << 16) | ((data[pos + 3] & 0xFF) << 24);
+    }
+
+    private static int putVarint(byte[] out, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+        return pos;
+    }
+
+    /**
+     * Read a varint at the cursor of the message and advance the cursor past it.
+     *
+     * @return the value, -1 if truncated or longer than 63 bits
+     */
+    private static long getVarint(byte[] data, Message message, int end) {
+        int pos = message.cursor;
+        long value = 0;
+        for (int shift = 0; shift < 63; shift += 7) {
+            if (pos >= end) {
+                return -1;
+            }
+            byte b = data[pos++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                message.cursor = pos;
+                return value;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.mqtt;
+
+import de.drb.il4l.androidgw.core.TagSession;
+
+/**
+ * Ranging frames carried by one published message. Handed to the transport with the message and
+ * back to the pipeline once the broker acknowledged it, to measure the delivery latency.
+ *
+ * <p>Messages of single frames come from a {@link MessagePool} and carry their payload buffer.
+ * The transport may attach its own message object to reuse it with the next publication of the
+ * delivery.</p>
+ */
+public final class Delivery {
+    private final TagSession[] mSessions;
+    private final long[] mArrivals;
+    private int mCount = 0;
+    private long mPublishedAt;
+
+    // Only set for pooled messages of a single frame
+    private final MessagePool mPool;
+    private final byte[] mPayload;
+    private boolean mPooled;
+    private Object mTransportMessage;
+
+    Delivery(int capacity) {
+        mSessions = new TagSession[capacity];
+        mArrivals = new long[capacity];
+        mPool = null;
+        mPayload = null;
+    }
+
+    Delivery(MessagePool pool, int length) {
+        mSessions = new TagSession[1];
+        mArrivals = new long[1];
+        mPool = pool;
+        mPayload = new byte[length];
+    }
+
+    void add(TagSession session, long arrivalNanos) {
+        mSessions[mCount] = session;
+        mArrivals[mCount] = arrivalNanos;
+        mCount++;
+    }
+
+    void setPublishedAt(long publishedAt) {
+        mPublishedAt = publishedAt;
+    }
+
+    long getPublishedAt() {
+        return mPublishedAt;
+    }
+
+    /**
+     * @return arrival time of the oldest frame, the publish time if there is none
+     */
+    long getOldestArrival() {
+        long oldest = mPublishedAt;
+        for (int i = 0; i < mCount; i++) {
+            oldest = Math.min(oldest, mArrivals[i]);
+        }
+        return oldest;
+    }
+
+    /**
+     * Record the delivery and total latency of every frame.
+     */
+    void complete(long now) {
+        for (int i = 0; i < mCount; i++) {
+            mSessions[i].getLatency().getDelivery().record(now - mPublishedAt);
+            mSessions[i].getLatency().getTotal().record(now - mArrivals[i]);
+        }
+    }
+
+    /**
+     * @return payload buffer of a pooled message, null otherwise
+     */
+    byte[] getPayload() {
+        return mPayload;
+    }
+
+    /**
+     * Give a pooled message back once the transport is done with it.
+     */
+    void recycle() {
+        if (mPool != null) {
+            mPool.release(this);
+        }
+    }
+
+    void reset() {
+        for (int i = 0; i < mCount; i++) {
+            mSessions[i] = null;
+        }
+        mCount = 0;
+    }
+
+    boolean isPooled() {
+        return mPooled;
+    }
+
+    void setPooled(boolean pooled) {
+        mPooled = pooled;
+    }
+
+    /**
+     * @return message object the transport attached to this delivery, null if none
+     */
+    public Object getTransportMessage() {
+        return mTransportMessage;
+    }
+
+    public void setTransportMessage(Object message) {
+        mTransportMessage = message;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.mqtt;
+
+/**
+ * Bounded pool of the messages ranging frames are published with, a {@link Delivery} with a
+ * payload buffer of exactly the frame length. A message goes back to the pool once the transport
+ * reported its delivery, or right away if it was never handed to the transport. Frames of a tag
+ * keep their length, so after a warm up publishing doesn't allocate.
+ *
+ * <p>Messages that don't fit the pool are simply left to the garbage collector. Safe to use from
+ * any thread.</p>
+ */
+public final class MessagePool {
+    private final int mMaxLength;
+    private final int mPerLength;
+
+    // Free messages by payload length, created on first use of a length
+    private final Delivery[][] mFree;
+    private final int[] mFreeCount;
+
+    private long mAcquired;
+    private long mAllocated;
+    private long mAllocatedBytes;
+
+    /**
+     * @param maxLength longest payload that is pooled
+     * @param perLength free messages kept per payload length
+     */
+    public MessagePool(int maxLength, int perLength) {
+        mMaxLength = maxLength;
+        mPerLength = perLength;
+        mFree = new Delivery[maxLength + 1][];
+        mFreeCount = new int[maxLength + 1];
+    }
+
+    /**
+     * @param length    payload length
+     * @return empty message with a payload buffer of exactly this length
+     */
+    public synchronized Delivery acquire(int length) {
+        mAcquired++;
+        if (length <= mMaxLength && mFreeCount[length] > 0) {
+            int count = --mFreeCount[length];
+            Delivery delivery = mFree[length][count];
+            mFree[length][count] = null;
+            delivery.setPooled(false);
+            return delivery;
+        }
+
+        mAllocated++;
+        mAllocatedBytes += length;
+        return new Delivery(length <= mMaxLength ? this : null, length);
+    }
+
+    /**
+     * Put a message back, called by {@link Delivery#recycle()}.
+     */
+    synchronized void release(Delivery delivery) {
+        if (delivery.isPooled()) {
+            return;
+        }
+
+        int length = delivery.getPayload().length;
+        Delivery[] free = mFree[length];
+        if (free == null) {
+            free = mFree[length] = new Delivery[mPerLength];
+        }
+        if (mFreeCount[length] < free.length) {
+            delivery.reset();
+            delivery.setPooled(true);
+            free[mFreeCount[length]++] = delivery;
+        }
+    }
+
+    /**
+     * @return messages handed out since the pipeline started
+     */
+    public synchronized long getAcquired() {
+        return mAcquired;
+    }
+
+    /**
+     * @return messages that had to be allocated because none of their length was free
+     */
+    public synchronized long getAllocated() {
+        return mAllocated;
+    }
+
+    /**
+     * @return payload bytes of the allocated messages
+     */
+    public synchronized long getAllocatedBytes() {
+        return mAllocatedBytes;
+    }
+}
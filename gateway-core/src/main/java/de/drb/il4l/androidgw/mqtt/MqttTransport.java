@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.mqtt;
+
+/**
+ * Connection to the MQTT broker used by the {@link PublishPipeline}.
+ */
+public interface MqttTransport {
+
+    interface Callback {
+        /**
+         * The connection to the broker was (re-)established.
+         */
+        void connectComplete(boolean reconnect);
+
+        /**
+         * A message was acknowledged by the broker, or sent for QoS 0.
+         *
+         * @param delivery  delivery the message was published with, null if none
+         */
+        void deliveryComplete(Delivery delivery);
+
+        /**
+         * A message handed to the client won't be delivered, e.g. because it couldn't be sent.
+         *
+         * @param delivery  delivery the message was published with, null if none
+         */
+        void deliveryFailed(Delivery delivery);
+
+        /**
+         * The connection to the broker was lost. The messages in flight are failed or sent again
+         * after reconnecting, they no longer count against the window of the client.
+         */
+        void connectionLost();
+    }
+
+    void setCallback(Callback callback);
+
+    boolean isConnected();
+
+    /**
+     * Start connecting to the broker. Returns immediately, success is reported to the callback.
+     */
+    void connect() throws TransportException;
+
+    /**
+     * Hand a message to the client for delivery.
+     *
+     * @param delivery  passed back to {@link Callback#deliveryComplete}, may be null
+     * @throws TransportException if the client doesn't accept the message, e.g. because it is
+     *                            disconnected or too many messages are in flight
+     */
+    void publish(String topic, byte[] payload, int qos, boolean retained, Delivery delivery) throws TransportException;
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.mqtt;
+
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import de.drb.il4l.androidgw.core.TagSession;
+
+/**
+ * Bounded queue of the messages waiting for the MQTT I/O thread of the {@link PublishPipeline}.
+ * Payloads are queued by reference.
+ *
+ * <p>Messages are offered from several threads, so the queue is guarded by its lock. Each
+ * operation takes constant time, also when a frame is dropped to make room, so producers never
+ * wait for the broker and hold the lock only briefly. A lock-free ring could only drop at its
+ * head, while {@link OverflowPolicy#DROP_OLDEST} drops the oldest frame of a tag from anywhere
+ * in the queue. The slots are therefore linked into lists: all messages in order, the evictable
+ * ones in order and those of each tag.</p>
+ *
+ * <p>Evictable are ranging frames and batch envelopes. Other messages, e.g. presence events, are
+ * never dropped to make room. Neither are the placeholders of conflated tags: the frame stays
+ * with the {@link RangingConflator}, so dropping a placeholder frees nothing but the slot, and
+ * each tag has at most one.</p>
+ */
+public class OutboundQueue {
+    private static final int NONE = -1;
+
+    /**
+     * What happens to a message that doesn't fit into the full queue.
+     */
+    public enum OverflowPolicy {
+        /** Drop the oldest queued frame of the same tag, or of any tag for other messages */
+        DROP_OLDEST,
+        /** Drop the new message */
+        DROP_NEWEST,
+        /** Append the new message to the offline buffer, it is sent once the queue drained */
+        SPILL;
+
+        /**
+         * @param value policy name, case and '-' or '_' don't matter, e.g. "drop-oldest"
+         * @throws IllegalArgumentException if the name is unknown
+         */
+        public static OverflowPolicy parse(String value) {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+    }
+
+    /**
+     * Message taken from the queue, meant to be reused by the consumer.
+     */
+    public static final class Message {
+        public MessageClass messageClass;
+        public String topic;
+        public byte[] payload;
+        public Delivery delivery;
+        public TagSession session;
+        public long enqueuedNanos;
+    }
+
+    /**
+     * Evictable frames of one tag, oldest first.
+     */
+    private static final class Lane {
+        int head = NONE;
+        int tail = NONE;
+    }
+
+    private final MessageClass[] mClasses;
+    private final String[] mTopics;
+    private final byte[][] mPayloads;
+    private final Delivery[] mDeliveries;
+    // Tag of a ranging frame, null for other messages
+    private final TagSession[] mSessions;
+    private final long[] mEnqueued;
+    private final boolean[] mEvictable;
+    private final int mCapacity;
+
+    // Queued slots in order, free slots are chained through mNext
+    private final int[] mNext;
+    private final int[] mPrev;
+    private int mHead = NONE;
+    private int mTail = NONE;
+    private int mFree;
+    private int mDepth = 0;
+
+    // Evictable slots in order
+    private final int[] mEvictNext;
+    private final int[] mEvictPrev;
+    private int mEvictHead = NONE;
+    private int mEvictTail = NONE;
+
+    // Evictable slots per tag, kept for tags without queued frames too so offers don't allocate
+    private final int[] mLaneNext;
+    private final Map<TagSession, Lane> mLanes = new IdentityHashMap<>();
+
+    private long mAccepted = 0;
+    private long mEvicted = 0;
+    private int mHighWatermark = 0;
+
+    /**
+     * @param capacity  number of slots, rounded up to the next power of two
+     */
+    public OutboundQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+
+        mClasses = new MessageClass[size];
+        mTopics = new String[size];
+        mPayloads = new byte[size][];
+        mDeliveries = new Delivery[size];
+        mSessions = new TagSession[size];
+        mEnqueued = new long[size];
+        mEvictable = new boolean[size];
+        mNext = new int[size];
+        mPrev = new int[size];
+        mEvictNext = new int[size];
+        mEvictPrev = new int[size];
+        mLaneNext = new int[size];
+        mCapacity = size;
+
+        for (int i = 0; i < size; i++) {
+            mNext[i] = i + 1 < size ? i + 1 : NONE;
+        }
+        mFree = 0;
+    }
+
+    /**
+     * Queue a message.
+     *
+     * @param payload       null for the placeholder of a conflated tag, see {@link RangingConflator}
+     * @param session       tag of a ranging frame, null for other messages
+     * @param enqueuedNanos current time on the latency clock
+     * @param dropOldest    make room by dropping an older frame if the queue is full, see
+     *                      {@link OverflowPolicy#DROP_OLDEST}
+     * @return false if the queue is full and no older frame was dropped
+     */
+    public synchronized boolean offer(MessageClass messageClass, String topic, byte[] payload, Delivery delivery,
+                                      TagSession session, long enqueuedNanos, boolean dropOldest) {
+        if (mDepth == mCapacity && !(dropOldest && evictOldest(session))) {
+            return false;
+        }
+
+        int idx = mFree;
+        mFree = mNext[idx];
+        mClasses[idx] = messageClass;
+        mTopics[idx] = topic;
+        mPayloads[idx] = payload;
+        mDeliveries[idx] = delivery;
+        mSessions[idx] = session;
+        mEnqueued[idx] = enqueuedNanos;
+
+        mNext[idx] = NONE;
+        mPrev[idx] = mTail;
+        if (mTail != NONE) {
+            mNext[mTail] = idx;
+        } else {
+            mHead = idx;
+        }
+        mTail = idx;
+
+        boolean evictable = messageClass == MessageClass.RANGING && payload != null;
+        mEvictable[idx] = evictable;
+        if (evictable) {
+            mEvictNext[idx] = NONE;
+            mEvictPrev[idx] = mEvictTail;
+            if (mEvictTail != NONE) {
+                mEvictNext[mEvictTail] = idx;
+            } else {
+                mEvictHead = idx;
+            }
+            mEvictTail = idx;
+
+            if (session != null) {
+                Lane lane = lane(session);
+                mLaneNext[idx] = NONE;
+                if (lane.tail != NONE) {
+                    mLaneNext[lane.tail] = idx;
+                } else {
+                    lane.head = idx;
+                }
+                lane.tail = idx;
+            }
+        }
+
+        boolean wasEmpty = mDepth == 0;
+        mDepth++;
+        mAccepted++;
+
+        if (mDepth > mHighWatermark) {
+            mHighWatermark = mDepth;
+        }
+        if (wasEmpty) {
+            notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Remove the oldest evictable frame of the tag, or of any tag if it has none queued. The
+     * order of the remaining messages is kept.
+     */
+    private boolean evictOldest(TagSession session) {
+        int victim = NONE;
+        if (session != null) {
+            Lane lane = mLanes.get(session);
+            if (lane != null) {
+                victim = lane.head;
+            }
+        }
+        if (victim == NONE) {
+            victim = mEvictHead;
+        }
+        if (victim == NONE) {
+            return false;
+        }
+
+        Delivery dropped = mDeliveries[victim];
+        remove(victim);
+        mEvicted++;
+
+        if (dropped != null) {
+            dropped.recycle();
+        }
+        return true;
+    }
+
+    private Lane lane(TagSession session) {
+        Lane lane = mLanes.get(session);
+        if (lane == null) {
+            if (mLanes.size() >= mCapacity) {
+                // Forget tags without queued frames, e.g. ones that were removed
+                mLanes.values().removeIf(l -> l.head == NONE);
+            }
+            lane = new Lane();
+            mLanes.put(session, lane);
+        }
+        return lane;
+    }
+
+    /**
+     * Unlink a slot and return it to the free list. An evictable slot is always the oldest of its
+     * tag: slots are removed at the head of the queue, at the head of the evictable slots or at
+     * the head of a lane.
+     */
+    private void remove(int idx) {
+        int prev = mPrev[idx];
+        int next = mNext[idx];
+        if (prev != NONE) {
+            mNext[prev] = next;
+        } else {
+            mHead = next;
+        }
+        if (next != NONE) {
+            mPrev[next] = prev;
+        } else {
+            mTail = prev;
+        }
+
+        if (mEvictable[idx]) {
+            int evictPrev = mEvictPrev[idx];
+            int evictNext = mEvictNext[idx];
+            if (evictPrev != NONE) {
+                mEvictNext[evictPrev] = evictNext;
+            } else {
+                mEvictHead = evictNext;
+            }
+            if (evictNext != NONE) {
+                mEvictPrev[evictNext] = evictPrev;
+            } else {
+                mEvictTail = evictPrev;
+            }
+
+            if (mSessions[idx] != null) {
+                Lane lane = mLanes.get(mSessions[idx]);
+                lane.head = mLaneNext[idx];
+                if (lane.head == NONE) {
+                    lane.tail = NONE;
+                }
+            }
+        }
+
+        clear(idx);
+        mNext[idx] = mFree;
+        mFree = idx;
+        mDepth--;
+    }
+
+    /**
+     * Take the oldest message. Must only be called from the I/O thread.
+     *
+     * @param message   receives the message
+     * @return false if the queue is empty
+     */
+    public synchronized boolean poll(Message message) {
+        if (mDepth == 0) {
+            return false;
+        }
+
+        int idx = mHead;
+        message.messageClass = mClasses[idx];
+        message.topic = mTopics[idx];
+        message.payload = mPayloads[idx];
+        message.delivery = mDeliveries[idx];
+        message.session = mSessions[idx];
+        message.enqueuedNanos = mEnqueued[idx];
+        remove(idx);
+        return true;
+    }
+
+    private void clear(int idx) {
+        mClasses[idx] = null;
+        mTopics[idx] = null;
+        mPayloads[idx] = null;
+        mDeliveries[idx] = null;
+        mSessions[idx] = null;
+        mEvictable[idx] = false;
+    }
+
+    /**
+     * Block until a message is queued, {@link #wakeUp()} is called or the timeout elapsed.
+     *
+     * @return true if messages are available
+     */
+    public synchronized boolean awaitMessages(long timeoutMs) throws InterruptedException {
+        if (mDepth == 0) {
+            wait(timeoutMs);
+        }
+        return mDepth != 0;
+    }
+
+    /**
+     * Let a waiting {@link #awaitMessages} return early.
+     */
+    public synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+
+    public synchronized int depth() {
+        return mDepth;
+    }
+
+    public synchronized int highWatermark() {
+        return mHighWatermark;
+    }
+
+    public synchronized long accepted() {
+        return mAccepted;
+    }
+
+    /**
+     * @return frames dropped to make room for newer messages
+     */
+    public synchronized long evicted() {
+        return mEvicted;
+    }
+}
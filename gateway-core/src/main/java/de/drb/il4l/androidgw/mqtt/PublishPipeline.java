@@ -0,0 +1,699 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.mqtt;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.drb.il4l.androidgw.core.TagSession;
+import de.drb.il4l.androidgw.ingest.RangingIngest;
+import de.drb.il4l.androidgw.metrics.LatencyHistogram;
+import de.drb.il4l.androidgw.mqtt.OutboundQueue.OverflowPolicy;
+
+/**
+ * Turns ranging frames and gateway events into MQTT messages: picks topic, QoS and retain flag,
+ * batches ranging frames if configured and keeps messages in an offline buffer while the broker
+ * is unreachable.
+ *
+ * <p>Messages are sent by a single I/O thread from an {@link OutboundQueue}, so neither the
+ * ingest worker nor the BLE callbacks wait for the broker or a reconnect. When the queue is full
+ * the configured {@link OverflowPolicy} applies. The {@link PublishRateController} keeps the
+ * messages in flight within the window of the client and, with a latency target, adapts batch
+ * size, conflation and rate per tag to the round trip time of the broker.</p>
+ *
+ * <p>While the broker is unreachable messages go to the offline buffer. Once connected new
+ * messages are sent right away and the backlog is replayed with the window capacity they leave,
+ * so it never delays live data. A replayed retained message is skipped if a newer one of its
+ * topic was sent already.</p>
+ */
+public class PublishPipeline implements MqttTransport.Callback, Runnable {
+    private final static String TAG = "MqttIo";
+    private final static Logger LOG = Logger.getLogger(PublishPipeline.class.getName());
+
+    private final static String BATCH_TOPIC = "batch";
+    private final static long REPLAY_SLICE = 100;
+    private final static long IDLE_TIMEOUT = 1000;
+    // Minimum time between two connect attempts while the broker is unreachable
+    private final static long CONNECT_RETRY = 1000;
+    private final static long CLOSE_TIMEOUT = 1000;
+    private final static int DRAIN_BATCH = 64;
+
+    /**
+     * Pipeline settings, read once when the pipeline is created.
+     */
+    public static class Config {
+        public String rangingTopic = "POS";
+        // Publish ranging frames to <rangingTopic>/<tag name> instead of <rangingTopic>/<address>
+        public boolean useTagName = true;
+        public boolean batch = false;
+        public int batchWindow = 50;
+        public int batchSize = 64;
+        public QosPolicy qosPolicy = new QosPolicy();
+        // Offline buffer directory, null disables the buffer
+        public File spoolDir = null;
+        public long spoolSize = 32 * 1024 * 1024;
+        // Messages per second replayed from the offline buffer at most, live messages go first
+        public int replayRate = 200;
+        // Monotonic nanosecond clock the notification arrival times are taken from
+        public LongSupplier clock = System::nanoTime;
+        // Publish ranging frames in the CompactRangingCodec format instead of the raw value
+        public boolean compact = false;
+        // Id of the gateway, carried in compact frames
+        public String gatewayId = "";
+        // Messages of single ranging frames kept for reuse per payload length, as many as fit into
+        // the outbound queue so a full queue doesn't allocate either
+        public int poolSize = 512;
+        // Messages waiting for the I/O thread
+        public int queueSize = 512;
+        public OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+        // Only publish the latest frame of each tag, at most conflateRate times per second.
+        // Replaces batching.
+        public boolean conflate = false;
+        public float conflateRate = 5;
+        // Messages handed to the transport and not acknowledged yet at most, like the in-flight
+        // window of the client, 10 by default in Paho
+        public int maxInFlight = 10;
+        // Adapt batch size, conflation and rate per tag so the latency from notification to
+        // acknowledgement stays below this many milliseconds, 0 = off
+        public int targetLatency = 0;
+    }
+
+    private final MqttTransport mTransport;
+    private final QosPolicy mQosPolicy;
+    private final int mReplaySlice;
+    private final LongSupplier mClock;
+
+    private volatile String mRangingTopic;
+    private volatile boolean mUseTagName;
+    // Bumped whenever the topics of the tags change, invalidates the topics cached in the sessions
+    private volatile int mTopicGeneration;
+
+    // Only set in batch mode, otherwise every frame is published on its own
+    private final RangingBatcher mBatcher;
+    // Only set for the compact format, used by the ingest worker only
+    private final CompactRangingCodec mCodec;
+    private final int mGatewayHash;
+    // Messages of single ranging frames, recycled once delivered
+    private final MessagePool mPool;
+    // Only set in conflating mode or with a latency target
+    private final RangingConflator mConflator;
+    // Ranging frames go to the conflator, switched by the rate controller
+    private volatile boolean mConflating;
+    private final PublishRateController mRateController;
+    // Connection lost and not restored yet, the messages in flight were already written off
+    private volatile boolean mConnectionLost = false;
+    // Windows of the batcher and releases of the conflator, null if neither is used
+    private final ScheduledExecutorService mTimer;
+
+    // Messages published while the broker is unreachable, null if the spool can't be opened
+    private final SpoolQueue mSpool;
+    private final SpoolQueue.RecordHandler mReplayHandler = this::replay;
+    // Topics of retained messages sent while a backlog is left, I/O thread only
+    private final Set<String> mSuperseded = new HashSet<>();
+
+    private final OutboundQueue mOutbound;
+    private final OverflowPolicy mOverflowPolicy;
+    private final LongAdder mRejected = new LongAdder();
+    private final LongAdder mSpilled = new LongAdder();
+    // Time from queueing a message until it is handed to the transport, I/O thread only
+    private final LatencyHistogram mSendLatency = new LatencyHistogram();
+
+    private Thread mThread;
+    private volatile boolean mRunning = false;
+    // I/O thread only
+    private long mLastConnect = Long.MIN_VALUE / 2;
+    private long mNextReplay = 0;
+    private boolean mReplaying = false;
+
+    public PublishPipeline(MqttTransport transport, Config config) {
+        mTransport = transport;
+        mQosPolicy = config.qosPolicy;
+        mReplaySlice = Math.max(1, (int) (config.replayRate * REPLAY_SLICE / 1000));
+        mClock = config.clock;
+        mRangingTopic = config.rangingTopic;
+        mUseTagName = config.useTagName;
+        LOG.info("QoS policy: " + mQosPolicy);
+
+        SpoolQueue spool = null;
+        if (config.spoolDir != null) {
+            try {
+                spool = new SpoolQueue(config.spoolDir, config.spoolSize);
+            } catch (IOException e) {
+                LOG.log(Level.SEVERE, "Failed to open offline buffer, messages may get lost while disconnected", e);
+            }
+        }
+        mSpool = spool;
+
+        mCodec = config.compact ? new CompactRangingCodec() : null;
+        mGatewayHash = CompactRangingCodec.gatewayHash(config.gatewayId);
+        mPool = new MessagePool(config.compact ? CompactRangingCodec.MAX_SIZE : RangingIngest.MAX_FRAME_SIZE,
+                config.poolSize);
+
+        int maxFrameSize = config.compact ? CompactRangingCodec.MAX_SIZE : RangingIngest.MAX_FRAME_SIZE;
+        boolean batch = config.batch && !config.conflate;
+        boolean conflator = config.conflate || config.targetLatency > 0;
+        mTimer = batch || conflator ? Executors.newSingleThreadScheduledExecutor() : null;
+        if (conflator) {
+            // With a latency target the rate is set by the rate controller before frames are conflated
+            mConflator = new RangingConflator(this::publishLatest, mPool,
+                    config.conflate ? config.conflateRate : PublishRateController.MIN_RATE, maxFrameSize, mClock,
+                    mTimer);
+        } else {
+            mConflator = null;
+        }
+        mConflating = config.conflate;
+        if (config.conflate) {
+            LOG.info("Conflating ranging frames, at most " + config.conflateRate + " per second and tag");
+        }
+
+        if (batch) {
+            mBatcher = new RangingBatcher(this::publishBatch, config.batchWindow, config.batchSize, maxFrameSize,
+                    mTimer);
+        } else {
+            mBatcher = null;
+        }
+
+        mOutbound = new OutboundQueue(config.queueSize);
+        mOverflowPolicy = config.overflowPolicy;
+        LOG.info("Outbound queue: " + mOutbound.capacity() + " messages, on overflow " + mOverflowPolicy);
+
+        mRateController = new PublishRateController(config.maxInFlight, config.targetLatency, mBatcher != null,
+                config.conflate ? config.conflateRate : 0);
+        if (config.targetLatency > 0) {
+            LOG.info("Adapting the publish rate to a latency target of " + config.targetLatency + " ms");
+        }
+
+        mTransport.setCallback(this);
+    }
+
+    /**
+     * Start the I/O thread, messages published before are queued.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mRunning = true;
+        mThread = new Thread(this, TAG);
+        mThread.start();
+    }
+
+    /**
+     * Publish pending batches, send the queued messages and release resources.
+     */
+    public void close() {
+        if (mBatcher != null) {
+            mBatcher.close();
+        }
+        if (mConflator != null) {
+            mConflator.close();
+        }
+        if (mTimer != null) {
+            mTimer.shutdownNow();
+        }
+
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+            mThread = null;
+        }
+        mRunning = false;
+        if (thread != null) {
+            mOutbound.wakeUp();
+            try {
+                thread.join(CLOSE_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread.interrupt();
+        }
+
+        if (mSpool != null) {
+            try {
+                mSpool.close();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Failed to close offline buffer", e);
+            }
+        }
+    }
+
+    /**
+     * Change the topic of ranging frames, takes effect with the next frame.
+     *
+     * @param rangingTopic  base topic
+     * @param useTagName    use tag names instead of addresses as sub topic
+     */
+    public void setRangingTopic(String rangingTopic, boolean useTagName) {
+        mRangingTopic = rangingTopic;
+        mUseTagName = useTagName;
+        invalidateTopics();
+    }
+
+    /**
+     * Build the ranging topics of all tags again with their next frame, e.g. after tag names
+     * changed.
+     */
+    public void invalidateTopics() {
+        mTopicGeneration++;
+    }
+
+    /**
+     * Queue a message, it is published with QoS and retain flag of its message class. Safe to
+     * call from any thread, only blocks to spill to the offline buffer.
+     *
+     * @param messageClass  selects QoS and retain flag
+     * @param topic         target topic
+     * @param payload       message payload, must not be modified afterwards
+     * @return false if the message was dropped because the queue is full
+     */
+    public boolean publish(MessageClass messageClass, String topic, byte[] payload) {
+        return enqueue(messageClass, topic, payload, null, null);
+    }
+
+    private boolean enqueue(MessageClass messageClass, String topic, byte[] payload, Delivery delivery, TagSession session) {
+        if (mOutbound.offer(messageClass, topic, payload, delivery, session, mClock.getAsLong(),
+                mOverflowPolicy == OverflowPolicy.DROP_OLDEST)) {
+            return true;
+        }
+
+        boolean spilled = mOverflowPolicy == OverflowPolicy.SPILL && spill(messageClass, topic, payload);
+        if (spilled) {
+            mSpilled.increment();
+            mOutbound.wakeUp();
+        } else {
+            mRejected.increment();
+        }
+        if (delivery != null) {
+            delivery.recycle();
+        }
+        return spilled;
+    }
+
+    private boolean spill(MessageClass messageClass, String topic, byte[] payload) {
+        if (mSpool == null) {
+            return false;
+        }
+        try {
+            mSpool.append(topic, payload, mQosPolicy.getQos(messageClass), mQosPolicy.isRetained(messageClass));
+            return true;
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to spill message for " + topic, e);
+            return false;
+        }
+    }
+
+    @Override
+    public void run() {
+        LOG.info("MQTT I/O thread started");
+        OutboundQueue.Message message = new OutboundQueue.Message();
+        // Keep going after close until the queue is empty, close only waits so long
+        while (mRunning || mOutbound.depth() > 0) {
+            try {
+                mOutbound.awaitMessages(isReplayPending() ? REPLAY_SLICE : IDLE_TIMEOUT);
+                adapt();
+                mRateController.awaitWindow(REPLAY_SLICE, mClock.getAsLong());
+            } catch (InterruptedException e) {
+                break;
+            }
+            for (int i = 0; i < DRAIN_BATCH && mRateController.isWindowOpen() && mOutbound.poll(message); i++) {
+                send(message);
+            }
+            replaySlice();
+        }
+        LOG.info("MQTT I/O thread stopped");
+    }
+
+    private void send(OutboundQueue.Message message) {
+        long now = mClock.getAsLong();
+        mSendLatency.record(now - message.enqueuedNanos);
+        mRateController.onSent(message.enqueuedNanos, now);
+        if (message.payload == null) {
+            // Placeholder of a conflated tag, send its newest frame
+            message.delivery = mConflator.take(message.session);
+            if (message.delivery == null) {
+                message.session = null;
+                return;
+            }
+            message.payload = message.delivery.getPayload();
+        }
+
+        try {
+            publish(message.messageClass, message.topic, message.payload, message.delivery);
+        } catch (TransportException e) {
+            LOG.log(Level.WARNING, "Failed to publish " + message.topic + " to MQTT-Broker", e);
+        } catch (RuntimeException e) {
+            // Keep the I/O thread running
+            LOG.log(Level.SEVERE, "Failed to publish " + message.topic, e);
+        }
+        message.topic = null;
+        message.payload = null;
+        message.delivery = null;
+        message.session = null;
+    }
+
+    private void publish(MessageClass messageClass, String topic, byte[] payload, Delivery delivery) throws TransportException {
+        int qos = mQosPolicy.getQos(messageClass);
+        boolean retained = mQosPolicy.isRetained(messageClass);
+
+        // Delivery of buffered messages isn't tracked
+        if (mSpool != null && !mTransport.isConnected()) {
+            try {
+                mSpool.append(topic, payload, qos, retained);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Failed to buffer message for " + topic, e);
+            }
+            if (retained) {
+                // Now the newest of its topic in the backlog
+                mSuperseded.remove(topic);
+            }
+            if (delivery != null) {
+                delivery.recycle();
+            }
+
+            // The backlog is replayed by the I/O thread once connected
+            connectIfDisconnected();
+            return;
+        }
+
+        boolean inFlight = false;
+        try {
+            connectIfDisconnected();
+
+            long now = mClock.getAsLong();
+            if (delivery != null) {
+                delivery.setPublishedAt(now);
+            }
+            // Counted before handing it over, it may be acknowledged before publish returns
+            mRateController.onPublished(now);
+            inFlight = true;
+            mTransport.publish(topic, payload, qos, retained, delivery);
+            if (retained && mSpool != null && !mSpool.isEmpty()) {
+                mSuperseded.add(topic);
+            }
+        } catch (TransportException | RuntimeException e) {
+            // Never handed to the transport, so it won't be reported as delivered
+            if (inFlight) {
+                mRateController.onRejected();
+            }
+            if (delivery != null) {
+                delivery.recycle();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Apply the decisions of the rate controller. Called on the I/O thread.
+     */
+    private void adapt() {
+        if (!mRateController.update(mClock.getAsLong())) {
+            return;
+        }
+
+        float rateLimit = mRateController.getRateLimit();
+        if (rateLimit > 0) {
+            mConflator.setMaxRate(rateLimit);
+        }
+        mConflating = rateLimit > 0;
+        if (mBatcher != null) {
+            mBatcher.setScale(mRateController.getBatchScale());
+            if (rateLimit > 0) {
+                // Conflation replaces batching, don't let older frames wait for the batch window
+                mBatcher.flush();
+            }
+        }
+        LOG.info(String.format(Locale.ROOT, "Latency %.1f ms, RTT %.1f ms: rate limit %.1f Hz per tag, batch scale %d",
+                mRateController.getLatency() / 1e6, mRateController.getRtt() / 1e6, rateLimit,
+                mRateController.getBatchScale()));
+    }
+
+    private void connectIfDisconnected() throws TransportException {
+        if (mTransport.isConnected()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - mLastConnect >= CONNECT_RETRY) {
+            mLastConnect = now;
+            mTransport.connect();
+        }
+    }
+
+    /**
+     * Publish a ranging frame. In batch mode the frame is only queued and published later as part
+     * of a batch envelope on {@code <topic>/batch}, see {@link RangingBatcher}. In conflating mode
+     * it replaces the previous frame of the tag if that wasn't sent yet, see
+     * {@link RangingConflator}. Called on the ingest worker thread.
+     *
+     * @param session       tag the frame was received from
+     * @param payload       frame payload, copied before returning
+     * @param length        payload length
+     * @param receivedAt    arrival time in milliseconds since epoch
+     * @param arrivalNanos  arrival time on the latency clock
+     * @return false if the frame was dropped because the outbound queue is full
+     */
+    public boolean publishRanging(TagSession session, byte[] payload, int length, long receivedAt, long arrivalNanos) {
+        final String distancesTopic = mRangingTopic;
+        session.getLatency().getQueue().record(mClock.getAsLong() - arrivalNanos);
+        mRateController.onFrame(session.getURate(arrivalNanos));
+
+        if (mCodec != null) {
+            length = mCodec.encode(mGatewayHash, CompactRangingCodec.tagId(session.getServerAddr()),
+                    session.nextSequence(), receivedAt, payload, length);
+            payload = mCodec.getBuffer();
+        }
+
+        // A tag keeps conflating until its pending frame is sent, so frames stay in order
+        if (mConflator != null && (mConflating || mConflator.isPending(session))) {
+            mConflator.offer(session, rangingTopic(session), payload, length, arrivalNanos);
+            return true;
+        }
+
+        if (mBatcher != null) {
+            mBatcher.add(distancesTopic, session, payload, length, receivedAt, arrivalNanos);
+            return true;
+        }
+
+        Delivery delivery = mPool.acquire(length);
+        System.arraycopy(payload, 0, delivery.getPayload(), 0, length);
+        delivery.add(session, arrivalNanos);
+        return enqueue(MessageClass.RANGING, rangingTopic(session), delivery.getPayload(), delivery, session);
+    }
+
+    private String rangingTopic(TagSession session) {
+        // Read the generation first, the topic settings are changed before it is bumped
+        int generation = mTopicGeneration;
+        String topic = session.getRangingTopic(generation);
+        if (topic == null) {
+            //user chooses to use the device name as topic
+            String tagId = mUseTagName ? session.getName() : session.getServerAddr();
+            topic = RangingTopics.forTag(mRangingTopic, tagId);
+            session.setRangingTopic(topic, generation);
+        }
+        return topic;
+    }
+
+    @Override
+    public void connectComplete(boolean reconnect) {
+        mConnectionLost = false;
+        // Start replaying the offline buffer
+        mOutbound.wakeUp();
+    }
+
+    @Override
+    public void deliveryComplete(Delivery delivery) {
+        long now = mClock.getAsLong();
+        if (delivery == null) {
+            mRateController.onAcknowledged(now);
+            return;
+        }
+        delivery.complete(now);
+        mRateController.onDelivered(now - delivery.getPublishedAt(), now - delivery.getOldestArrival(), now);
+        delivery.recycle();
+    }
+
+    @Override
+    public void deliveryFailed(Delivery delivery) {
+        // Messages failed with the connection were written off by connectionLost already
+        if (!mConnectionLost) {
+            mRateController.onRejected();
+        }
+        if (delivery != null) {
+            delivery.recycle();
+        }
+    }
+
+    @Override
+    public void connectionLost() {
+        mConnectionLost = true;
+        mRateController.onConnectionLost(mClock.getAsLong());
+    }
+
+    /**
+     * @return clock the arrival times of ranging frames are taken from
+     */
+    public LongSupplier getClock() {
+        return mClock;
+    }
+
+    public QosPolicy getQosPolicy() {
+        return mQosPolicy;
+    }
+
+    /**
+     * @return pool of the messages single ranging frames are published with
+     */
+    public MessagePool getMessagePool() {
+        return mPool;
+    }
+
+    /**
+     * @return conflator of the ranging frames, null unless in conflating mode or with a latency
+     *         target
+     */
+    public RangingConflator getConflator() {
+        return mConflator;
+    }
+
+    /**
+     * @return true if ranging frames are currently conflated
+     */
+    public boolean isConflating() {
+        return mConflating;
+    }
+
+    public PublishRateController getRateController() {
+        return mRateController;
+    }
+
+    public OutboundQueue getOutboundQueue() {
+        return mOutbound;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return mOverflowPolicy;
+    }
+
+    /**
+     * @return messages lost because the outbound queue was full, dropped old frames included
+     */
+    public long getDroppedMessages() {
+        return mRejected.sum() + mOutbound.evicted();
+    }
+
+    /**
+     * @return messages moved to the offline buffer because the outbound queue was full
+     */
+    public long getSpilledMessages() {
+        return mSpilled.sum();
+    }
+
+    /**
+     * @return time from queueing a message until it was handed to the transport
+     */
+    public LatencyHistogram getSendLatency() {
+        return mSendLatency;
+    }
+
+    /**
+     * @return bytes held in the offline buffer
+     */
+    public long getSpoolSize() {
+        return mSpool != null ? mSpool.sizeBytes() : 0;
+    }
+
+    private boolean publishLatest(TagSession session, String topic) {
+        // The frame stays with the conflator if the queue is full, nothing to drop
+        return mOutbound.offer(MessageClass.RANGING, topic, null, null, session, mClock.getAsLong(), false);
+    }
+
+    private void publishBatch(String distancesTopic, byte[] envelope, Delivery delivery) {
+        if (!enqueue(MessageClass.RANGING, distancesTopic + "/" + BATCH_TOPIC, envelope, delivery, null)) {
+            LOG.warning("Outbound queue full, ranging batch dropped");
+        }
+    }
+
+    private boolean isReplayPending() {
+        return mSpool != null && mTransport.isConnected() && !mSpool.isEmpty();
+    }
+
+    /**
+     * Send a slice of the offline buffer to the broker, rate limited so a long outage doesn't
+     * flood it. Only uses the window capacity left after the queued live messages. Called on the
+     * I/O thread.
+     */
+    private void replaySlice() {
+        if (!isReplayPending()) {
+            mReplaying = false;
+            return;
+        }
+        if (mOutbound.depth() > 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now < mNextReplay) {
+            return;
+        }
+        mNextReplay = now + REPLAY_SLICE;
+
+        if (!mReplaying) {
+            mReplaying = true;
+            LOG.info("Replaying " + mSpool.sizeBytes() + " bytes of buffered messages");
+        }
+        try {
+            mSpool.drain(mReplayHandler, mReplaySlice);
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, "Failed to read offline buffer", e);
+        }
+        if (mSpool.isEmpty()) {
+            LOG.info("Offline buffer replayed");
+            mSuperseded.clear();
+        }
+    }
+
+    private boolean replay(String topic, byte[] payload, int qos, boolean retained) {
+        if (retained && mSuperseded.contains(topic)) {
+            // Would replace the newer retained message on the broker
+            return true;
+        }
+        if (!mRateController.isWindowOpen()) {
+            return false;
+        }
+        mRateController.onPublished(mClock.getAsLong());
+        try {
+            mTransport.publish(topic, payload, qos, retained, null);
+            return true;
+        } catch (TransportException e) {
+            // e.g. too many messages in flight, try again in the next slice
+            mRateController.onRejected();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.mqtt;
+
+import java.util.logging.Logger;
+
+/**
+ * Flow control of the MQTT I/O thread. Keeps the messages in flight, i.e. handed to the transport
+ * but not acknowledged yet, within the window of the client, so the client never rejects a
+ * message because too many are in flight. Measures the round trip time from publish to
+ * acknowledgement and the latency from notification to acknowledgement.
+ *
+ * <p>With a latency target it also adapts the load, AIMD like TCP. The latency of a control
+ * interval is the mean latency of the frames acknowledged in it, or if longer the longest wait in
+ * the outbound queue plus the round trip time, which shows a growing backlog before its frames
+ * are acknowledged. Only frames that arrived after the previous decision count, so the backlog
+ * from before doesn't trigger another one. While it exceeds the target, the controller doubles the batch size in
+ * batch mode, then conflates ranging frames to the latest per tag and halves the rate limit per
+ * tag down to {@value #MIN_RATE} Hz. While the latency is below half the target it raises the rate
+ * limit step by step, stops conflating once the limit reached the rate of the tags and shrinks
+ * the batches again.</p>
+ */
+public class PublishRateController {
+    private final static Logger LOG = Logger.getLogger(PublishRateController.class.getName());
+
+    // Lowest rate limit per tag in Hz
+    public static final float MIN_RATE = 0.5f;
+    private static final float DECREASE = 0.5f;
+    // Rate limit step per interval, fraction of the rate of the tags
+    private static final float INCREASE = 1.0f / 8;
+    private static final int MAX_BATCH_SCALE = 8;
+    // Latency below this fraction of the target leaves room for more load
+    private static final double HEADROOM = 0.5;
+    // Weight of a new round trip time in the average, as in RFC 6298
+    private static final double RTT_GAIN = 1.0 / 8;
+    private static final float TAG_RATE_GAIN = 1.0f / 64;
+    private static final long MIN_INTERVAL = 500_000_000L;
+    // Window full without any acknowledgement for this long, they are assumed lost
+    private static final long STALL_TIMEOUT = 10_000_000_000L;
+
+    private final int mMaxInFlight;
+    private final long mTarget;
+    private final boolean mBatching;
+    // Upper bound of the rate limit, 0 if conflation may be turned off
+    private final float mMaxRate;
+
+    // Guarded by this
+    private int mInFlight = 0;
+    private long mLastProgress;
+    private double mRtt = 0;
+    private long mLatencySum = 0;
+    private int mLatencyCount = 0;
+
+    // Written by the ingest worker only
+    private volatile float mTagRate = 0;
+
+    // Written by the I/O thread only
+    private volatile float mRateLimit;
+    private volatile int mBatchScale = 1;
+    private volatile double mLatency = 0;
+    private volatile long mDecreases = 0;
+    private volatile long mIncreases = 0;
+    private long mNextUpdate = Long.MIN_VALUE;
+    private long mQueueWait = 0;
+    // Time of the last decision, earlier frames don't show its effect yet
+    private volatile long mChangedAt = Long.MIN_VALUE;
+
+    /**
+     * @param maxInFlight   messages in flight at most
+     * @param targetMs      latency target in milliseconds, 0 only limits the messages in flight
+     * @param batching      the pipeline is in batch mode
+     * @param maxRate       rate limit per tag if the pipeline always conflates, otherwise 0
+     */
+    public PublishRateController(int maxInFlight, long targetMs, boolean batching, float maxRate) {
+        if (maxInFlight <= 0 || targetMs < 0 || maxRate < 0) {
+            throw new IllegalArgumentException("invalid flow control settings");
+        }
+        mMaxInFlight = maxInFlight;
+        mTarget = targetMs * 1_000_000L;
+        mBatching = batching;
+        mMaxRate = maxRate;
+        mRateLimit = maxRate;
+    }
+
+    /**
+     * A message is about to be handed to the transport. Called on the I/O thread.
+     */
+    synchronized void onPublished(long now) {
+        if (mInFlight == 0) {
+            mLastProgress = now;
+        }
+        mInFlight++;
+    }
+
+    /**
+     * The transport didn't accept or failed to deliver a message counted by {@link #onPublished}.
+     */
+    synchronized void onRejected() {
+        if (mInFlight > 0) {
+            mInFlight--;
+        }
+        notifyAll();
+    }
+
+    /**
+     * The connection was lost, nothing is in flight any more. Called on the thread of the
+     * transport.
+     */
+    synchronized void onConnectionLost(long now) {
+        mInFlight = 0;
+        mLastProgress = now;
+        notifyAll();
+    }
+
+    /**
+     * A message was acknowledged. Called on the thread of the transport.
+     */
+    synchronized void onAcknowledged(long now) {
+        if (mInFlight > 0) {
+            mInFlight--;
+        }
+        mLastProgress = now;
+        notifyAll();
+    }
+
+    /**
+     * A message with ranging frames was acknowledged. Called on the thread of the transport.
+     *
+     * @param rtt       time from publish to acknowledgement
+     * @param latency   time from the arrival of its oldest frame to acknowledgement
+     */
+    synchronized void onDelivered(long rtt, long latency, long now) {
+        onAcknowledged(now);
+        mRtt = mRtt == 0 ? rtt : mRtt + RTT_GAIN * (rtt - mRtt);
+        if (now - latency >= mChangedAt) {
+            mLatencySum += latency;
+            mLatencyCount++;
+        }
+    }
+
+    /**
+     * A ranging frame was published. Called on the ingest worker thread.
+     *
+     * @param tagRate   update rate of its tag
+     */
+    void onFrame(float tagRate) {
+        mTagRate = mTagRate + TAG_RATE_GAIN * (tagRate - mTagRate);
+    }
+
+    /**
+     * A message is taken from the outbound queue. Called on the I/O thread.
+     *
+     * @param enqueuedNanos time the message was queued
+     */
+    void onSent(long enqueuedNanos, long now) {
+        if (enqueuedNanos >= mChangedAt && now - enqueuedNanos > mQueueWait) {
+            mQueueWait = now - enqueuedNanos;
+        }
+    }
+
+    public synchronized boolean isWindowOpen() {
+        return mInFlight < mMaxInFlight;
+    }
+
+    /**
+     * Block until the window is open or the timeout elapsed. If nothing was acknowledged for a
+     * long time, e.g. because the connection was lost with the messages, the window is reopened.
+     */
+    synchronized void awaitWindow(long timeoutMs, long now) throws InterruptedException {
+        if (mInFlight < mMaxInFlight) {
+            return;
+        }
+        if (now - mLastProgress > STALL_TIMEOUT) {
+            LOG.warning(mInFlight + " messages not acknowledged, assuming they are lost");
+            mInFlight = 0;
+            return;
+        }
+        wait(timeoutMs);
+    }
+
+    /**
+     * Adapt the load to the latency since the previous update, at most once per control interval
+     * of at least a round trip. Called on the I/O thread.
+     *
+     * @return true if the rate limit or the batch scale changed
+     */
+    boolean update(long now) {
+        if (mTarget == 0 || now < mNextUpdate) {
+            return false;
+        }
+
+        long sum;
+        int count;
+        int inFlight;
+        long lastProgress;
+        double rtt;
+        synchronized (this) {
+            sum = mLatencySum;
+            count = mLatencyCount;
+            inFlight = mInFlight;
+            lastProgress = mLastProgress;
+            rtt = mRtt;
+            mLatencySum = 0;
+            mLatencyCount = 0;
+        }
+        mNextUpdate = now + Math.max(MIN_INTERVAL, (long) rtt);
+        long queueWait = mQueueWait;
+        mQueueWait = 0;
+
+        if (count == 0) {
+            // Nothing acknowledged, congested if messages are stuck in flight
+            return inFlight > 0 && now - lastProgress > mTarget && changed(decrease(), now);
+        }
+        double latency = Math.max((double) sum / count, queueWait + rtt);
+        mLatency = latency;
+        if (latency > mTarget) {
+            return changed(decrease(), now);
+        }
+        if (latency < HEADROOM * mTarget && inFlight < mMaxInFlight) {
+            return changed(increase(), now);
+        }
+        return false;
+    }
+
+    private boolean changed(boolean changed, long now) {
+        if (changed) {
+            mChangedAt = now;
+        }
+        return changed;
+    }
+
+    private boolean decrease() {
+        if (mBatching && mRateLimit == 0 && mBatchScale < MAX_BATCH_SCALE) {
+            mBatchScale = mBatchScale * 2;
+        } else if (mRateLimit == 0) {
+            // Start conflating below the rate the tags send at
+            mRateLimit = Math.max(MIN_RATE, mTagRate * DECREASE);
+        } else if (mRateLimit > MIN_RATE) {
+            mRateLimit = Math.max(MIN_RATE, mRateLimit * DECREASE);
+        } else {
+            return false;
+        }
+        mDecreases = mDecreases + 1;
+        return true;
+    }
+
+    private boolean increase() {
+        if (mRateLimit > 0) {
+            float limit = mMaxRate > 0 ? mMaxRate : mTagRate;
+            if (mRateLimit < limit) {
+                mRateLimit = Math.min(limit, mRateLimit + Math.max(MIN_RATE, limit * INCREASE));
+            } else if (mMaxRate == 0) {
+                mRateLimit = 0;
+            } else {
+                return false;
+            }
+        } else if (mBatchScale > 1) {
+            mBatchScale = mBatchScale / 2;
+        } else {
+            return false;
+        }
+        mIncreases = mIncreases + 1;
+        return true;
+    }
+
+    public int getMaxInFlight() {
+        return mMaxInFlight;
+    }
+
+    public synchronized int getInFlight() {
+        return mInFlight;
+    }
+
+    /**
+     * @return smoothed round trip time from publish to acknowledgement in nanoseconds
+     */
+    public synchronized double getRtt() {
+        return mRtt;
+    }
+
+    /**
+     * @return latency target in nanoseconds, 0 if the load isn't adapted
+     */
+    public long getTarget() {
+        return mTarget;
+    }
+
+    /**
+     * @return latency from notification to acknowledgement of the last control interval in
+     *         nanoseconds, see the class description
+     */
+    public double getLatency() {
+        return mLatency;
+    }
+
+    /**
+     * @return maximum messages per second and tag, 0 if ranging frames aren't conflated
+     */
+    public float getRateLimit() {
+        return mRateLimit;
+    }
+
+    /**
+     * @return factor the batch window and size are multiplied with
+     */
+    public int getBatchScale() {
+        return mBatchScale;
+    }
+
+    public long getDecreases() {
+        return mDecreases;
+    }
+
+    public long getIncreases() {
+        return mIncreases;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.mqtt;
+
+import java.util.Locale;
+
+/**
+ * QoS and retain flag per {@link MessageClass}.
+ *
+ * <p>The policy can be overridden by a spec string of {@code ;} separated entries in the form
+ * {@code <class>=<qos>[,retain]}, e.g. {@code ranging=0;presence=2,retain}. Classes missing in
+ * the spec keep their default.</p>
+ */
+public class QosPolicy {
+
+    private final int[] mQos = new int[MessageClass.values().length];
+    private final boolean[] mRetain = new boolean[MessageClass.values().length];
+
+    public QosPolicy() {
+        set(MessageClass.RANGING, 2, false);
+        set(MessageClass.PRESENCE, 1, false);
+        set(MessageClass.VERSION, 1, false);
+        set(MessageClass.BATTERY, 1, false);
+        set(MessageClass.METRICS, 0, false);
+    }
+
+    /**
+     * Create a policy from the defaults overridden by the given spec.
+     *
+     * @param spec  policy spec, may be null or empty
+     * @throws IllegalArgumentException if the spec is malformed
+     */
+    public static QosPolicy parse(String spec) {
+        QosPolicy policy = new QosPolicy();
+        if (spec == null) {
+            return policy;
+        }
+
+        for (String entry : spec.split(";")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+
+            String[] keyValue = entry.split("=");
+            if (keyValue.length != 2) {
+                throw new IllegalArgumentException("invalid QoS entry: " + entry);
+            }
+            MessageClass messageClass = MessageClass.valueOf(keyValue[0].trim().toUpperCase(Locale.ROOT));
+
+            String[] value = keyValue[1].split(",");
+            int qos;
+            try {
+                qos = Integer.parseInt(value[0].trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid QoS entry: " + entry);
+            }
+            boolean retain = value.length > 1 && value[1].trim().equalsIgnoreCase("retain");
+            policy.set(messageClass, qos, retain);
+        }
+        return policy;
+    }
+
+    public void set(MessageClass messageClass, int qos, boolean retain) {
+        if (qos < 0 || qos > 2) {
+            throw new IllegalArgumentException("QoS must be 0, 1 or 2: " + qos);
+        }
+        mQos[messageClass.ordinal()] = qos;
+        mRetain[messageClass.ordinal()] = retain;
+    }
+
+    public int getQos(MessageClass messageClass) {
+        return mQos[messageClass.ordinal()];
+    }
+
+    public boolean isRetained(MessageClass messageClass) {
+        return mRetain[messageClass.ordinal()];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (MessageClass messageClass : MessageClass.values()) {
+            if (sb.length() > 0) {
+                sb.append(';');
+            }
+            sb.append(messageClass.name().toLowerCase(Locale.ROOT))
+                    .append('=').append(getQos(messageClass));
+            if (isRetained(messageClass)) {
+                sb.append(",retain");
+            }
+        }
+        return sb.toString();
+    }
+}
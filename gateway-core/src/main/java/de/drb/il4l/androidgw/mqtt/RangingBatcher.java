@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.mqtt;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import de.drb.il4l.androidgw.core.TagSession;
+
+/**
+ * Collects ranging frames of all tags and publishes them as one message per topic, either when
+ * the batch window elapsed or when the batch is full.
+ *
+ * <p>Envelope layout, all fields big-endian:</p>
+ * <pre>
+ *  size  field
+ *  1     envelope version, currently 1
+ *  2     frame count N
+ *  then N times:
+ *  6     tag BLE address, most significant byte first
+ *  8     receive timestamp, milliseconds since epoch
+ *  2     payload length L
+ *  L     ranging payload as received from the tag
+ * </pre>
+ */
+public class RangingBatcher {
+
+    public interface Sink {
+        /**
+         * @param delivery  frames carried by the envelope
+         */
+        void publishBatch(String topic, byte[] envelope, Delivery delivery);
+    }
+
+    public static final int ENVELOPE_VERSION = 1;
+    private static final int HEADER_SIZE = 3;
+    private static final int FRAME_HEADER_SIZE = 6 + 8 + 2;
+
+    private final Sink mSink;
+    private final long mBaseWindow;
+    private final int mBaseMaxFrames;
+    private final int mMaxFrameSize;
+    // Guarded by this, the base values scaled with setScale
+    private long mWindow;
+    private int mMaxFrames;
+    private final Map<String, Batch> mBatches = new HashMap<>();
+    private final ScheduledExecutorService mTimer;
+
+    /**
+     * @param sink          receives the encoded envelopes
+     * @param windowMs      maximum time a frame waits in a batch
+     * @param maxFrames     maximum number of frames per envelope
+     * @param maxFrameSize  largest payload accepted
+     * @param timer         publishes batches whose window expired, shared with the owner
+     */
+    public RangingBatcher(Sink sink, long windowMs, int maxFrames, int maxFrameSize, ScheduledExecutorService timer) {
+        if (windowMs <= 0 || maxFrames <= 0 || maxFrames > 0xFFFF) {
+            throw new IllegalArgumentException("invalid batch window or size");
+        }
+        mSink = sink;
+        mBaseWindow = windowMs;
+        mBaseMaxFrames = maxFrames;
+        mWindow = windowMs;
+        mMaxFrames = maxFrames;
+        mMaxFrameSize = maxFrameSize;
+        mTimer = timer;
+    }
+
+    /**
+     * Multiply batch window and size, e.g. to publish fewer messages over a congested link.
+     * Takes effect with the next batch.
+     *
+     * @param scale factor, 1 for the configured window and size
+     */
+    public synchronized void setScale(int scale) {
+        if (scale <= 0) {
+            throw new IllegalArgumentException("invalid scale: " + scale);
+        }
+        mWindow = mBaseWindow * scale;
+        mMaxFrames = Math.min(0xFFFF, mBaseMaxFrames * scale);
+    }
+
+    /**
+     * Add a frame to the batch of the given topic.
+     *
+     * @param topic         topic the batch is published to
+     * @param session       tag the frame was received from
+     * @param payload       ranging payload, copied before returning
+     * @param length        payload length
+     * @param receivedAt    arrival time in milliseconds since epoch
+     * @param arrivalNanos  arrival time on the latency clock
+     */
+    public void add(String topic, TagSession session, byte[] payload, int length, long receivedAt, long arrivalNanos) {
+        if (length > mMaxFrameSize) {
+            throw new IllegalArgumentException("frame too large: " + length);
+        }
+
+        byte[] envelope = null;
+        Delivery delivery = null;
+        synchronized (this) {
+            Batch batch = mBatches.get(topic);
+            if (batch == null) {
+                batch = new Batch(topic);
+                mBatches.put(topic, batch);
+            }
+            if (batch.count == 0) {
+                final Batch pending = batch;
+                final int generation = batch.generation;
+                mTimer.schedule(() -> flushExpired(pending, generation), mWindow, TimeUnit.MILLISECONDS);
+            }
+
+            batch.append(session, payload, length, receivedAt, arrivalNanos);
+            if (batch.count >= Math.min(mMaxFrames, batch.capacity)) {
+                delivery = batch.delivery;
+                envelope = batch.finish();
+            }
+        }
+
+        if (envelope != null) {
+            mSink.publishBatch(topic, envelope, delivery);
+        }
+    }
+
+    /**
+     * Publish all pending batches immediately.
+     */
+    public void flush() {
+        for (Batch batch : pendingBatches()) {
+            byte[] envelope = null;
+            Delivery delivery = null;
+            synchronized (this) {
+                if (batch.count > 0) {
+                    delivery = batch.delivery;
+                    envelope = batch.finish();
+                }
+            }
+            if (envelope != null) {
+                mSink.publishBatch(batch.topic, envelope, delivery);
+            }
+        }
+    }
+
+    /**
+     * Publish pending batches. Windows that expire later find their batch empty, the timer
+     * itself is shut down by the owner.
+     */
+    public void close() {
+        flush();
+    }
+
+    private synchronized Batch[] pendingBatches() {
+        return mBatches.values().toArray(new Batch[0]);
+    }
+
+    private void flushExpired(Batch batch, int generation) {
+        byte[] envelope = null;
+        Delivery delivery = null;
+        synchronized (this) {
+            // The batch may have been flushed because it was full in the meantime
+            if (batch.generation == generation && batch.count > 0) {
+                delivery = batch.delivery;
+                envelope = batch.finish();
+            }
+        }
+        if (envelope != null) {
+            mSink.publishBatch(batch.topic, envelope, delivery);
+        }
+    }
+
+    private final class Batch {
+        final String topic;
+        // Frames the buffer and delivery have room for, grows with the batch size
+        int capacity;
+        ByteBuffer buffer;
+        int count = 0;
+        int generation = 0;
+        // Frames of the pending envelope, replaced when the envelope is finished
+        Delivery delivery;
+
+        Batch(String topic) {
+            this.topic = topic;
+            allocate();
+            delivery = new Delivery(capacity);
+        }
+
+        private void allocate() {
+            capacity = mMaxFrames;
+            buffer = ByteBuffer.allocate(HEADER_SIZE + capacity * (FRAME_HEADER_SIZE + mMaxFrameSize));
+            buffer.put((byte) ENVELOPE_VERSION);
+            buffer.putShort((short) 0);
+        }
+
+        void append(TagSession session, byte[] payload, int length, long receivedAt, long arrivalNanos) {
+            putAddress(buffer, session.getServerAddr());
+            buffer.putLong(receivedAt);
+            buffer.putShort((short) length);
+            buffer.put(payload, 0, length);
+            delivery.add(session, arrivalNanos);
+            count++;
+        }
+
+        byte[] finish() {
+            buffer.putShort(1, (short) count);
+            byte[] envelope = Arrays.copyOf(buffer.array(), buffer.position());
+
+            if (capacity < mMaxFrames) {
+                allocate();
+            } else {
+                buffer.position(HEADER_SIZE);
+            }
+            count = 0;
+            generation++;
+            delivery = new Delivery(capacity);
+            return envelope;
+        }
+    }
+
+    /**
+     * Write a colon separated BLE address as 6 raw bytes. Malformed addresses are written as zero.
+     */
+    static void putAddress(ByteBuffer buffer, String address) {
+        if (address == null || address.length() != 17) {
+            buffer.putInt(0).putShort((short) 0);
+            return;
+        }
+        for (int i = 0; i < 6; i++) {
+            int hi = Character.digit(address.charAt(i * 3), 16);
+            int lo = Character.digit(address.charAt(i * 3 + 1), 16);
+            buffer.put((byte) (hi < 0 || lo < 0 ? 0 : (hi << 4) | lo));
+        }
+    }
+}
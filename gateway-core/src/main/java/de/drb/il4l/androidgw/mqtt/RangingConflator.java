@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.mqtt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import de.drb.il4l.androidgw.core.TagSession;
+
+/**
+ * Keeps only the latest ranging frame per tag and lets each tag publish at most at a maximum
+ * rate. Instead of the frame itself a placeholder is queued for the MQTT I/O thread, which takes
+ * the newest frame of the tag with {@link #take} when it is its turn. So a tag has at most one
+ * message on its way and a backlog of outdated frames can't build up, however slow the broker.
+ * A placeholder that didn't fit into the outbound queue is queued again with the next frame of
+ * the tag, or by a timer if the tag stays silent.
+ */
+public class RangingConflator {
+
+    public interface Sink {
+        /**
+         * Queue the placeholder of a tag that has a frame to send.
+         *
+         * @return false if it couldn't be queued, it is tried again with the next frame or shortly
+         *         after
+         */
+        boolean publishLatest(TagSession session, String topic);
+    }
+
+    // Time in ms until placeholders that didn't fit into the queue are tried again
+    private static final long RETRY_INTERVAL = 100;
+
+    private final Sink mSink;
+    private final MessagePool mPool;
+    private final LongSupplier mClock;
+    private final int mMaxFrameSize;
+    private volatile long mInterval;
+    private final Map<String, Slot> mSlots = new HashMap<>();
+    private final ScheduledExecutorService mTimer;
+    private final ScheduledFuture<?> mRetryTask;
+    // Slots whose placeholder was rejected, guarded by this
+    private int mRejected = 0;
+    // Slots taken for a retry, timer thread only
+    private final List<Slot> mRetry = new ArrayList<>();
+
+    private long mReplaced = 0;
+
+    private final class Slot {
+        final byte[] data = new byte[mMaxFrameSize];
+        TagSession session;
+        String topic;
+        int length;
+        long arrivalNanos;
+        // Frame not sent yet
+        boolean fresh;
+        // Placeholder queued for the I/O thread
+        boolean queued;
+        // Release by the timer pending
+        boolean scheduled;
+        // Placeholder didn't fit into the queue
+        boolean rejected;
+        long lastSent = Long.MIN_VALUE / 2;
+    }
+
+    /**
+     * @param sink          queues the placeholders
+     * @param pool          messages the frames are published with
+     * @param maxRate       maximum messages per second and tag
+     * @param maxFrameSize  largest payload accepted
+     * @param clock         monotonic nanosecond clock
+     * @param timer         runs the delayed releases and retries, shared with the owner
+     */
+    public RangingConflator(Sink sink, MessagePool pool, float maxRate, int maxFrameSize, LongSupplier clock,
+                            ScheduledExecutorService timer) {
+        mSink = sink;
+        mPool = pool;
+        mMaxFrameSize = maxFrameSize;
+        mClock = clock;
+        mTimer = timer;
+        setMaxRate(maxRate);
+        mRetryTask = timer.scheduleWithFixedDelay(this::retryRejected, RETRY_INTERVAL, RETRY_INTERVAL,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param maxRate   maximum messages per second and tag, takes effect with the next frame
+     */
+    public void setMaxRate(float maxRate) {
+        if (maxRate <= 0) {
+            throw new IllegalArgumentException("invalid rate: " + maxRate);
+        }
+        mInterval = (long) (1e9 / maxRate);
+    }
+
+    public float getMaxRate() {
+        return (float) (1e9 / mInterval);
+    }
+
+    /**
+     * Replace the latest frame of the tag. Called on the ingest worker thread.
+     *
+     * @param topic         topic the frame is published to
+     * @param payload       ranging payload, copied before returning
+     * @param arrivalNanos  arrival time on the latency clock
+     */
+    public void offer(TagSession session, String topic, byte[] payload, int length, long arrivalNanos) {
+        if (length > mMaxFrameSize) {
+            throw new IllegalArgumentException("frame too large: " + length);
+        }
+
+        Slot slot;
+        synchronized (this) {
+            slot = mSlots.get(session.getServerAddr());
+            if (slot == null) {
+                slot = new Slot();
+                mSlots.put(session.getServerAddr(), slot);
+            }
+            if (slot.fresh) {
+                mReplaced++;
+            }
+            System.arraycopy(payload, 0, slot.data, 0, length);
+            slot.session = session;
+            slot.topic = topic;
+            slot.length = length;
+            slot.arrivalNanos = arrivalNanos;
+            slot.fresh = true;
+
+            if (slot.queued || slot.scheduled) {
+                return;
+            }
+            long wait = slot.lastSent + mInterval - mClock.getAsLong();
+            if (wait > 0) {
+                final Slot pending = slot;
+                slot.scheduled = true;
+                mTimer.schedule(() -> release(pending), wait, TimeUnit.NANOSECONDS);
+                return;
+            }
+            markQueued(slot);
+        }
+        queue(slot, session, topic);
+    }
+
+    private void release(Slot slot) {
+        TagSession session;
+        String topic;
+        synchronized (this) {
+            slot.scheduled = false;
+            if (!slot.fresh || slot.queued) {
+                return;
+            }
+            markQueued(slot);
+            session = slot.session;
+            topic = slot.topic;
+        }
+        queue(slot, session, topic);
+    }
+
+    private void markQueued(Slot slot) {
+        slot.queued = true;
+        if (slot.rejected) {
+            slot.rejected = false;
+            mRejected--;
+        }
+    }
+
+    private void queue(Slot slot, TagSession session, String topic) {
+        if (!mSink.publishLatest(session, topic)) {
+            synchronized (this) {
+                slot.queued = false;
+                slot.rejected = true;
+                mRejected++;
+            }
+        }
+    }
+
+    /**
+     * Queue the placeholders again that didn't fit into the queue, so the frame of a tag that
+     * stopped sending isn't stuck. Runs on the timer.
+     */
+    private void retryRejected() {
+        synchronized (this) {
+            if (mRejected == 0) {
+                return;
+            }
+            for (Slot slot : mSlots.values()) {
+                if (slot.rejected && slot.fresh && !slot.scheduled) {
+                    markQueued(slot);
+                    mRetry.add(slot);
+                }
+            }
+        }
+        for (int i = 0; i < mRetry.size(); i++) {
+            Slot slot = mRetry.get(i);
+            queue(slot, slot.session, slot.topic);
+        }
+        mRetry.clear();
+    }
+
+    /**
+     * @return true if a frame of the tag waits to be sent
+     */
+    public synchronized boolean isPending(TagSession session) {
+        Slot slot = mSlots.get(session.getServerAddr());
+        return slot != null && slot.fresh;
+    }
+
+    /**
+     * Take the latest frame of a tag whose placeholder is due. Called on the I/O thread.
+     *
+     * @return message with the frame, null if the tag has no frame to send
+     */
+    public Delivery take(TagSession session) {
+        synchronized (this) {
+            Slot slot = mSlots.get(session.getServerAddr());
+            if (slot == null) {
+                return null;
+            }
+            slot.queued = false;
+            if (!slot.fresh) {
+                return null;
+            }
+
+            Delivery delivery = mPool.acquire(slot.length);
+            System.arraycopy(slot.data, 0, delivery.getPayload(), 0, slot.length);
+            delivery.add(slot.session, slot.arrivalNanos);
+            slot.fresh = false;
+            slot.lastSent = mClock.getAsLong();
+            return delivery;
+        }
+    }
+
+    /**
+     * @return frames replaced by a newer frame of the same tag before they were sent
+     */
+    public synchronized long getReplaced() {
+        return mReplaced;
+    }
+
+    /**
+     * Stop retrying, the timer itself is shut down by the owner.
+     */
+    public void close() {
+        mRetryTask.cancel(false);
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.mqtt;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.TreeMap;
+
+/**
+ * Append-only file queue for MQTT messages that could not be sent. Messages are written to
+ * segment files of bounded size, the oldest segment is deleted when the total size exceeds the
+ * configured cap. The read position is stored next to the segments, so queued messages survive
+ * a restart of the service.
+ *
+ * <p>Record layout, all fields big-endian:</p>
+ * <pre>
+ *  size  field
+ *  4     record length N, not counting this field
+ *  2     topic length T
+ *  T     topic, UTF-8
+ *  1     QoS
+ *  1     flags, bit 0 = retained
+ *  N-T-4 payload
+ * </pre>
+ */
+public class SpoolQueue implements Closeable {
+
+    public interface RecordHandler {
+        /**
+         * @return false if the record could not be handled, it is offered again on the next drain
+         */
+        boolean onRecord(String topic, byte[] payload, int qos, boolean retained);
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CURSOR_FILE = "cursor";
+    private static final String CURSOR_TMP_FILE = "cursor.tmp";
+    private static final int MAX_RECORD_SIZE = 1 << 20;
+    private static final long MAX_SEGMENT_SIZE = 1 << 20;
+
+    private final File mDir;
+    private final long mMaxBytes;
+    private final long mSegmentSize;
+
+    // Segment number -> size in bytes, the first entry is the segment being read
+    private final TreeMap<Long, Long> mSegments = new TreeMap<>();
+    private long mTotalBytes = 0;
+
+    private long mWriteSegment;
+    private FileChannel mWriteChannel;
+    private long mWritePos;
+
+    private long mReadSegment;
+    private FileChannel mReadChannel;
+    private long mReadPos;
+
+    private final ByteBuffer mHeader = ByteBuffer.allocate(4);
+    private long mEvictedBytes = 0;
+
+    /**
+     * Open the queue stored in the given directory or create an empty one.
+     *
+     * @param dir       directory holding the segments, created if missing
+     * @param maxBytes  size cap of all segments together
+     */
+    public SpoolQueue(File dir, long maxBytes) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create spool directory " + dir);
+        }
+        mDir = dir;
+        mMaxBytes = maxBytes;
+        mSegmentSize = Math.max(4096, Math.min(MAX_SEGMENT_SIZE, maxBytes / 8));
+
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                try {
+                    long segment = Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length()));
+                    mSegments.put(segment, file.length());
+                    mTotalBytes += file.length();
+                } catch (NumberFormatException e) {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+        }
+
+        if (mSegments.isEmpty()) {
+            mSegments.put(0L, 0L);
+        }
+        mWriteSegment = mSegments.lastKey();
+        mWriteChannel = open(mWriteSegment);
+        mWritePos = recoverTail(mWriteChannel);
+        updateSegmentSize(mWriteSegment, mWritePos);
+
+        loadCursor();
+    }
+
+    /**
+     * Append a message to the end of the queue. Evicts the oldest segments if the size cap is
+     * exceeded.
+     */
+    public synchronized void append(String topic, byte[] payload, int qos, boolean retained) throws IOException {
+        byte[] topicBytes = topic.getBytes(UTF_8);
+        int length = 2 + topicBytes.length + 2 + payload.length;
+        if (topicBytes.length > 0xFFFF || length > MAX_RECORD_SIZE) {
+            throw new IOException("Message too large for spool: " + length);
+        }
+
+        if (mWritePos >= mSegmentSize) {
+            rollSegment();
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        buffer.putInt(length)
+                .putShort((short) topicBytes.length)
+                .put(topicBytes)
+                .put((byte) qos)
+                .put((byte) (retained ? 1 : 0))
+                .put(payload)
+                .flip();
+        while (buffer.hasRemaining()) {
+            mWritePos += mWriteChannel.write(buffer, mWritePos);
+        }
+        updateSegmentSize(mWriteSegment, mWritePos);
+
+        evict();
+    }
+
+    /**
+     * Hand queued messages to the handler in insertion order. Stops at the first message the
+     * handler rejects.
+     *
+     * @param handler   receives the messages
+     * @param max       maximum number of messages handled by this call
+     * @return number of messages handled
+     */
+    public synchronized int drain(RecordHandler handler, int max) throws IOException {
+        int count = 0;
+        while (count < max && !isEmpty()) {
+            if (mReadSegment != mWriteSegment && mReadPos >= mSegments.get(mReadSegment)) {
+                deleteReadSegment();
+                continue;
+            }
+
+            FileChannel channel = mReadSegment == mWriteSegment ? mWriteChannel : readChannel();
+            mHeader.clear();
+            readFully(channel, mHeader, mReadPos);
+            int length = mHeader.getInt(0);
+            if (length < 4 || length > MAX_RECORD_SIZE) {
+                // Damaged record, skip the rest of the segment
+                mReadPos = mReadSegment == mWriteSegment ? mWritePos : mSegments.get(mReadSegment);
+                continue;
+            }
+
+            ByteBuffer record = ByteBuffer.allocate(length);
+            readFully(channel, record, mReadPos + 4);
+            record.flip();
+
+            byte[] topic = new byte[record.getShort() & 0xFFFF];
+            record.get(topic);
+            int qos = record.get();
+            boolean retained = (record.get() & 1) != 0;
+            byte[] payload = Arrays.copyOfRange(record.array(), record.position(), length);
+
+            if (!handler.onRecord(new String(topic, UTF_8), payload, qos, retained)) {
+                break;
+            }
+            mReadPos += 4 + length;
+            count++;
+        }
+
+        if (count > 0) {
+            saveCursor();
+        }
+        return count;
+    }
+
+    public synchronized boolean isEmpty() {
+        return mReadSegment == mWriteSegment && mReadPos >= mWritePos;
+    }
+
+    /**
+     * @return bytes on disk, including already replayed records of the current read segment
+     */
+    public synchronized long sizeBytes() {
+        return mTotalBytes;
+    }
+
+    /**
+     * @return bytes discarded because the size cap was exceeded
+     */
+    public synchronized long evictedBytes() {
+        return mEvictedBytes;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        saveCursor();
+        mWriteChannel.force(false);
+        mWriteChannel.close();
+        if (mReadChannel != null) {
+            mReadChannel.close();
+            mReadChannel = null;
+        }
+    }
+
+    private void rollSegment() throws IOException {
+        mWriteChannel.force(false);
+        mWriteChannel.close();
+        mWriteSegment++;
+        mWriteChannel = open(mWriteSegment);
+        mWritePos = 0;
+        mSegments.put(mWriteSegment, 0L);
+    }
+
+    private void evict() throws IOException {
+        while (mTotalBytes > mMaxBytes && mReadSegment != mWriteSegment) {
+            mEvictedBytes += mSegments.get(mReadSegment) - mReadPos;
+            deleteReadSegment();
+        }
+    }
+
+    private void deleteReadSegment() throws IOException {
+        if (mReadChannel != null) {
+            mReadChannel.close();
+            mReadChannel = null;
+        }
+        mTotalBytes -= mSegments.remove(mReadSegment);
+        //noinspection ResultOfMethodCallIgnored
+        segmentFile(mReadSegment).delete();
+
+        mReadSegment = mSegments.firstKey();
+        mReadPos = 0;
+        saveCursor();
+    }
+
+    private FileChannel readChannel() throws IOException {
+        if (mReadChannel == null) {
+            mReadChannel = new RandomAccessFile(segmentFile(mReadSegment), "r").getChannel();
+        }
+        return mReadChannel;
+    }
+
+    private void updateSegmentSize(long segment, long size) {
+        Long old = mSegments.put(segment, size);
+        mTotalBytes += size - (old != null ? old : 0);
+    }
+
+    /**
+     * Drop a partially written record at the end of the segment, e.g. after a crash.
+     *
+     * @return position after the last complete record
+     */
+    private long recoverTail(FileChannel channel) throws IOException {
+        long size = channel.size();
+        long pos = 0;
+        while (pos + 4 <= size) {
+            mHeader.clear();
+            readFully(channel, mHeader, pos);
+            int length = mHeader.getInt(0);
+            if (length < 4 || length > MAX_RECORD_SIZE || pos + 4 + length > size) {
+                break;
+            }
+            pos += 4 + length;
+        }
+        if (pos < size) {
+            channel.truncate(pos);
+        }
+        return pos;
+    }
+
+    private void loadCursor() throws IOException {
+        mReadSegment = mSegments.firstKey();
+        mReadPos = 0;
+
+        File file = new File(mDir, CURSOR_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            ByteBuffer buffer = ByteBuffer.allocate(16);
+            readFully(channel, buffer, 0);
+            long segment = buffer.getLong(0);
+            long pos = buffer.getLong(8);
+            Long size = mSegments.get(segment);
+            // A cursor pointing to a deleted segment means it was evicted, start at the oldest one
+            if (size != null && pos <= size) {
+                mReadSegment = segment;
+                mReadPos = pos;
+            }
+        } catch (IOException e) {
+            // Damaged cursor, replay from the oldest segment
+        }
+
+        // Segments before the cursor have been replayed already
+        while (mSegments.firstKey() < mReadSegment) {
+            long segment = mSegments.firstKey();
+            mTotalBytes -= mSegments.remove(segment);
+            //noinspection ResultOfMethodCallIgnored
+            segmentFile(segment).delete();
+        }
+    }
+
+    private void saveCursor() throws IOException {
+        File tmp = new File(mDir, CURSOR_TMP_FILE);
+        try (RandomAccessFile file = new RandomAccessFile(tmp, "rw")) {
+            file.setLength(0);
+            file.writeLong(mReadSegment);
+            file.writeLong(mReadPos);
+        }
+        if (!tmp.renameTo(new File(mDir, CURSOR_FILE))) {
+            throw new IOException("Can't store spool cursor");
+        }
+    }
+
+    private FileChannel open(long segment) throws IOException {
+        return new RandomAccessFile(segmentFile(segment), "rw").getChannel();
+    }
+
+    private File segmentFile(long segment) {
+        return new File(mDir, String.format(Locale.ROOT, "%016d%s", segment, SEGMENT_SUFFIX));
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long pos) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, pos);
+            if (read < 0) {
+                throw new IOException("Unexpected end of spool segment");
+            }
+            pos += read;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.profile;
+
+/**
+ * Decoded content of a Ranging or Range characteristic value. Instances are meant to be reused,
+ * see {@link RangingFrameDecoder}.
+ */
+public class RangingFrame {
+
+    /** Largest number of ranges that fit into a notification with the negotiated MTU of 240 */
+    public static final int MAX_RANGES = 59;
+    /** Range value reported by the tag if no distance could be measured */
+    public static final int INVALID_RANGE = 0xFFFF;
+
+    public final int[] anchorIds = new int[MAX_RANGES];
+    public final int[] ranges = new int[MAX_RANGES];
+    public int count;
+
+    public boolean hasPosition;
+    public float x;
+    public float y;
+    public float z;
+
+    public void clear() {
+        count = 0;
+        hasPosition = false;
+        x = y = z = 0.0f;
+    }
+
+    /**
+     * @return number of ranges that carry a valid distance
+     */
+    public int validRanges() {
+        int valid = 0;
+        for (int i = 0; i < count; i++) {
+            if (ranges[i] != INVALID_RANGE) {
+                valid++;
+            }
+        }
+        return valid;
+    }
+}
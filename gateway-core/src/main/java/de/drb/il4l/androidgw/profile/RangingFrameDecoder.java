@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.profile;
+
+/**
+ * Decodes characteristic values of the ranging service into a reusable {@link RangingFrame}
+ * without allocating.
+ *
+ * <p>Range list, used by the Ranging and Range characteristics, all values little-endian
+ * uint16: {@code LiteCount, [ID, Range]}.</p>
+ *
+ * <p>Tags running position firmware send ASCII text instead: {@code x,y,z[,...]}.</p>
+ */
+public final class RangingFrameDecoder {
+
+    private RangingFrameDecoder() {
+    }
+
+    /**
+     * Decode a Ranging characteristic value. The value is read as range list, if that fails as
+     * position text.
+     *
+     * @return false if the value matches neither format
+     */
+    public static boolean decodeRanging(byte[] data, int offset, int length, RangingFrame frame) {
+        return decodeRanges(data, offset, length, frame) || decodePosition(data, offset, length, frame);
+    }
+
+    /**
+     * Decode a range list.
+     *
+     * @return false if the value is too short for the announced number of ranges
+     */
+    public static boolean decodeRanges(byte[] data, int offset, int length, RangingFrame frame) {
+        frame.clear();
+        if (data == null || length < 2 || offset + length > data.length) {
+            return false;
+        }
+
+        int count = uint16(data, offset);
+        if (count > RangingFrame.MAX_RANGES || 2 + count * 4 > length) {
+            return false;
+        }
+
+        int pos = offset + 2;
+        for (int i = 0; i < count; i++) {
+            frame.anchorIds[i] = uint16(data, pos);
+            frame.ranges[i] = uint16(data, pos + 2);
+            pos += 4;
+        }
+        frame.count = count;
+        return true;
+    }
+
+    /**
+     * Decode position text.
+     *
+     * @return false if the value doesn't start with three comma separated numbers
+     */
+    public static boolean decodePosition(byte[] data, int offset, int length, RangingFrame frame) {
+        frame.clear();
+        if (data == null || offset + length > data.length) {
+            return false;
+        }
+
+        int end = offset + length;
+        int pos = offset;
+        for (int axis = 0; axis < 3; axis++) {
+            // parse [-]digits[.digits]
+            while (pos < end && data[pos] == ' ') {
+                pos++;
+            }
+            boolean negative = pos < end && data[pos] == '-';
+            if (negative || (pos < end && data[pos] == '+')) {
+                pos++;
+            }
+
+            long mantissa = 0;
+            int scale = 0;
+            int digits = 0;
+            boolean fraction = false;
+            for (; pos < end; pos++) {
+                byte c = data[pos];
+                if (c >= '0' && c <= '9') {
+                    if (digits < 18) {
+                        mantissa = mantissa * 10 + (c - '0');
+                        digits++;
+                        if (fraction) {
+                            scale++;
+                        }
+                    } else if (!fraction) {
+                        return false;
+                    }
+                } else if (c == '.' && !fraction) {
+                    fraction = true;
+                } else {
+                    break;
+                }
+            }
+            if (digits == 0) {
+                return false;
+            }
+
+            float value = (float) (mantissa / Math.pow(10, scale));
+            if (negative) {
+                value = -value;
+            }
+            if (axis == 0) {
+                frame.x = value;
+            } else if (axis == 1) {
+                frame.y = value;
+            } else {
+                frame.z = value;
+            }
+
+            while (pos < end && data[pos] == ' ') {
+                pos++;
+            }
+            if (axis < 2) {
+                if (pos >= end || data[pos] != ',') {
+                    return false;
+                }
+                pos++;
+            }
+        }
+
+        frame.hasPosition = true;
+        return true;
+    }
+
+    private static int uint16(byte[] data, int pos) {
+        return (data[pos] & 0xFF) | ((data[pos + 1] & 0xFF) << 8);
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.junit.Test;
+
+public class ConnectionSchedulerTest {
+
+    private final ManualLoop mLoop = new ManualLoop();
+    private final RecordingTransport mTransport = new RecordingTransport();
+    private final ConnectionScheduler.Config mConfig = new ConnectionScheduler.Config();
+    private ConnectionScheduler<TagSession> mScheduler;
+
+    private ConnectionScheduler<TagSession> scheduler() {
+        mScheduler = new ConnectionScheduler<>(mTransport, mLoop, mConfig,
+                new ConnectionScheduler.Listener<TagSession>() {
+                    @Override
+                    public void onStateChanged(TagSession session) {
+                    }
+
+                    @Override
+                    public void onSessionClosed(TagSession session) {
+                    }
+                });
+        return mScheduler;
+    }
+
+    @Test
+    public void backsOffExponentiallyWithJitter() {
+        mConfig.parkAfter = 0;
+        TagSession tag = new TagSession("A", TagSession.NOT_STARTED);
+        scheduler().connect(tag);
+        assertEquals(1, mTransport.connects.size());
+
+        long backoff = mConfig.reconnectDelay;
+        for (int failure = 1; failure <= 5; failure++) {
+            long failedAt = mLoop.now;
+            mScheduler.onDisconnected("A");
+            assertEquals(TagSession.NOT_STARTED, tag.getConnectionState());
+
+            mLoop.runUntilConnects(mTransport, failure + 1);
+            long delay = mLoop.now - failedAt;
+            assertTrue("retry " + failure + " after " + delay + " ms",
+                    delay >= backoff / 2 && delay <= backoff);
+            backoff *= 2;
+        }
+    }
+
+    @Test
+    public void backoffIsCapped() {
+        mConfig.parkAfter = 0;
+        mConfig.maxReconnectDelay = 4000;
+        scheduler().connect(new TagSession("A", TagSession.NOT_STARTED));
+
+        for (int failure = 1; failure <= 10; failure++) {
+            long failedAt = mLoop.now;
+            mScheduler.onDisconnected("A");
+            mLoop.runUntilConnects(mTransport, failure + 1);
+            assertTrue(mLoop.now - failedAt <= mConfig.maxReconnectDelay);
+        }
+    }
+
+    @Test
+    public void parksAfterRepeatedFailures() {
+        mConfig.parkAfter = 3;
+        TagSession tag = new TagSession("A", TagSession.NOT_STARTED);
+        scheduler().connect(tag);
+
+        for (int failure = 1; failure < 3; failure++) {
+            mScheduler.onDisconnected("A");
+            mLoop.runUntilConnects(mTransport, failure + 1);
+        }
+        mScheduler.onDisconnected("A");
+        assertEquals(TagSession.PARKED, tag.getConnectionState());
+
+        mLoop.runFor(60 * 60 * 1000);
+        assertEquals(3, mTransport.connects.size());
+
+        // Seen advertising again, retried right away with the failures forgotten
+        mScheduler.onAdvertising("A", -70);
+        assertEquals(4, mTransport.connects.size());
+        assertEquals(0, tag.getHealth().getFailures());
+    }
+
+    @Test
+    public void successfulConnectResetsBackoff() {
+        TagSession tag = new TagSession("A", TagSession.NOT_STARTED);
+        scheduler().connect(tag);
+        mScheduler.onDisconnected("A");
+        mLoop.runUntilConnects(mTransport, 2);
+
+        mScheduler.onConnected("A");
+        mScheduler.onServicesDiscovered("A");
+        assertEquals(0, tag.getHealth().getFailures());
+
+        // A dropped connection is restored without backoff
+        mScheduler.onDisconnected("A");
+        mLoop.runFor(mConfig.connectSpacing);
+        assertEquals(3, mTransport.connects.size());
+    }
+
+    @Test
+    public void connectTimeoutBacksOff() {
+        TagSession tag = new TagSession("A", TagSession.NOT_STARTED);
+        scheduler().connect(tag);
+
+        mLoop.runFor(mConfig.connectTimeout);
+        assertEquals(1, mTransport.disconnects.size());
+        assertEquals(TagSession.NOT_STARTED, tag.getConnectionState());
+        assertEquals(1, tag.getHealth().getFailures());
+        assertEquals(0, mScheduler.getInFlight());
+
+        // The disconnect of the aborted connect doesn't trigger another attempt
+        mScheduler.onDisconnected("A");
+        assertEquals(1, mTransport.connects.size());
+        assertEquals(1, tag.getHealth().getFailures());
+
+        long timedOutAt = mLoop.now;
+        mLoop.runUntilConnects(mTransport, 2);
+        assertTrue(mLoop.now - timedOutAt >= mConfig.reconnectDelay / 2);
+        assertEquals(TagSession.CONNECTING, tag.getConnectionState());
+    }
+
+    @Test
+    public void limitsConcurrentConnects() {
+        mConfig.maxConnecting = 2;
+        scheduler();
+        for (int i = 0; i < 5; i++) {
+            mScheduler.connect(new TagSession("T" + i, TagSession.NOT_STARTED));
+        }
+        mLoop.runFor(1000);
+        assertEquals(2, mTransport.connects.size());
+        assertEquals(3, mScheduler.getQueueLength());
+
+        String first = mTransport.connects.get(0).getServerAddr();
+        mScheduler.onConnected(first);
+        mScheduler.onServicesDiscovered(first);
+        mLoop.runFor(1000);
+        assertEquals(3, mTransport.connects.size());
+    }
+
+    private static class RecordingTransport implements BleTransport<TagSession> {
+        final List<TagSession> connects = new ArrayList<>();
+        final List<TagSession> disconnects = new ArrayList<>();
+
+        @Override
+        public void connect(TagSession session) {
+            connects.add(session);
+        }
+
+        @Override
+        public void disconnect(TagSession session) {
+            disconnects.add(session);
+        }
+
+        @Override
+        public void release(TagSession session) {
+        }
+    }
+
+    /**
+     * Runs posted tasks in order of their due time on a simulated clock.
+     */
+    private static class ManualLoop implements EventLoop {
+        private final PriorityQueue<Task> mTasks = new PriorityQueue<>();
+        private long mSequence = 0;
+        long now = 1000;
+
+        @Override
+        public long uptimeMillis() {
+            return now;
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delayMillis) {
+            mTasks.add(new Task(now + delayMillis, mSequence++, task));
+        }
+
+        void runFor(long millis) {
+            long end = now + millis;
+            while (!mTasks.isEmpty() && mTasks.peek().due <= end) {
+                runNext();
+            }
+            now = end;
+        }
+
+        void runUntilConnects(RecordingTransport transport, int connects) {
+            while (transport.connects.size() < connects) {
+                if (mTasks.isEmpty()) {
+                    throw new AssertionError("no connect scheduled");
+                }
+                runNext();
+            }
+        }
+
+        private void runNext() {
+            Task task = mTasks.poll();
+            now = Math.max(now, task.due);
+            task.runnable.run();
+        }
+    }
+
+    private static class Task implements Comparable<Task> {
+        final long due;
+        final long sequence;
+        final Runnable runnable;
+
+        Task(long due, long sequence, Runnable runnable) {
+            this.due = due;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            return due != other.due ? Long.compare(due, other.due) : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.ingest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class RangingIngestTest {
+    private static final byte[] FRAME = {1, 0, 7, 0, 100, 0};
+
+    private final AtomicInteger mActive = new AtomicInteger();
+    private final AtomicInteger mMaxActive = new AtomicInteger();
+    private final AtomicInteger mHandled = new AtomicInteger();
+    private final CountDownLatch mFirstEntered = new CountDownLatch(1);
+    private final CountDownLatch mSecondHandled = new CountDownLatch(1);
+    private volatile long mFirstFrameMs;
+
+    private final RangingIngest<String> mIngest = new RangingIngest<>(this::onFrame);
+
+    @After
+    public void tearDown() {
+        mIngest.stop();
+    }
+
+    @Test
+    public void stopWaitsForWorker() throws InterruptedException {
+        mFirstFrameMs = 200;
+        mIngest.start();
+        mIngest.offer("tag", FRAME, 0);
+        assertTrue(mFirstEntered.await(5, TimeUnit.SECONDS));
+
+        mIngest.stop();
+        assertEquals(0, mActive.get());
+        assertEquals(1, mHandled.get());
+    }
+
+    @Test
+    public void restartWaitsForWorkerThatOutlivedStop() throws InterruptedException {
+        // Busy beyond the timeout of stop and deaf to the interrupt
+        mFirstFrameMs = 1500;
+        mIngest.start();
+        mIngest.offer("tag", FRAME, 0);
+        assertTrue(mFirstEntered.await(5, TimeUnit.SECONDS));
+
+        mIngest.stop();
+        mIngest.start();
+        mIngest.offer("tag", FRAME, 0);
+        assertTrue(mSecondHandled.await(5, TimeUnit.SECONDS));
+        assertEquals(1, mMaxActive.get());
+    }
+
+    private void onFrame(String tag, byte[] data, int length, long receivedAt, long arrivalNanos) {
+        int active = mActive.incrementAndGet();
+        mMaxActive.accumulateAndGet(active, Math::max);
+        if (mHandled.get() == 0) {
+            mFirstEntered.countDown();
+            long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mFirstFrameMs);
+            while (System.nanoTime() < end) {
+                Thread.yield();
+            }
+        }
+        mActive.decrementAndGet();
+        if (mHandled.incrementAndGet() == 2) {
+            mSecondHandled.countDown();
+        }
+    }
+}
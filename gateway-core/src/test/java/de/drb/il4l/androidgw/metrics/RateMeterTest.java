@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.metrics;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class RateMeterTest {
+
+    private static final long MS = 1_000_000L;
+
+    private final RateMeter mMeter = new RateMeter();
+    private long mNow = 1_000 * MS;
+
+    @Test
+    public void measuresSteadyRate() {
+        record(50, 20 * MS);
+
+        assertEquals(50f, mMeter.getRate(mNow), 0.01f);
+        assertEquals(0, mMeter.getJitter(), 1);
+        assertEquals(50, mMeter.getFrames());
+        assertEquals(0, mMeter.getGaps());
+    }
+
+    @Test
+    public void countsGapAndMissedFrames() {
+        record(20, 20 * MS);
+        // Four frames lost
+        record(1, 100 * MS);
+        record(5, 20 * MS);
+
+        assertEquals(1, mMeter.getGaps());
+        assertEquals(4, mMeter.getMissed());
+        assertEquals(50f, mMeter.getRate(mNow), 0.01f);
+    }
+
+    @Test
+    public void gapIsCountedOnceRegularIntervalFollows() {
+        record(20, 20 * MS);
+        record(1, 100 * MS);
+        assertEquals(0, mMeter.getGaps());
+
+        record(1, 20 * MS);
+        assertEquals(1, mMeter.getGaps());
+    }
+
+    @Test
+    public void followsPermanentRateDrop() {
+        record(20, 20 * MS);
+        // Tag slows down from 50 Hz to 5 Hz and stays there
+        record(50, 200 * MS);
+
+        assertEquals(0, mMeter.getGaps());
+        assertEquals(0, mMeter.getMissed());
+        assertEquals(5f, mMeter.getRate(mNow), 0.01f);
+        assertEquals(5f, mMeter.getRate(mNow + 100 * MS), 0.01f);
+    }
+
+    @Test
+    public void followsRateIncrease() {
+        record(20, 200 * MS);
+        record(100, 20 * MS);
+
+        assertEquals(50f, mMeter.getRate(mNow), 0.5f);
+        assertEquals(0, mMeter.getGaps());
+    }
+
+    @Test
+    public void decaysToZeroWhenSilent() {
+        record(20, 20 * MS);
+
+        assertEquals(0f, mMeter.getRate(mNow + 10_000 * MS), 0);
+    }
+
+    @Test
+    public void resetForgetsEverything() {
+        record(20, 20 * MS);
+        record(1, 100 * MS);
+        mMeter.reset();
+        record(10, 100 * MS);
+
+        assertEquals(10f, mMeter.getRate(mNow), 0.01f);
+        assertEquals(10, mMeter.getFrames());
+        assertEquals(0, mMeter.getGaps());
+    }
+
+    private void record(int count, long interval) {
+        for (int i = 0; i < count; i++) {
+            mNow += interval;
+            mMeter.record(mNow);
+        }
+    }
+}
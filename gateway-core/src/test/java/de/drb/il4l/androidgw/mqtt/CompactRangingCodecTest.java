@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.mqtt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import de.drb.il4l.androidgw.profile.RangingFrame;
+
+public class CompactRangingCodecTest {
+    private static final int GATEWAY = CompactRangingCodec.gatewayHash("gw-1");
+    private static final int TAG = CompactRangingCodec.tagId("C0:DE:00:12:34:56");
+    private static final long RECEIVED_AT = 1700000000000L;
+
+    private final CompactRangingCodec mCodec = new CompactRangingCodec();
+    private final CompactRangingCodec.Message mMessage = new CompactRangingCodec.Message();
+
+    @Test
+    public void roundTripsRanges() {
+        // Descending ids, the invalid range and the largest valid one
+        byte[] value = rangeList(new int[]{0x2000, 0x0001, 0xFFFF}, new int[]{0, RangingFrame.INVALID_RANGE, 0xFFFE});
+
+        decode(mCodec.encode(GATEWAY, TAG, 42, RECEIVED_AT, value, value.length));
+
+        assertEquals(CompactRangingCodec.VERSION, mMessage.version);
+        assertEquals(CompactRangingCodec.CONTENT_RANGES, mMessage.content);
+        assertEquals(GATEWAY, mMessage.gateway);
+        assertEquals(0x123456, mMessage.tag);
+        assertEquals(42, mMessage.sequence);
+        assertEquals(RECEIVED_AT, mMessage.receivedAt);
+        assertEquals(3, mMessage.frame.count);
+        assertArrayEquals(new int[]{0x2000, 0x0001, 0xFFFF}, Arrays.copyOf(mMessage.frame.anchorIds, 3));
+        assertArrayEquals(new int[]{0, RangingFrame.INVALID_RANGE, 0xFFFE}, Arrays.copyOf(mMessage.frame.ranges, 3));
+    }
+
+    @Test
+    public void roundTripsMaximumRanges() {
+        int[] ids = new int[RangingFrame.MAX_RANGES];
+        int[] ranges = new int[RangingFrame.MAX_RANGES];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = (i * 7919) & 0xFFFF;
+            ranges[i] = (i * 1237) & 0xFFFF;
+        }
+        byte[] value = rangeList(ids, ranges);
+
+        int length = mCodec.encode(GATEWAY, TAG, Long.MAX_VALUE, RECEIVED_AT, value, value.length);
+        assertTrue(length <= CompactRangingCodec.MAX_SIZE);
+        decode(length);
+
+        assertEquals(Long.MAX_VALUE, mMessage.sequence);
+        assertArrayEquals(ids, Arrays.copyOf(mMessage.frame.anchorIds, ids.length));
+        assertArrayEquals(ranges, Arrays.copyOf(mMessage.frame.ranges, ranges.length));
+    }
+
+    @Test
+    public void roundTripsPosition() {
+        byte[] value = "1.5,-2.25,3".getBytes(StandardCharsets.US_ASCII);
+
+        decode(mCodec.encode(GATEWAY, TAG, 0, RECEIVED_AT, value, value.length));
+
+        assertEquals(CompactRangingCodec.CONTENT_POSITION, mMessage.content);
+        assertTrue(mMessage.frame.hasPosition);
+        assertEquals(1.5f, mMessage.frame.x, 0);
+        assertEquals(-2.25f, mMessage.frame.y, 0);
+        assertEquals(3f, mMessage.frame.z, 0);
+    }
+
+    @Test
+    public void roundTripsRawValue() {
+        byte[] value = {1, 2, 3, 4, 5};
+
+        decode(mCodec.encode(GATEWAY, TAG, 7, RECEIVED_AT, value, value.length));
+
+        assertEquals(CompactRangingCodec.CONTENT_RAW, mMessage.content);
+        assertEquals(value.length, mMessage.rawLength);
+        assertArrayEquals(value, Arrays.copyOf(mMessage.raw, mMessage.rawLength));
+    }
+
+    @Test
+    public void rejectsTruncatedMessages() {
+        byte[] value = rangeList(new int[]{1, 2}, new int[]{100, 200});
+        int length = mCodec.encode(GATEWAY, TAG, 1, RECEIVED_AT, value, value.length);
+        byte[] message = Arrays.copyOf(mCodec.getBuffer(), length);
+
+        for (int truncated = 0; truncated < length; truncated++) {
+            assertFalse("length " + truncated, CompactRangingCodec.decode(message, 0, truncated, mMessage));
+        }
+    }
+
+    @Test
+    public void rejectsUnknownVersion() {
+        byte[] value = rangeList(new int[]{1}, new int[]{100});
+        int length = mCodec.encode(GATEWAY, TAG, 1, RECEIVED_AT, value, value.length);
+        byte[] message = Arrays.copyOf(mCodec.getBuffer(), length);
+        message[0] = 2;
+
+        assertFalse(CompactRangingCodec.decode(message, 0, length, mMessage));
+    }
+
+    @Test
+    public void sizesAsDocumented() {
+        // The sizes listed in the README, anchors as in the wire format benchmark
+        assertEquals(30, compactSize(4));
+        assertEquals(66, compactSize(16));
+        assertEquals(195, compactSize(59));
+    }
+
+    @Test
+    public void tagIdOfMalformedAddressIsZero() {
+        assertEquals(0, CompactRangingCodec.tagId("C0:DE:00:12:34"));
+        assertEquals(0, CompactRangingCodec.tagId("C0:DE:00:12:34:XY"));
+    }
+
+    private int compactSize(int anchors) {
+        int[] ids = new int[anchors];
+        int[] ranges = new int[anchors];
+        for (int i = 0; i < anchors; i++) {
+            ids[i] = 0x1000 + i;
+            ranges[i] = 250 + i * 17;
+        }
+        byte[] value = rangeList(ids, ranges);
+        return mCodec.encode(CompactRangingCodec.gatewayHash("benchmark"),
+                CompactRangingCodec.tagId("C0:DE:00:12:34:56"), 0, RECEIVED_AT, value, value.length);
+    }
+
+    private void decode(int length) {
+        // At an offset, so the decoder can't rely on starting at 0
+        byte[] data = new byte[length + 3];
+        System.arraycopy(mCodec.getBuffer(), 0, data, 3, length);
+        assertTrue(CompactRangingCodec.decode(data, 3, length, mMessage));
+    }
+
+    private static byte[] rangeList(int[] ids, int[] ranges) {
+        byte[] value = new byte[2 + ids.length * 4];
+        value[0] = (byte) ids.length;
+        for (int i = 0; i < ids.length; i++) {
+            value[2 + i * 4] = (byte) ids[i];
+            value[3 + i * 4] = (byte) (ids[i] >> 8);
+            value[4 + i * 4] = (byte) ranges[i];
+            value[5 + i * 4] = (byte) (ranges[i] >> 8);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.mqtt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import de.drb.il4l.androidgw.core.TagSession;
+
+public class OutboundQueueTest {
+
+    private final OutboundQueue mQueue = new OutboundQueue(4);
+    private final OutboundQueue.Message mMessage = new OutboundQueue.Message();
+    private final TagSession mTagA = new TagSession("A", TagSession.DISCOVERED);
+    private final TagSession mTagB = new TagSession("B", TagSession.DISCOVERED);
+
+    @Test
+    public void roundsCapacityUp() {
+        assertEquals(8, new OutboundQueue(5).capacity());
+        assertEquals(4, mQueue.capacity());
+    }
+
+    @Test
+    public void pollsInOrder() {
+        frame(mTagA, "a1");
+        other("presence");
+        frame(mTagB, "b1");
+
+        assertPolled("a1");
+        assertPolled("presence");
+        assertPolled("b1");
+        assertFalse(mQueue.poll(mMessage));
+        assertEquals(3, mQueue.accepted());
+        assertEquals(3, mQueue.highWatermark());
+    }
+
+    @Test
+    public void fullQueueRejectsWithoutDropOldest() {
+        fill();
+
+        assertFalse(mQueue.offer(MessageClass.RANGING, "a5", new byte[1], null, mTagA, 0, false));
+        assertEquals(0, mQueue.evicted());
+        assertEquals(4, mQueue.depth());
+    }
+
+    @Test
+    public void dropsOldestFrameOfSameTag() {
+        frame(mTagA, "a1");
+        frame(mTagB, "b1");
+        frame(mTagB, "b2");
+        frame(mTagA, "a2");
+
+        assertTrue(offer(mTagB, "b3"));
+        assertEquals(1, mQueue.evicted());
+
+        assertPolled("a1");
+        assertPolled("b2");
+        assertPolled("a2");
+        assertPolled("b3");
+    }
+
+    @Test
+    public void dropsOldestFrameOfAnyTagIfTagHasNone() {
+        frame(mTagA, "a1");
+        frame(mTagA, "a2");
+        other("presence");
+        frame(mTagA, "a3");
+
+        assertTrue(offer(mTagB, "b1"));
+        assertTrue(mQueue.offer(MessageClass.PRESENCE, "p2", new byte[1], null, null, 0, true));
+
+        assertPolled("presence");
+        assertPolled("a3");
+        assertPolled("b1");
+        assertPolled("p2");
+    }
+
+    @Test
+    public void keepsOtherMessagesAndPlaceholders() {
+        other("p1");
+        other("p2");
+        mQueue.offer(MessageClass.RANGING, "placeholder-a", null, null, mTagA, 0, false);
+        other("p3");
+
+        assertFalse(offer(mTagA, "a1"));
+        assertFalse(offer(mTagB, "b1"));
+        assertEquals(0, mQueue.evicted());
+
+        assertPolled("p1");
+        assertPolled("p2");
+        assertPolled("placeholder-a");
+        assertNull(mMessage.payload);
+        assertSame(mTagA, mMessage.session);
+    }
+
+    @Test
+    public void dropsBatchEnvelopes() {
+        mQueue.offer(MessageClass.RANGING, "batch1", new byte[1], null, null, 0, false);
+        other("p1");
+        other("p2");
+        other("p3");
+
+        assertTrue(offer(mTagA, "a1"));
+
+        assertPolled("p1");
+        assertPolled("p2");
+        assertPolled("p3");
+        assertPolled("a1");
+    }
+
+    @Test
+    public void recyclesDroppedDelivery() {
+        MessagePool pool = new MessagePool(16, 4);
+        Delivery delivery = pool.acquire(1);
+        mQueue.offer(MessageClass.RANGING, "a1", delivery.getPayload(), delivery, mTagA, 0, false);
+        frame(mTagA, "a2");
+        frame(mTagA, "a3");
+        frame(mTagA, "a4");
+
+        assertTrue(offer(mTagA, "a5"));
+        assertSame(delivery, pool.acquire(1));
+    }
+
+    @Test
+    public void staysConsistentUnderSustainedOverflow() {
+        TagSession[] tags = {mTagA, mTagB, new TagSession("C", TagSession.DISCOVERED)};
+        int[] next = new int[tags.length];
+        int[] lastPolled = {-1, -1, -1};
+
+        for (int i = 0; i < 10_000; i++) {
+            int tag = i % tags.length;
+            assertTrue(offer(tags[tag], tags[tag].getServerAddr() + (next[tag]++)));
+            if (i % 3 == 0) {
+                assertTrue(mQueue.poll(mMessage));
+                // Frames of a tag stay in order
+                int polled = tagIndex(tags, mMessage.session);
+                int sequence = Integer.parseInt(mMessage.topic.substring(1));
+                assertTrue(sequence > lastPolled[polled]);
+                lastPolled[polled] = sequence;
+            }
+            assertTrue(mQueue.depth() <= mQueue.capacity());
+        }
+        assertEquals(10_000 - mQueue.depth() - 3334, mQueue.evicted());
+    }
+
+    private static int tagIndex(TagSession[] tags, TagSession session) {
+        for (int i = 0; i < tags.length; i++) {
+            if (tags[i] == session) {
+                return i;
+            }
+        }
+        throw new AssertionError("unknown tag");
+    }
+
+    private void fill() {
+        for (int i = 1; i <= mQueue.capacity(); i++) {
+            frame(mTagA, "a" + i);
+        }
+    }
+
+    private void frame(TagSession session, String topic) {
+        assertTrue(mQueue.offer(MessageClass.RANGING, topic, new byte[1], null, session, 0, false));
+    }
+
+    private void other(String topic) {
+        assertTrue(mQueue.offer(MessageClass.PRESENCE, topic, new byte[1], null, null, 0, false));
+    }
+
+    private boolean offer(TagSession session, String topic) {
+        return mQueue.offer(MessageClass.RANGING, topic, new byte[1], null, session, 0, true);
+    }
+
+    private void assertPolled(String topic) {
+        assertTrue(mQueue.poll(mMessage));
+        assertEquals(topic, mMessage.topic);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.mqtt;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.drb.il4l.androidgw.core.TagSession;
+
+/**
+ * Once warm, publishing a ranging frame and sending it on the I/O thread must not allocate.
+ */
+public class PublishPipelineAllocationTest {
+    private static final int WARMUP = 50_000;
+    private static final int FRAMES = 20_000;
+    // Smallest object on a 64 bit JVM
+    private static final long MIN_ALLOCATION = 16;
+
+    private final AckingTransport mTransport = new AckingTransport();
+    private final TagSession mSession = new TagSession("C4:7C:8D:6A:3E:01", TagSession.CONNECTED);
+    private final byte[] mFrame = new byte[2 + 8 * 4];
+    private com.sun.management.ThreadMXBean mThreads;
+    private PublishPipeline mPipeline;
+
+    @Before
+    public void setUp() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        mThreads = (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(mThreads.isThreadAllocatedMemorySupported());
+        mThreads.setThreadAllocatedMemoryEnabled(true);
+
+        mFrame[0] = 8;
+    }
+
+    @After
+    public void tearDown() {
+        if (mPipeline != null) {
+            mPipeline.close();
+        }
+    }
+
+    @Test
+    public void rangingFrameDoesNotAllocate() {
+        assertNoAllocation(new PublishPipeline.Config());
+    }
+
+    @Test
+    public void compactRangingFrameDoesNotAllocate() {
+        PublishPipeline.Config config = new PublishPipeline.Config();
+        config.compact = true;
+        assertNoAllocation(config);
+    }
+
+    private void assertNoAllocation(PublishPipeline.Config config) {
+        config.useTagName = false;
+        mPipeline = new PublishPipeline(mTransport, config);
+        mPipeline.start();
+
+        publish(WARMUP);
+        long ioThread = mTransport.mThread;
+        long before = mThreads.getThreadAllocatedBytes(Thread.currentThread().getId())
+                + mThreads.getThreadAllocatedBytes(ioThread);
+        publish(FRAMES);
+        long after = mThreads.getThreadAllocatedBytes(Thread.currentThread().getId())
+                + mThreads.getThreadAllocatedBytes(ioThread);
+
+        long allocated = after - before;
+        assertTrue(allocated + " bytes allocated for " + FRAMES + " frames",
+                allocated < FRAMES * MIN_ALLOCATION);
+    }
+
+    /**
+     * Publish frames one by one, each is acknowledged before the next one, so the outbound queue
+     * never overflows.
+     */
+    private void publish(int frames) {
+        for (int i = 0; i < frames; i++) {
+            long sent = mTransport.mPublished.get();
+            assertTrue(mPipeline.publishRanging(mSession, mFrame, mFrame.length, 0L, 0L));
+            while (mTransport.mPublished.get() == sent) {
+                Thread.yield();
+            }
+        }
+    }
+
+    private static final class AckingTransport implements MqttTransport {
+        private volatile Callback mCallback;
+        final AtomicLong mPublished = new AtomicLong();
+        volatile long mThread;
+
+        @Override
+        public void setCallback(Callback callback) {
+            mCallback = callback;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public void publish(String topic, byte[] payload, int qos, boolean retained, Delivery delivery) {
+            mThread = Thread.currentThread().getId();
+            mCallback.deliveryComplete(delivery);
+            mPublished.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.mqtt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PublishPipelineReplayTest {
+    private static final String TOPIC = "POS/tag";
+    private static final String PRESENCE_TOPIC = "PRESENCE/tag";
+    private static final int BACKLOG = 100;
+    private static final int LIVE = 100;
+    private static final long TIMEOUT = 10_000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final RecordingTransport mTransport = new RecordingTransport();
+    private PublishPipeline mPipeline;
+
+    @Before
+    public void setUp() throws IOException {
+        PublishPipeline.Config config = new PublishPipeline.Config();
+        config.spoolDir = mFolder.newFolder("spool");
+        config.qosPolicy.set(MessageClass.PRESENCE, 1, true);
+        mPipeline = new PublishPipeline(mTransport, config);
+        mPipeline.start();
+    }
+
+    @After
+    public void tearDown() {
+        mPipeline.close();
+    }
+
+    @Test
+    public void liveFramesDontWaitForBacklog() throws InterruptedException {
+        // More than one replay slice
+        for (int i = 0; i < BACKLOG; i++) {
+            assertTrue(mPipeline.publish(MessageClass.RANGING, TOPIC, frame(i)));
+        }
+        awaitSpooled(BACKLOG * record(TOPIC, 4));
+
+        mTransport.reconnect();
+        for (int i = 0; i < LIVE; i++) {
+            assertTrue(mPipeline.publish(MessageClass.RANGING, TOPIC, frame(BACKLOG + i)));
+            Thread.sleep(2);
+        }
+        awaitPublished(BACKLOG + LIVE);
+
+        List<Integer> sequence = mTransport.sequence(TOPIC);
+        assertEquals(BACKLOG + LIVE, sequence.size());
+        // Backlog and live frames each in their order, all of both arrived
+        assertInOrder(sequence, 0, BACKLOG);
+        assertInOrder(sequence, BACKLOG, LIVE);
+        // The first live frame went out before the backlog was replayed
+        assertTrue(sequence.indexOf(BACKLOG) < sequence.indexOf(BACKLOG - 1));
+    }
+
+    @Test
+    public void newerRetainedMessageIsNotReplaced() throws InterruptedException {
+        for (int i = 0; i < BACKLOG; i++) {
+            assertTrue(mPipeline.publish(MessageClass.RANGING, TOPIC, frame(i)));
+        }
+        assertTrue(mPipeline.publish(MessageClass.PRESENCE, PRESENCE_TOPIC, ascii("OFFLINE")));
+        awaitSpooled(BACKLOG * record(TOPIC, 4) + record(PRESENCE_TOPIC, 7));
+
+        mTransport.reconnect();
+        assertTrue(mPipeline.publish(MessageClass.PRESENCE, PRESENCE_TOPIC, ascii("ONLINE")));
+        awaitPublished(BACKLOG + 1);
+        // The replay ends with the skipped presence event
+        Thread.sleep(500);
+
+        assertEquals(BACKLOG + 1, mTransport.count());
+        assertEquals("ONLINE", mTransport.lastRetained(PRESENCE_TOPIC));
+    }
+
+    private void awaitSpooled(long bytes) throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while (mPipeline.getSpoolSize() < bytes && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(bytes, mPipeline.getSpoolSize());
+    }
+
+    private void awaitPublished(int count) throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while (mTransport.count() < count && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, mTransport.count());
+    }
+
+    private static void assertInOrder(List<Integer> sequence, int first, int count) {
+        int next = first;
+        for (int value : sequence) {
+            if (value >= first && value < first + count) {
+                assertEquals(next++, value);
+            }
+        }
+    }
+
+    private static int record(String topic, int payloadLength) {
+        return 4 + 2 + topic.length() + 2 + payloadLength;
+    }
+
+    private static byte[] frame(int sequence) {
+        return ByteBuffer.allocate(4).putInt(sequence).array();
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Acknowledges every message right away and keeps them in the order they were published.
+     */
+    private static final class RecordingTransport implements MqttTransport {
+        private volatile Callback mCallback;
+        private volatile boolean mConnected = false;
+        private final List<String> mTopics = new ArrayList<>();
+        private final List<byte[]> mPayloads = new ArrayList<>();
+        private final List<Boolean> mRetained = new ArrayList<>();
+
+        void reconnect() {
+            mConnected = true;
+            mCallback.connectComplete(true);
+        }
+
+        synchronized int count() {
+            return mTopics.size();
+        }
+
+        synchronized List<Integer> sequence(String topic) {
+            List<Integer> sequence = new ArrayList<>();
+            for (int i = 0; i < mTopics.size(); i++) {
+                if (mTopics.get(i).equals(topic)) {
+                    sequence.add(ByteBuffer.wrap(mPayloads.get(i)).getInt());
+                }
+            }
+            return sequence;
+        }
+
+        synchronized String lastRetained(String topic) {
+            String last = null;
+            for (int i = 0; i < mTopics.size(); i++) {
+                if (mTopics.get(i).equals(topic) && mRetained.get(i)) {
+                    last = new String(mPayloads.get(i), StandardCharsets.US_ASCII);
+                }
+            }
+            return last;
+        }
+
+        @Override
+        public void setCallback(Callback callback) {
+            mCallback = callback;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return mConnected;
+        }
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public void publish(String topic, byte[] payload, int qos, boolean retained, Delivery delivery) {
+            synchronized (this) {
+                mTopics.add(topic);
+                mPayloads.add(payload);
+                mRetained.add(retained);
+            }
+            mCallback.deliveryComplete(delivery);
+        }
+    }
+}
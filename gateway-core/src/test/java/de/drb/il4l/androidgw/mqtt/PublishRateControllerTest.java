@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.mqtt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PublishRateControllerTest {
+    private static final long MS = 1_000_000L;
+    private static final long SECOND = 1000 * MS;
+
+    private long mNow = 1000 * SECOND;
+
+    @Test
+    public void windowClosesAtMaxInFlight() {
+        PublishRateController controller = new PublishRateController(2, 0, false, 0);
+
+        controller.onPublished(mNow);
+        assertTrue(controller.isWindowOpen());
+        controller.onPublished(mNow);
+        assertFalse(controller.isWindowOpen());
+
+        controller.onAcknowledged(mNow);
+        assertTrue(controller.isWindowOpen());
+        assertEquals(1, controller.getInFlight());
+    }
+
+    @Test
+    public void rejectedMessagesLeaveTheWindow() {
+        PublishRateController controller = new PublishRateController(2, 0, false, 0);
+        controller.onPublished(mNow);
+        controller.onPublished(mNow);
+
+        controller.onRejected();
+        controller.onRejected();
+        controller.onRejected();
+        assertEquals(0, controller.getInFlight());
+    }
+
+    @Test
+    public void connectionLossEmptiesTheWindow() throws InterruptedException {
+        PublishRateController controller = new PublishRateController(2, 0, false, 0);
+        controller.onPublished(mNow);
+        controller.onPublished(mNow);
+
+        controller.onConnectionLost(mNow);
+        assertEquals(0, controller.getInFlight());
+        assertTrue(controller.isWindowOpen());
+        // Doesn't block
+        controller.awaitWindow(60_000, mNow);
+    }
+
+    @Test
+    public void stalledWindowIsReopened() throws InterruptedException {
+        PublishRateController controller = new PublishRateController(1, 0, false, 0);
+        controller.onPublished(mNow);
+
+        long start = System.nanoTime();
+        controller.awaitWindow(10, mNow + SECOND);
+        assertTrue(System.nanoTime() - start >= 10 * MS);
+        assertFalse(controller.isWindowOpen());
+
+        controller.awaitWindow(60_000, mNow + 11 * SECOND);
+        assertTrue(controller.isWindowOpen());
+    }
+
+    @Test
+    public void smoothsRoundTripTime() {
+        PublishRateController controller = new PublishRateController(10, 0, false, 0);
+        deliver(controller, 80 * MS, 100 * MS);
+        assertEquals(80 * MS, controller.getRtt(), 1);
+
+        deliver(controller, 160 * MS, 100 * MS);
+        assertEquals(90 * MS, controller.getRtt(), 1);
+    }
+
+    @Test
+    public void withoutTargetNothingIsAdapted() {
+        PublishRateController controller = new PublishRateController(10, 0, false, 0);
+        deliver(controller, 10 * MS, 10 * SECOND);
+
+        assertFalse(controller.update(mNow));
+        assertEquals(0, controller.getRateLimit(), 0);
+    }
+
+    @Test
+    public void conflatesAndHalvesRateAboveTarget() {
+        PublishRateController controller = new PublishRateController(10, 100, false, 0);
+        tagRate(controller, 20);
+
+        deliver(controller, 10 * MS, 300 * MS);
+        assertTrue(controller.update(mNow));
+        assertEquals(10, controller.getRateLimit(), 0.5f);
+
+        mNow += SECOND;
+        deliver(controller, 10 * MS, 300 * MS);
+        assertTrue(controller.update(mNow));
+        assertEquals(5, controller.getRateLimit(), 0.5f);
+        assertEquals(2, controller.getDecreases());
+    }
+
+    @Test
+    public void waitsAtLeastOneIntervalBetweenDecisions() {
+        PublishRateController controller = new PublishRateController(10, 100, false, 0);
+        tagRate(controller, 20);
+        deliver(controller, 10 * MS, 300 * MS);
+        assertTrue(controller.update(mNow));
+
+        mNow += 100 * MS;
+        deliver(controller, 10 * MS, 300 * MS);
+        assertFalse(controller.update(mNow));
+    }
+
+    @Test
+    public void framesFromBeforeTheDecisionDontCount() {
+        PublishRateController controller = new PublishRateController(10, 100, false, 0);
+        tagRate(controller, 20);
+        deliver(controller, 10 * MS, 300 * MS);
+        assertTrue(controller.update(mNow));
+
+        // Arrived before the decrease, its latency doesn't show its effect
+        mNow += SECOND;
+        deliver(controller, 10 * MS, 2 * SECOND);
+        assertFalse(controller.update(mNow));
+        assertEquals(1, controller.getDecreases());
+    }
+
+    @Test
+    public void raisesRateAndStopsConflatingBelowTarget() {
+        PublishRateController controller = new PublishRateController(10, 100, false, 0);
+        tagRate(controller, 20);
+        deliver(controller, 10 * MS, 300 * MS);
+        controller.update(mNow);
+        assertEquals(10, controller.getRateLimit(), 0.5f);
+
+        // Steps of an eighth of the tag rate up to the tag rate, then conflation ends
+        for (int i = 0; i < 10 && controller.getRateLimit() > 0; i++) {
+            mNow += SECOND;
+            deliver(controller, 10 * MS, 20 * MS);
+            assertTrue(controller.update(mNow));
+        }
+        assertEquals(0, controller.getRateLimit(), 0);
+        assertTrue(controller.getIncreases() >= 2);
+    }
+
+    @Test
+    public void scalesBatchesBeforeConflating() {
+        PublishRateController controller = new PublishRateController(10, 100, true, 0);
+        tagRate(controller, 20);
+
+        for (int scale = 2; scale <= 8; scale *= 2) {
+            deliver(controller, 10 * MS, 300 * MS);
+            assertTrue(controller.update(mNow));
+            assertEquals(scale, controller.getBatchScale());
+            assertEquals(0, controller.getRateLimit(), 0);
+            mNow += SECOND;
+        }
+
+        deliver(controller, 10 * MS, 300 * MS);
+        assertTrue(controller.update(mNow));
+        assertEquals(8, controller.getBatchScale());
+        assertTrue(controller.getRateLimit() > 0);
+    }
+
+    @Test
+    public void rateLimitStopsAtMinimum() {
+        PublishRateController controller = new PublishRateController(10, 100, false, 0);
+        tagRate(controller, 20);
+
+        for (int i = 0; i < 10; i++) {
+            deliver(controller, 10 * MS, 300 * MS);
+            controller.update(mNow);
+            mNow += SECOND;
+        }
+        assertEquals(PublishRateController.MIN_RATE, controller.getRateLimit(), 0);
+
+        deliver(controller, 10 * MS, 300 * MS);
+        assertFalse(controller.update(mNow));
+    }
+
+    @Test
+    public void stuckMessagesCountAsCongestion() {
+        PublishRateController controller = new PublishRateController(10, 100, false, 0);
+        tagRate(controller, 20);
+        controller.onPublished(mNow);
+
+        mNow += 200 * MS;
+        assertTrue(controller.update(mNow));
+        assertTrue(controller.getRateLimit() > 0);
+    }
+
+    @Test
+    public void lostConnectionIsNoCongestion() {
+        PublishRateController controller = new PublishRateController(10, 100, false, 0);
+        tagRate(controller, 20);
+        controller.onPublished(mNow);
+        controller.onConnectionLost(mNow);
+
+        mNow += 200 * MS;
+        assertFalse(controller.update(mNow));
+        assertEquals(0, controller.getRateLimit(), 0);
+    }
+
+    private void deliver(PublishRateController controller, long rtt, long latency) {
+        controller.onPublished(mNow - rtt);
+        controller.onDelivered(rtt, latency, mNow);
+    }
+
+    private static void tagRate(PublishRateController controller, float rate) {
+        for (int i = 0; i < 1000; i++) {
+            controller.onFrame(rate);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.mqtt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Test;
+
+import de.drb.il4l.androidgw.core.TagSession;
+
+public class RangingConflatorTest {
+
+    private final ScheduledExecutorService mTimer = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicLong mNow = new AtomicLong(0);
+    private final AtomicBoolean mQueueFull = new AtomicBoolean();
+    private final Semaphore mQueued = new Semaphore(0);
+    private final TagSession mTag = new TagSession("A", TagSession.DISCOVERED);
+    private RangingConflator mConflator;
+
+    @After
+    public void tearDown() {
+        if (mConflator != null) {
+            mConflator.close();
+        }
+        mTimer.shutdownNow();
+    }
+
+    private RangingConflator conflator(float maxRate) {
+        mConflator = new RangingConflator((session, topic) -> {
+            if (mQueueFull.get()) {
+                return false;
+            }
+            mQueued.release();
+            return true;
+        }, new MessagePool(16, 4), maxRate, 16, mNow::get, mTimer);
+        return mConflator;
+    }
+
+    @Test
+    public void sendsOnlyLatestFrame() {
+        conflator(5);
+        mConflator.offer(mTag, "t", new byte[]{1}, 1, 10);
+        mConflator.offer(mTag, "t", new byte[]{2}, 1, 20);
+        mConflator.offer(mTag, "t", new byte[]{3}, 1, 30);
+
+        assertEquals(1, mQueued.availablePermits());
+        assertEquals(2, mConflator.getReplaced());
+        Delivery delivery = mConflator.take(mTag);
+        assertEquals(3, delivery.getPayload()[0]);
+        assertFalse(mConflator.isPending(mTag));
+        assertNull(mConflator.take(mTag));
+    }
+
+    @Test
+    public void limitsRatePerTag() throws InterruptedException {
+        conflator(5);
+        mConflator.offer(mTag, "t", new byte[]{1}, 1, 0);
+        assertNotNull(mConflator.take(mTag));
+
+        // Within 200 ms of the last send the frame waits for the timer
+        mConflator.offer(mTag, "t", new byte[]{2}, 1, 0);
+        assertEquals(1, mQueued.availablePermits());
+        assertTrue(mConflator.isPending(mTag));
+        assertTrue(mQueued.tryAcquire(2, 1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void retriesRejectedPlaceholderOfSilentTag() throws InterruptedException {
+        conflator(5);
+        mQueueFull.set(true);
+        mConflator.offer(mTag, "t", new byte[]{1}, 1, 0);
+        assertTrue(mConflator.isPending(mTag));
+
+        // No further frame arrives, the timer queues the placeholder once there is room
+        mQueueFull.set(false);
+        assertTrue(mQueued.tryAcquire(1, TimeUnit.SECONDS));
+        assertEquals(1, mConflator.take(mTag).getPayload()[0]);
+
+        // Nothing left to retry
+        Thread.sleep(300);
+        assertEquals(0, mQueued.availablePermits());
+    }
+
+    @Test
+    public void nextFrameQueuesRejectedPlaceholder() {
+        conflator(5);
+        mQueueFull.set(true);
+        mConflator.offer(mTag, "t", new byte[]{1}, 1, 0);
+        mQueueFull.set(false);
+        mConflator.offer(mTag, "t", new byte[]{2}, 1, 0);
+
+        assertEquals(1, mQueued.availablePermits());
+        assertEquals(2, mConflator.take(mTag).getPayload()[0]);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.mqtt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SpoolQueueTest {
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final List<String> mReceived = new ArrayList<>();
+
+    @Test
+    public void replaysInInsertionOrder() throws IOException {
+        try (SpoolQueue queue = new SpoolQueue(mFolder.getRoot(), 1 << 20)) {
+            queue.append("tags/a", payload("1"), 1, false);
+            queue.append("tags/b", payload("2"), 0, true);
+
+            assertEquals(2, queue.drain(this::record, 10));
+            assertEquals("tags/a:1:1:false", mReceived.get(0));
+            assertEquals("tags/b:2:0:true", mReceived.get(1));
+            assertTrue(queue.isEmpty());
+        }
+    }
+
+    @Test
+    public void drainsAtMostMax() throws IOException {
+        try (SpoolQueue queue = new SpoolQueue(mFolder.getRoot(), 1 << 20)) {
+            for (int i = 0; i < 5; i++) {
+                queue.append("t", payload(Integer.toString(i)), 0, false);
+            }
+
+            assertEquals(2, queue.drain(this::record, 2));
+            assertEquals(3, queue.drain(this::record, 10));
+            assertEquals(5, mReceived.size());
+            assertEquals("t:4:0:false", mReceived.get(4));
+        }
+    }
+
+    @Test
+    public void rejectedRecordIsOfferedAgain() throws IOException {
+        try (SpoolQueue queue = new SpoolQueue(mFolder.getRoot(), 1 << 20)) {
+            queue.append("t", payload("1"), 0, false);
+            queue.append("t", payload("2"), 0, false);
+
+            assertEquals(0, queue.drain((topic, payload, qos, retained) -> false, 10));
+            assertFalse(queue.isEmpty());
+
+            assertEquals(2, queue.drain(this::record, 10));
+            assertEquals("t:1:0:false", mReceived.get(0));
+        }
+    }
+
+    @Test
+    public void resumesAfterReopen() throws IOException {
+        try (SpoolQueue queue = new SpoolQueue(mFolder.getRoot(), 1 << 20)) {
+            for (int i = 0; i < 3; i++) {
+                queue.append("t", payload(Integer.toString(i)), 0, false);
+            }
+            assertEquals(1, queue.drain(this::record, 1));
+        }
+
+        try (SpoolQueue queue = new SpoolQueue(mFolder.getRoot(), 1 << 20)) {
+            assertEquals(2, queue.drain(this::record, 10));
+        }
+        assertEquals("t:0:0:false", mReceived.get(0));
+        assertEquals("t:1:0:false", mReceived.get(1));
+        assertEquals("t:2:0:false", mReceived.get(2));
+    }
+
+    @Test
+    public void dropsPartialRecordAfterCrash() throws IOException {
+        try (SpoolQueue queue = new SpoolQueue(mFolder.getRoot(), 1 << 20)) {
+            queue.append("t", payload("1"), 0, false);
+        }
+        File[] segments = mFolder.getRoot().listFiles((dir, name) -> name.endsWith(".seg"));
+        assertEquals(1, segments.length);
+        try (RandomAccessFile file = new RandomAccessFile(segments[0], "rw")) {
+            // Record header announcing more bytes than were written
+            file.seek(file.length());
+            file.writeInt(100);
+            file.writeShort(1);
+        }
+
+        try (SpoolQueue queue = new SpoolQueue(mFolder.getRoot(), 1 << 20)) {
+            queue.append("t", payload("2"), 0, false);
+            assertEquals(2, queue.drain(this::record, 10));
+        }
+        assertEquals("t:2:0:false", mReceived.get(1));
+    }
+
+    @Test
+    public void evictsOldestSegmentsAboveCap() throws IOException {
+        byte[] data = new byte[1000];
+        try (SpoolQueue queue = new SpoolQueue(mFolder.getRoot(), 16 * 1024)) {
+            for (int i = 0; i < 100; i++) {
+                data[0] = (byte) i;
+                queue.append("t", data, 0, false);
+            }
+
+            assertTrue(queue.sizeBytes() <= 16 * 1024 + 4096);
+            assertTrue(queue.evictedBytes() > 0);
+
+            List<byte[]> replayed = new ArrayList<>();
+            queue.drain((topic, payload, qos, retained) -> replayed.add(payload), 1000);
+            assertTrue(replayed.size() < 100);
+            // The newest records are kept
+            assertEquals(99, replayed.get(replayed.size() - 1)[0]);
+            assertArrayEquals(new byte[999], Arrays.copyOfRange(replayed.get(0), 1, 1000));
+        }
+    }
+
+    private boolean record(String topic, byte[] payload, int qos, boolean retained) {
+        mReceived.add(topic + ":" + new String(payload, StandardCharsets.UTF_8) + ":" + qos + ":" + retained);
+        return true;
+    }
+
+    private static byte[] payload(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.profile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class RangingFrameDecoderTest {
+
+    private final RangingFrame mFrame = new RangingFrame();
+
+    @Test
+    public void decodesRangeList() {
+        byte[] value = rangeList(3, 0x0102, 1500, 0x0203, RangingFrame.INVALID_RANGE, 0x0304, 42);
+
+        assertTrue(RangingFrameDecoder.decodeRanging(value, 0, value.length, mFrame));
+        assertEquals(3, mFrame.count);
+        assertArrayEquals(new int[]{0x0102, 0x0203, 0x0304}, Arrays.copyOf(mFrame.anchorIds, 3));
+        assertArrayEquals(new int[]{1500, RangingFrame.INVALID_RANGE, 42}, Arrays.copyOf(mFrame.ranges, 3));
+        assertEquals(2, mFrame.validRanges());
+        assertFalse(mFrame.hasPosition);
+    }
+
+    @Test
+    public void decodesPositionText() {
+        byte[] value = ascii("1.25, -2.5,+0.75");
+
+        assertTrue(RangingFrameDecoder.decodeRanging(value, 0, value.length, mFrame));
+        assertTrue(mFrame.hasPosition);
+        assertEquals(0, mFrame.count);
+        assertEquals(1.25f, mFrame.x, 0);
+        assertEquals(-2.5f, mFrame.y, 0);
+        assertEquals(0.75f, mFrame.z, 0);
+    }
+
+    @Test
+    public void positionMayCarryMoreFields() {
+        byte[] value = ascii("10,20,30,95");
+
+        assertTrue(RangingFrameDecoder.decodePosition(value, 0, value.length, mFrame));
+        assertEquals(10f, mFrame.x, 0);
+        assertEquals(20f, mFrame.y, 0);
+        assertEquals(30f, mFrame.z, 0);
+    }
+
+    @Test
+    public void rangeListFollowedByPosition() {
+        byte[] ranges = rangeList(1, 7, 900);
+        byte[] text = ascii("1,2,3");
+        byte[] value = Arrays.copyOf(ranges, ranges.length + text.length);
+        System.arraycopy(text, 0, value, ranges.length, text.length);
+
+        // The range list wins, bytes after it are ignored
+        assertTrue(RangingFrameDecoder.decodeRanging(value, 0, value.length, mFrame));
+        assertEquals(1, mFrame.count);
+        assertEquals(900, mFrame.ranges[0]);
+        assertFalse(mFrame.hasPosition);
+
+        assertTrue(RangingFrameDecoder.decodePosition(value, ranges.length, text.length, mFrame));
+        assertEquals(3f, mFrame.z, 0);
+    }
+
+    @Test
+    public void decodesAtOffset() {
+        byte[] ranges = rangeList(1, 7, 900);
+        byte[] value = new byte[ranges.length + 4];
+        System.arraycopy(ranges, 0, value, 4, ranges.length);
+
+        assertTrue(RangingFrameDecoder.decodeRanges(value, 4, ranges.length, mFrame));
+        assertEquals(7, mFrame.anchorIds[0]);
+    }
+
+    @Test
+    public void rejectsTruncatedRangeList() {
+        byte[] value = rangeList(2, 1, 100, 2, 200);
+        int truncated = value.length - 1;
+
+        assertFalse(RangingFrameDecoder.decodeRanges(value, 0, truncated, mFrame));
+        assertFalse(RangingFrameDecoder.decodeRanging(value, 0, truncated, mFrame));
+        assertEquals(0, mFrame.count);
+    }
+
+    @Test
+    public void rejectsLengthBeyondBuffer() {
+        byte[] value = rangeList(1, 1, 100);
+
+        assertFalse(RangingFrameDecoder.decodeRanging(value, 0, value.length + 1, mFrame));
+        assertFalse(RangingFrameDecoder.decodeRanging(null, 0, 0, mFrame));
+    }
+
+    @Test
+    public void acceptsMaximumRangeCount() {
+        byte[] value = rangeList(RangingFrame.MAX_RANGES);
+
+        assertTrue(RangingFrameDecoder.decodeRanges(value, 0, value.length, mFrame));
+        assertEquals(RangingFrame.MAX_RANGES, mFrame.count);
+    }
+
+    @Test
+    public void rejectsMoreThanMaximumRanges() {
+        byte[] value = rangeList(RangingFrame.MAX_RANGES + 1);
+
+        assertFalse(RangingFrameDecoder.decodeRanges(value, 0, value.length, mFrame));
+        assertFalse(RangingFrameDecoder.decodeRanging(value, 0, value.length, mFrame));
+    }
+
+    @Test
+    public void clearsFrameOfPreviousValue() {
+        byte[] ranges = rangeList(1, 1, 100);
+        byte[] text = ascii("1,2,3");
+        assertTrue(RangingFrameDecoder.decodeRanging(text, 0, text.length, mFrame));
+
+        assertTrue(RangingFrameDecoder.decodeRanging(ranges, 0, ranges.length, mFrame));
+        assertFalse(mFrame.hasPosition);
+        assertEquals(0f, mFrame.x, 0);
+    }
+
+    // The values below were passed on before the decoder, which only required more than 2 bytes
+
+    @Test
+    public void rejectsLongerValueThatIsNeitherFormat() {
+        byte[] value = ascii("GARBAGE");
+
+        assertFalse(RangingFrameDecoder.decodeRanging(value, 0, value.length, mFrame));
+    }
+
+    @Test
+    public void rejectsIncompletePosition() {
+        byte[] value = ascii("1.0,2.0");
+
+        assertFalse(RangingFrameDecoder.decodeRanging(value, 0, value.length, mFrame));
+    }
+
+    @Test
+    public void rejectsCountAboveAvailableRanges() {
+        // Announces 5 ranges, carries one
+        byte[] value = rangeList(1, 1, 100);
+        value[0] = 5;
+
+        assertFalse(RangingFrameDecoder.decodeRanging(value, 0, value.length, mFrame));
+    }
+
+    @Test
+    public void acceptsEmptyRangeList() {
+        // Two bytes were too short before, now they are a valid list of no ranges
+        byte[] value = rangeList(0);
+
+        assertTrue(RangingFrameDecoder.decodeRanging(value, 0, value.length, mFrame));
+        assertEquals(0, mFrame.count);
+        assertFalse(RangingFrameDecoder.decodeRanging(value, 0, 1, mFrame));
+    }
+
+    /**
+     * @param idsAndRanges  anchor id and range of each entry, filled with increasing values if
+     *                      fewer than count pairs are given
+     */
+    private static byte[] rangeList(int count, int... idsAndRanges) {
+        byte[] value = new byte[2 + count * 4];
+        putUint16(value, 0, count);
+        for (int i = 0; i < count; i++) {
+            boolean given = i * 2 + 1 < idsAndRanges.length;
+            putUint16(value, 2 + i * 4, given ? idsAndRanges[i * 2] : i);
+            putUint16(value, 4 + i * 4, given ? idsAndRanges[i * 2 + 1] : 100 + i);
+        }
+        return value;
+    }
+
+    private static void putUint16(byte[] data, int pos, int value) {
+        data[pos] = (byte) value;
+        data[pos + 1] = (byte) (value >> 8);
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.simulator;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import de.drb.il4l.androidgw.profile.RangingFrame;
+
+/**
+ * Ranging characteristic values sent by the simulated tags, either synthetic range lists or
+ * values recorded from DWM1001 tags.
+ */
+abstract class PayloadSource {
+
+    /**
+     * Fill the next payload of a tag.
+     *
+     * @param tag       index of the tag
+     * @param frame     running frame number of the tag
+     * @return payload, only valid until the next call for the same tag
+     */
+    abstract byte[] next(int tag, long frame);
+
+    static PayloadSource create(SimulatorConfig config) throws IOException {
+        if (config.recordedFile != null) {
+            return new Recorded(config.recordedFile);
+        }
+        return new Synthetic(config.tags, config.payloadSize);
+    }
+
+    /**
+     * Range lists with a fixed number of anchors and slowly changing ranges.
+     */
+    static class Synthetic extends PayloadSource {
+        private final byte[][] mPayloads;
+        private final int mAnchors;
+
+        Synthetic(int tags, int payloadSize) {
+            mAnchors = Math.max(1, Math.min(RangingFrame.MAX_RANGES, (payloadSize - 2) / 4));
+            mPayloads = new byte[tags][2 + mAnchors * 4];
+            for (int t = 0; t < tags; t++) {
+                byte[] payload = mPayloads[t];
+                payload[0] = (byte) mAnchors;
+                for (int i = 0; i < mAnchors; i++) {
+                    int id = 0x1000 + i;
+                    payload[2 + i * 4] = (byte) id;
+                    payload[3 + i * 4] = (byte) (id >> 8);
+                }
+            }
+        }
+
+        @Override
+        byte[] next(int tag, long frame) {
+            byte[] payload = mPayloads[tag];
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < mAnchors; i++) {
+                int range = 500 + random.nextInt(2000);
+                payload[4 + i * 4] = (byte) range;
+                payload[5 + i * 4] = (byte) (range >> 8);
+            }
+            return payload;
+        }
+    }
+
+    /**
+     * Recorded values, every tag replays the list starting at a different offset.
+     */
+    static class Recorded extends PayloadSource {
+        private final byte[][] mPayloads;
+
+        Recorded(String file) throws IOException {
+            List<byte[]> payloads = new ArrayList<>();
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(file), StandardCharsets.US_ASCII))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.replaceAll("[\\s:]", "");
+                    if (!line.isEmpty() && !line.startsWith("#")) {
+                        payloads.add(parseHex(line));
+                    }
+                }
+            }
+            if (payloads.isEmpty()) {
+                throw new IOException("no payloads in " + file);
+            }
+            mPayloads = payloads.toArray(new byte[0][]);
+        }
+
+        @Override
+        byte[] next(int tag, long frame) {
+            return mPayloads[(int) ((tag + frame) % mPayloads.length)];
+        }
+
+        private static byte[] parseHex(String hex) throws IOException {
+            if (hex.length() % 2 != 0) {
+                throw new IOException("odd number of hex digits: " + hex);
+            }
+            byte[] data = new byte[hex.length() / 2];
+            for (int i = 0; i < data.length; i++) {
+                int hi = Character.digit(hex.charAt(i * 2), 16);
+                int lo = Character.digit(hex.charAt(i * 2 + 1), 16);
+                if (hi < 0 || lo < 0) {
+                    throw new IOException("invalid hex value: " + hex);
+                }
+                data[i] = (byte) ((hi << 4) | lo);
+            }
+            return data;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.simulator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import de.drb.il4l.androidgw.core.BleTransport;
+import de.drb.il4l.androidgw.core.EventLoop;
+import de.drb.il4l.androidgw.core.Gateway;
+import de.drb.il4l.androidgw.core.TagSession;
+
+/**
+ * Simulated BLE side of the gateway. Connection events are delivered on a single event thread,
+ * like the main thread of the app, notifications arrive on a small pool of radio threads, like
+ * the binder threads of the Android BLE stack. With a stack limit, connects fail while too many
+ * are in progress, like the status 133 errors of an overloaded BLE stack.
+ */
+class SimulatedFleet implements BleTransport<TagSession>, EventLoop {
+    private final static int RADIO_THREADS = 2;
+
+    private final SimulatorConfig mConfig;
+    private final PayloadSource mPayloads;
+    private final SimulatedTag[] mTags;
+    private final long mPeriodNs;
+
+    private final ScheduledExecutorService mEvents = Executors.newSingleThreadScheduledExecutor(
+            r -> new Thread(r, "ble-events"));
+    private final ScheduledExecutorService mRadio = Executors.newScheduledThreadPool(RADIO_THREADS,
+            r -> new Thread(r, "ble-radio"));
+
+    private Gateway<TagSession> mGateway;
+    private volatile boolean mRunning = false;
+    // Only accessed from the event thread
+    private int mConnecting = 0;
+
+    final LongAdder emitted = new LongAdder();
+    final LongAdder queued = new LongAdder();
+    final LongAdder dropped = new LongAdder();
+    final LongAdder connects = new LongAdder();
+    final LongAdder connectFailures = new LongAdder();
+    final LongAdder linkLosses = new LongAdder();
+
+    SimulatedFleet(SimulatorConfig config, PayloadSource payloads) {
+        mConfig = config;
+        mPayloads = payloads;
+        mPeriodNs = (long) (1e9 / config.rate);
+        mTags = new SimulatedTag[config.tags];
+        for (int i = 0; i < config.tags; i++) {
+            mTags[i] = new SimulatedTag(i, address(i));
+        }
+    }
+
+    /**
+     * Warm start all tags, the same way the app does when its service starts.
+     */
+    void start(Gateway<TagSession> gateway) {
+        mGateway = gateway;
+        mRunning = true;
+        List<TagSession> sessions = new ArrayList<>(mTags.length);
+        for (SimulatedTag tag : mTags) {
+            sessions.add(tag.session);
+        }
+        mEvents.execute(() -> mGateway.warmStart(sessions));
+
+        if (mConfig.presenceMs > 0) {
+            mEvents.scheduleAtFixedRate(this::scanPresence, 0, mConfig.presenceMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Report the tags in range that aren't connected as advertising, like a background scan.
+     */
+    private void scanPresence() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (SimulatedTag tag : mTags) {
+            if (isAbsent(tag) || tag.session.getConnectionState() == TagSession.DISCOVERED) {
+                continue;
+            }
+            mGateway.onAdvertising(tag.session.getServerAddr(), -50 - random.nextInt(40));
+        }
+    }
+
+    private boolean isAbsent(SimulatedTag tag) {
+        return tag.index >= mTags.length - mConfig.absent;
+    }
+
+    /**
+     * Stop sending frames and delivering connection events.
+     */
+    void stop() throws InterruptedException {
+        mRunning = false;
+        mRadio.shutdown();
+        mEvents.shutdown();
+        mRadio.awaitTermination(1, TimeUnit.SECONDS);
+        mEvents.awaitTermination(1, TimeUnit.SECONDS);
+    }
+
+    SimulatedTag tag(int index) {
+        return index >= 0 && index < mTags.length ? mTags[index] : null;
+    }
+
+    int connectedTags() {
+        return tagsIn(TagSession.DISCOVERED);
+    }
+
+    int tagsIn(int state) {
+        int count = 0;
+        for (SimulatedTag tag : mTags) {
+            if (tag.session.getConnectionState() == state) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void connect(TagSession session) {
+        final SimulatedTag tag = tag(index(session.getServerAddr()));
+        final int generation = ++tag.generation;
+        final boolean overloaded = mConfig.stackLimit > 0 && mConnecting >= mConfig.stackLimit;
+        final boolean absent = isAbsent(tag);
+        mConnecting++;
+        connects.increment();
+
+        try {
+            mEvents.schedule(() -> {
+                mConnecting--;
+                if (!mRunning || tag.generation != generation) {
+                    return;
+                }
+                String address = session.getServerAddr();
+                if (overloaded || absent) {
+                    connectFailures.increment();
+                    mGateway.onDeviceDisconnected(address);
+                    return;
+                }
+                mGateway.onDeviceConnected(address);
+                mGateway.onServicesDiscovered(address);
+                post(mRadio, () -> sendFrame(tag, generation));
+            }, mConfig.connectDelayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // stopped in the meantime
+        }
+    }
+
+    @Override
+    public void disconnect(TagSession session) {
+        final SimulatedTag tag = tag(index(session.getServerAddr()));
+        tag.generation++;
+
+        post(mEvents, () -> {
+            mGateway.onDeviceDisconnecting(session.getServerAddr());
+            mGateway.onDeviceDisconnected(session.getServerAddr());
+        });
+    }
+
+    @Override
+    public void release(TagSession session) {
+    }
+
+    @Override
+    public long uptimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delayMillis) {
+        try {
+            mEvents.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // stopped in the meantime
+        }
+    }
+
+    private void sendFrame(SimulatedTag tag, int generation) {
+        if (!mRunning || tag.generation != generation
+                || tag.session.getConnectionState() != TagSession.DISCOVERED) {
+            return;
+        }
+
+        byte[] payload = mPayloads.next(tag.index, tag.frames++);
+        tag.pushPending(System.nanoTime());
+        emitted.increment();
+        if (mGateway.onNotification(tag.session, payload, System.nanoTime())) {
+            queued.increment();
+        } else {
+            tag.dropLastPending();
+            dropped.increment();
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextDouble() < mConfig.disconnectProbability) {
+            linkLosses.increment();
+            tag.generation++;
+            final String address = tag.session.getServerAddr();
+            post(mEvents, () -> {
+                mGateway.onLinkLoss(address);
+                mGateway.onDeviceDisconnected(address);
+            });
+            return;
+        }
+
+        long delay = (long) (mPeriodNs * (1 + mConfig.jitter * (2 * random.nextDouble() - 1)));
+        try {
+            mRadio.schedule(() -> sendFrame(tag, generation), delay, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // stopped while the frame was sent
+        }
+    }
+
+    private static void post(Executor executor, Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // stopped in the meantime
+        }
+    }
+
+    static String address(int index) {
+        return String.format(Locale.ROOT, "C0:DE:00:%02X:%02X:%02X",
+                (index >> 16) & 0xFF, (index >> 8) & 0xFF, index & 0xFF);
+    }
+
+    /**
+     * @return index of a simulated tag from the last three bytes of its address, -1 if malformed
+     */
+    static int index(String address) {
+        if (address.length() != 17) {
+            return -1;
+        }
+        int index = 0;
+        for (int i = 9; i < 17; i += 3) {
+            int hi = Character.digit(address.charAt(i), 16);
+            int lo = Character.digit(address.charAt(i + 1), 16);
+            if (hi < 0 || lo < 0) {
+                return -1;
+            }
+            index = (index << 8) | (hi << 4) | lo;
+        }
+        return index;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.simulator;
+
+import de.drb.il4l.androidgw.core.TagSession;
+
+/**
+ * A simulated tag. Besides its session it remembers when its queued frames were sent, frames of
+ * a tag reach the broker in order so the oldest send time belongs to the next frame received.
+ */
+class SimulatedTag {
+    final int index;
+    final TagSession session;
+
+    // Incremented with every connection, stops the frame chain of the previous connection
+    volatile int generation = 0;
+    // Only accessed by the frame chain of the tag
+    long frames = 0;
+
+    private long[] mPending = new long[64];
+    private int mHead = 0;
+    private int mSize = 0;
+
+    SimulatedTag(int index, String address) {
+        this.index = index;
+        this.session = new TagSession(address, TagSession.NOT_STARTED);
+    }
+
+    synchronized void pushPending(long sentAt) {
+        if (mSize == mPending.length) {
+            long[] grown = new long[mPending.length * 2];
+            for (int i = 0; i < mSize; i++) {
+                grown[i] = mPending[(mHead + i) % mPending.length];
+            }
+            mPending = grown;
+            mHead = 0;
+        }
+        mPending[(mHead + mSize) % mPending.length] = sentAt;
+        mSize++;
+    }
+
+    /**
+     * Forget the newest send time, its frame was dropped.
+     */
+    synchronized void dropLastPending() {
+        if (mSize > 0) {
+            mSize--;
+        }
+    }
+
+    /**
+     * @return send time of the oldest frame not yet received, -1 if there is none
+     */
+    synchronized long popPending() {
+        if (mSize == 0) {
+            return -1;
+        }
+        long sentAt = mPending[mHead];
+        mHead = (mHead + 1) % mPending.length;
+        mSize--;
+        return sentAt;
+    }
+
+    /**
+     * Forget the older frames not yet received, they were conflated.
+     *
+     * @return send time of the newest frame not yet received, -1 if there is none
+     */
+    synchronized long popLatestPending() {
+        if (mSize == 0) {
+            return -1;
+        }
+        long sentAt = mPending[(mHead + mSize - 1) % mPending.length];
+        mHead = 0;
+        mSize = 0;
+        return sentAt;
+    }
+}
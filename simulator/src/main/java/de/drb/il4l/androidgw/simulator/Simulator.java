@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.simulator;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.drb.il4l.androidgw.core.ConnectionScheduler;
+import de.drb.il4l.androidgw.core.Gateway;
+import de.drb.il4l.androidgw.core.TagSession;
+import de.drb.il4l.androidgw.ingest.RangingIngest;
+import de.drb.il4l.androidgw.metrics.FleetStartup;
+import de.drb.il4l.androidgw.mqtt.MessagePool;
+import de.drb.il4l.androidgw.mqtt.OutboundQueue.OverflowPolicy;
+import de.drb.il4l.androidgw.mqtt.PublishPipeline;
+import de.drb.il4l.androidgw.mqtt.PublishRateController;
+
+/**
+ * Load generator for the forwarding path. A simulated tag fleet feeds connection events and
+ * ranging notifications into {@link Gateway}, the frames are published to an in-process stand-in
+ * broker which measures throughput and the latency from notification to publish.
+ *
+ * <pre>
+ * ./gradlew :simulator:run --args="--tags 400 --rate 20 --disconnect 0.0001"
+ * </pre>
+ */
+public class Simulator {
+
+    // Keep a reference, the level is lost if the logger gets collected
+    private final static Logger CORE_LOG = Logger.getLogger("de.drb.il4l.androidgw");
+    private final static long DRAIN_TIMEOUT = 5000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        SimulatorConfig config;
+        try {
+            config = SimulatorConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(SimulatorConfig.USAGE);
+            System.exit(2);
+            return;
+        }
+
+        // Per tag connection logging drowns the report with large fleets
+        CORE_LOG.setLevel(Level.WARNING);
+        new Simulator().run(config, System.out);
+        System.exit(0);
+    }
+
+    void run(SimulatorConfig config, PrintStream out) throws IOException, InterruptedException {
+        SimulatedFleet fleet = new SimulatedFleet(config, PayloadSource.create(config));
+        LatencyRecorder latency = new LatencyRecorder();
+
+        PublishPipeline.Config publishConfig = new PublishPipeline.Config();
+        publishConfig.useTagName = false;
+        publishConfig.batch = config.batch;
+        publishConfig.overflowPolicy = config.overflow;
+        publishConfig.conflate = config.conflateRate > 0;
+        if (publishConfig.conflate) {
+            publishConfig.conflateRate = config.conflateRate;
+        }
+        publishConfig.targetLatency = config.targetLatencyMs;
+        if (config.overflow == OverflowPolicy.SPILL) {
+            publishConfig.spoolDir = Files.createTempDirectory("spool").toFile();
+        }
+        StandInBroker broker = new StandInBroker(fleet, latency, publishConfig.rangingTopic, config.publishDelayUs,
+                config.rttMs);
+        PublishPipeline publisher = new PublishPipeline(broker, publishConfig);
+        broker.setLatestOnly(publisher::isConflating);
+
+        ConnectionScheduler.Config schedulerConfig = new ConnectionScheduler.Config();
+        schedulerConfig.maxConnecting = config.maxConnecting;
+        schedulerConfig.connectSpacing = config.connectSpacingMs;
+        // A tag counts as present for a few scan intervals, like in the app
+        schedulerConfig.presenceTimeout = 3 * config.presenceMs;
+
+        Gateway<TagSession> gateway = new Gateway<>(fleet, fleet, schedulerConfig,
+                publisher,
+                new Gateway.Listener<TagSession>() {
+                    @Override
+                    public void onStateChanged(TagSession session) {
+                    }
+
+                    @Override
+                    public void onSessionClosed(TagSession session) {
+                    }
+
+                    @Override
+                    public void onRangingFrame(TagSession session, byte[] data, int length, long receivedAt) {
+                    }
+                });
+
+        out.println("Simulating " + config);
+        gateway.start();
+        long start = System.nanoTime();
+        fleet.start(gateway);
+
+        Thread.sleep(config.durationS * 1000);
+        int connected = fleet.connectedTags();
+        int parked = fleet.tagsIn(TagSession.PARKED);
+        fleet.stop();
+        long elapsed = System.nanoTime() - start;
+
+        // Let the ingest worker finish, stopping the gateway flushes pending batches
+        RangingIngest<TagSession> ingest = gateway.getIngest();
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+        while (ingest.getQueueDepth() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // Taken before stopping, the messages drained on close don't wait for the broker
+        PublishRateController controller = publisher.getRateController();
+        String flow = String.format(Locale.ROOT, "RTT %.1f ms, %d/%d in flight%s",
+                controller.getRtt() / 1e6, controller.getInFlight(), controller.getMaxInFlight(),
+                controller.getTarget() == 0 ? "" : String.format(Locale.ROOT,
+                        ", latency %.1f ms, rate limit %.1f Hz, batch scale %d, %d decreases, %d increases",
+                        controller.getLatency() / 1e6, controller.getRateLimit(), controller.getBatchScale(),
+                        controller.getDecreases(), controller.getIncreases()));
+        gateway.stop();
+        broker.close();
+
+        double seconds = elapsed / 1e9;
+        out.printf(Locale.ROOT, "tags connected      %d/%d, %d parked%n", connected, config.tags, parked);
+        out.printf(Locale.ROOT, "frames sent         %d (%.1f/s)%n", fleet.emitted.sum(), fleet.emitted.sum() / seconds);
+        out.printf(Locale.ROOT, "frames dropped      %d at ingest queue (high watermark %d/%d)%n",
+                fleet.dropped.sum(), ingest.getQueueHighWatermark(), ingest.getQueueCapacity());
+        out.printf(Locale.ROOT, "frames at broker    %d (%.1f/s)%n", broker.frames.sum(), broker.frames.sum() / seconds);
+        out.printf(Locale.ROOT, "messages at broker  %d, %d bytes, %d refused in flight%n",
+                broker.messages.sum(), broker.bytes.sum(), broker.rejected.sum());
+        out.printf(Locale.ROOT, "outbound queue      %d dropped, %d spilled (high watermark %d/%d, %s)%n",
+                publisher.getDroppedMessages(), publisher.getSpilledMessages(),
+                publisher.getOutboundQueue().highWatermark(), publisher.getOutboundQueue().capacity(),
+                publisher.getOverflowPolicy());
+        out.printf(Locale.ROOT, "send latency [us]   p50 %d  p99 %d  max %d%n",
+                publisher.getSendLatency().percentile(0.5), publisher.getSendLatency().percentile(0.99),
+                publisher.getSendLatency().max());
+        out.println("flow control        " + flow);
+        if (publisher.getConflator() != null) {
+            out.printf(Locale.ROOT, "conflation          %d frames replaced by a newer one%n",
+                    publisher.getConflator().getReplaced());
+        }
+        MessagePool pool = publisher.getMessagePool();
+        out.printf(Locale.ROOT, "message pool        %d taken, %d allocated (%d bytes)%n",
+                pool.getAcquired(), pool.getAllocated(), pool.getAllocatedBytes());
+        out.printf(Locale.ROOT, "connects            %d (%d failed), link losses %d%n",
+                fleet.connects.sum(), fleet.connectFailures.sum(), fleet.linkLosses.sum());
+        FleetStartup startup = gateway.getScheduler().getFleetStartup();
+        out.printf(Locale.ROOT, "warm start          %d/%d tags connected, %d given up, %s%n",
+                startup.getConnected(), startup.getTags(), startup.getFailed(),
+                startup.isComplete() ? String.format(Locale.ROOT, "done after %.2f s", startup.getDuration(0) / 1e3)
+                        : "not finished");
+        out.printf(Locale.ROOT, "latency [us]        p50 %.1f  p99 %.1f  p999 %.1f  max %.1f%n",
+                latency.percentile(0.5) / 1e3, latency.percentile(0.99) / 1e3,
+                latency.percentile(0.999) / 1e3, latency.percentile(1.0) / 1e3);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.simulator;
+
+import java.util.Locale;
+
+import de.drb.il4l.androidgw.mqtt.OutboundQueue.OverflowPolicy;
+
+/**
+ * Load profile of a simulator run, parsed from the command line.
+ */
+class SimulatorConfig {
+
+    static final String USAGE = "Options:\n"
+            + "  --tags N             number of simulated tags (40)\n"
+            + "  --rate HZ            ranging frames per second and tag (20)\n"
+            + "  --jitter F           random deviation of the frame interval, fraction of the interval (0.2)\n"
+            + "  --payload BYTES      size of synthetic ranging payloads (34, i.e. 8 anchors)\n"
+            + "  --recorded FILE      replay payloads from FILE, one hex encoded value per line\n"
+            + "  --disconnect P       probability of a link loss after each frame (0)\n"
+            + "  --connect-delay MS   time from connect request to connected (100)\n"
+            + "  --absent N           tags out of range, their connects always fail (0)\n"
+            + "  --presence MS        background scan interval, tags in range are reported advertising (0 = off)\n"
+            + "  --stack-limit N      connects fail like status 133 while more than N are in progress (0 = off)\n"
+            + "  --max-connecting N   connects the gateway runs at the same time (2)\n"
+            + "  --connect-spacing MS minimum time between two connects of the gateway (100)\n"
+            + "  --publish-delay US   time the stand-in broker spends per publish (0)\n"
+            + "  --rtt MS             round trip time to the stand-in broker, 10 messages in flight at most (0)\n"
+            + "  --target-latency MS  adapt rate, batch size and conflation to this latency target (0 = off)\n"
+            + "  --overflow POLICY    outbound queue overflow: drop-oldest, drop-newest or spill (drop-oldest)\n"
+            + "  --batch              publish in batch mode\n"
+            + "  --conflate HZ        publish only the latest frame per tag, at most HZ per tag (0 = off)\n"
+            + "  --duration S         length of the run (30)";
+
+    int tags = 40;
+    double rate = 20;
+    double jitter = 0.2;
+    int payloadSize = 34;
+    String recordedFile = null;
+    double disconnectProbability = 0;
+    long connectDelayMs = 100;
+    int absent = 0;
+    long presenceMs = 0;
+    int stackLimit = 0;
+    int maxConnecting = 2;
+    long connectSpacingMs = 100;
+    long publishDelayUs = 0;
+    long rttMs = 0;
+    int targetLatencyMs = 0;
+    OverflowPolicy overflow = OverflowPolicy.DROP_OLDEST;
+    boolean batch = false;
+    float conflateRate = 0;
+    long durationS = 30;
+
+    static SimulatorConfig parse(String[] args) {
+        SimulatorConfig config = new SimulatorConfig();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--batch")) {
+                config.batch = true;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("missing value for " + arg);
+            }
+
+            String value = args[++i];
+            switch (arg) {
+                case "--tags":
+                    config.tags = Integer.parseInt(value);
+                    break;
+                case "--rate":
+                    config.rate = Double.parseDouble(value);
+                    break;
+                case "--jitter":
+                    config.jitter = Double.parseDouble(value);
+                    break;
+                case "--payload":
+                    config.payloadSize = Integer.parseInt(value);
+                    break;
+                case "--recorded":
+                    config.recordedFile = value;
+                    break;
+                case "--disconnect":
+                    config.disconnectProbability = Double.parseDouble(value);
+                    break;
+                case "--connect-delay":
+                    config.connectDelayMs = Long.parseLong(value);
+                    break;
+                case "--absent":
+                    config.absent = Integer.parseInt(value);
+                    break;
+                case "--presence":
+                    config.presenceMs = Long.parseLong(value);
+                    break;
+                case "--stack-limit":
+                    config.stackLimit = Integer.parseInt(value);
+                    break;
+                case "--max-connecting":
+                    config.maxConnecting = Integer.parseInt(value);
+                    break;
+                case "--connect-spacing":
+                    config.connectSpacingMs = Long.parseLong(value);
+                    break;
+                case "--publish-delay":
+                    config.publishDelayUs = Long.parseLong(value);
+                    break;
+                case "--rtt":
+                    config.rttMs = Long.parseLong(value);
+                    break;
+                case "--target-latency":
+                    config.targetLatencyMs = Integer.parseInt(value);
+                    break;
+                case "--conflate":
+                    config.conflateRate = Float.parseFloat(value);
+                    break;
+                case "--overflow":
+                    config.overflow = OverflowPolicy.parse(value);
+                    break;
+                case "--duration":
+                    config.durationS = Long.parseLong(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + arg);
+            }
+        }
+
+        if (config.tags <= 0 || config.tags > 0xFFFFFF || config.rate <= 0
+                || config.jitter < 0 || config.jitter >= 1 || config.durationS <= 0
+                || config.maxConnecting <= 0 || config.stackLimit < 0
+                || config.absent < 0 || config.absent > config.tags || config.presenceMs < 0
+                || config.conflateRate < 0 || config.rttMs < 0 || config.targetLatencyMs < 0) {
+            throw new IllegalArgumentException("invalid load profile");
+        }
+        return config;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT,
+                "%d tags, %.1f Hz, jitter %.2f, %s, link loss p %.5f, %s, %d connects every %d ms, %d s",
+                tags, rate, jitter,
+                recordedFile != null ? "recorded payloads" : payloadSize + " B payloads",
+                disconnectProbability,
+                conflateRate > 0 ? "conflated to " + conflateRate + " Hz" : batch ? "batch mode" : "single messages",
+                maxConnecting, connectSpacingMs, durationS);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2022, Dr. Brunthaler GmbH
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.drb.il4l.androidgw.simulator;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import de.drb.il4l.androidgw.mqtt.Delivery;
+import de.drb.il4l.androidgw.mqtt.MqttTransport;
+import de.drb.il4l.androidgw.mqtt.TransportException;
+
+/**
+ * In-process stand-in for the MQTT broker. It is always connected, takes a configurable time per
+ * publish and matches received ranging frames with the send times of the simulated tags. With a
+ * round trip time, messages are acknowledged after it elapsed and like the Paho client at most
+ * {@value #MAX_IN_FLIGHT} may be in flight.
+ */
+class StandInBroker implements MqttTransport {
+    private final static String BATCH_SUFFIX = "/batch";
+    // Default in-flight window of the Paho client
+    private final static int MAX_IN_FLIGHT = 10;
+
+    private final SimulatedFleet mFleet;
+    private final LatencyRecorder mLatency;
+    private final String mRangingPrefix;
+    private final long mPublishDelayNs;
+    // Frames arrive conflated, older frames of a tag were replaced and never arrive
+    private volatile BooleanSupplier mLatestOnly = () -> false;
+    private final long mRttNs;
+    // Only set with a round trip time, acknowledges in the order of publication
+    private final ScheduledExecutorService mAcks;
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private volatile Callback mCallback;
+
+    final LongAdder messages = new LongAdder();
+    final LongAdder bytes = new LongAdder();
+    final LongAdder frames = new LongAdder();
+    // Messages refused because the window was full
+    final LongAdder rejected = new LongAdder();
+
+    StandInBroker(SimulatedFleet fleet, LatencyRecorder latency, String rangingTopic, long publishDelayUs,
+                  long rttMs) {
+        mFleet = fleet;
+        mLatency = latency;
+        mRangingPrefix = rangingTopic + "/";
+        mPublishDelayNs = TimeUnit.MICROSECONDS.toNanos(publishDelayUs);
+        mRttNs = TimeUnit.MILLISECONDS.toNanos(rttMs);
+        mAcks = rttMs > 0 ? Executors.newSingleThreadScheduledExecutor() : null;
+    }
+
+    /**
+     * @param latestOnly    true while the received frames are conflated
+     */
+    void setLatestOnly(BooleanSupplier latestOnly) {
+        mLatestOnly = latestOnly;
+    }
+
+    void close() {
+        if (mAcks != null) {
+            mAcks.shutdownNow();
+        }
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    @Override
+    public void connect() {
+    }
+
+    @Override
+    public void publish(String topic, byte[] payload, int qos, boolean retained, Delivery delivery)
+            throws TransportException {
+        if (mAcks != null && mInFlight.incrementAndGet() > MAX_IN_FLIGHT) {
+            mInFlight.decrementAndGet();
+            rejected.increment();
+            throw new TransportException("Too many publishes in progress");
+        }
+        long now = System.nanoTime();
+        messages.increment();
+        bytes.add(payload.length);
+
+        if (topic.startsWith(mRangingPrefix)) {
+            if (topic.endsWith(BATCH_SUFFIX)) {
+                receiveBatch(payload, now);
+            } else {
+                receiveFrame(SimulatedFleet.index(topic.substring(mRangingPrefix.length())), now);
+            }
+        }
+
+        if (mPublishDelayNs > 0) {
+            LockSupport.parkNanos(mPublishDelayNs);
+        }
+
+        if (mAcks != null) {
+            mAcks.schedule(() -> acknowledge(delivery), mRttNs, TimeUnit.NANOSECONDS);
+            return;
+        }
+        // Acknowledged right away, a real client reports this from its network thread
+        Callback callback = mCallback;
+        if (callback != null) {
+            callback.deliveryComplete(delivery);
+        }
+    }
+
+    private void acknowledge(Delivery delivery) {
+        mInFlight.decrementAndGet();
+        Callback callback = mCallback;
+        if (callback != null) {
+            callback.deliveryComplete(delivery);
+        }
+    }
+
+    /**
+     * Walk a batch envelope, see RangingBatcher for the layout.
+     */
+    private void receiveBatch(byte[] envelope, long now) {
+        int count = ((envelope[1] & 0xFF) << 8) | (envelope[2] & 0xFF);
+        int pos = 3;
+        for (int i = 0; i < count; i++) {
+            // Simulated addresses carry the tag index in their last three bytes
+            int index = ((envelope[pos + 3] & 0xFF) << 16) | ((envelope[pos + 4] & 0xFF) << 8) | (envelope[pos + 5] & 0xFF);
+            int length = ((envelope[pos + 14] & 0xFF) << 8) | (envelope[pos + 15] & 0xFF);
+            receiveFrame(index, now);
+            pos += 16 + length;
+        }
+    }
+
+    private void receiveFrame(int index, long now) {
+        SimulatedTag tag = mFleet.tag(index);
+        long sentAt = tag == null ? -1 : mLatestOnly.getAsBoolean() ? tag.popLatestPending() : tag.popPending();
+        if (sentAt >= 0) {
+            mLatency.record(now - sentAt);
+            frames.increment();
+        }
+    }
+}